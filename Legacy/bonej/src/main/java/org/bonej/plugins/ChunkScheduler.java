@@ -0,0 +1,159 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+/**
+ * Splits a stack into slabs of similar cost and runs a task on each slab in a
+ * work-stealing {@link ForkJoinPool}.
+ * <p>
+ * Slabs are split recursively at the weighted median of their slices, so
+ * dense parts of the image get thin slabs and sparse parts get thick slabs.
+ * Several slabs are made per thread, so a thread that finishes early steals
+ * the remaining slabs from the busier threads.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ChunkScheduler implements AutoCloseable {
+
+	/** number of slabs to aim for per thread */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a scheduler with its own pool of worker threads. Close it to stop
+	 * the threads.
+	 *
+	 * @param parallelism number of worker threads
+	 */
+	ChunkScheduler(final int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Split a stack into slabs of contiguous slices. Each slab is halved at its
+	 * weighted median until it carries no more than its share of the total
+	 * weight, or is a single slice.
+	 *
+	 * @param sliceWeights estimated cost of each slice, e.g. its foreground
+	 *          count
+	 * @return first slice of each slab, in ascending order
+	 */
+	int[] split(final long[] sliceWeights) {
+		final int d = sliceWeights.length;
+		final long[] cumulative = new long[d + 1];
+		for (int z = 0; z < d; z++) {
+			cumulative[z + 1] = cumulative[z] + sliceWeights[z];
+		}
+		final long nChunks = (long) pool.getParallelism() * CHUNKS_PER_THREAD;
+		final long target = (cumulative[d] + nChunks - 1) / nChunks;
+		final IntArrayList startSlices = new IntArrayList();
+		split(cumulative, 0, d, target, startSlices);
+		return startSlices.toArray();
+	}
+
+	private static void split(final long[] cumulative, final int start,
+		final int end, final long target, final IntArrayList startSlices)
+	{
+		final long weight = cumulative[end] - cumulative[start];
+		if (end - start < 2 || weight <= target) {
+			startSlices.add(start);
+			return;
+		}
+		// first slice past the weighted median, leaving at least one slice on
+		// each side
+		final long half = cumulative[start] + weight / 2;
+		int lo = start + 1;
+		int hi = end - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (cumulative[mid] < half) lo = mid + 1;
+			else hi = mid;
+		}
+		split(cumulative, start, lo, target, startSlices);
+		split(cumulative, lo, end, target, startSlices);
+	}
+
+	/**
+	 * Run a task on every chunk and wait for them all to finish. Any exception
+	 * thrown by a task is rethrown here.
+	 *
+	 * @param nChunks number of chunks
+	 * @param task task taking the chunk's index
+	 * @return time spent on each chunk, in nanoseconds
+	 */
+	long[] invokeAll(final int nChunks, final IntConsumer task) {
+		final long[] times = new long[nChunks];
+		pool.invoke(new ChunkTask(task, times, 0, nChunks));
+		return times;
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Halves its range of chunks until one is left, so that idle workers can
+	 * steal the other halves.
+	 */
+	private static final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final IntConsumer task;
+		private final long[] times;
+		private final int start;
+		private final int end;
+
+		private ChunkTask(final IntConsumer task, final long[] times,
+			final int start, final int end)
+		{
+			this.task = task;
+			this.times = times;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				final int mid = (start + end) >>> 1;
+				invokeAll(new ChunkTask(task, times, start, mid), new ChunkTask(task,
+					times, mid, end));
+				return;
+			}
+			if (end == start) return;
+			final long startTime = System.nanoTime();
+			task.accept(start);
+			times[start] = System.nanoTime() - startTime;
+		}
+	}
+}
@@ -23,21 +23,15 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.plugins;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bonej.util.Multithreader;
-import org.eclipse.collections.api.iterator.MutableIntIterator;
-import org.eclipse.collections.api.list.MutableList;
-import org.eclipse.collections.impl.list.mutable.FastList;
-import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.process.ImageProcessor;
 
 /**
@@ -58,11 +52,11 @@ public class ConnectedComponents {
 	/** 2^23 - greatest integer that can be represented precisely by a float */
 	static final int MAX_LABEL = 8388608;
 
-	/** number of particle labels */
-	private static int nParticles;
+	/** number of particle labels found by the last call to run */
+	private int nParticles;
 
-	/** array of binary pixels */
-	private static byte[][] workArray;
+	/** array of binary pixels from the last call to run */
+	private byte[][] workArray;
 
 	/** Constructor */
 	public ConnectedComponents() {
@@ -70,7 +64,9 @@ public class ConnectedComponents {
 	}
 
 	/**
-	 * Run connected components filter on a binary image
+	 * Run connected components filter on a binary image. The particle count and
+	 * work array are kept in this instance, so use {@link #label(ImagePlus, int)}
+	 * instead if the instance is shared between threads.
 	 * 
 	 * @param imp   Input ImagePlus, must be 2D or 3D and binary (0 or 255)
 	 * @param phase either foreground (this.FORE) or background (this.BACK)
@@ -79,83 +75,212 @@ public class ConnectedComponents {
 	 *         label.
 	 */
 	public int[][] run(final ImagePlus imp, final int phase) {
+		final Labelling labelling = label(imp, phase);
+		nParticles = labelling.getNParticles();
+		workArray = labelling.getWorkArray();
+		return labelling.getParticleLabels();
+	}
+
+	/**
+	 * Run connected components filter on a binary image. This method keeps no
+	 * state in the instance, so it may be called from many threads at once.
+	 * 
+	 * @param imp   Input ImagePlus, must be 2D or 3D and binary (0 or 255)
+	 * @param phase either foreground (this.FORE) or background (this.BACK)
+	 * @return the particle labels, particle count and binary work array
+	 */
+	public Labelling label(final ImagePlus imp, final int phase) {
+		return label(imp, phase, true);
+	}
+
+	/**
+	 * Run connected components filter on a binary image. This method keeps no
+	 * state in the instance, so it may be called from many threads at once.
+	 * 
+	 * If copyWorkArray is false and the image is 8-bit, the work array shares the
+	 * stack's pixel arrays instead of copying them, which saves one byte per
+	 * pixel. The work array must then be treated as read-only, unless the caller
+	 * owns the image and doesn't mind it changing.
+	 * 
+	 * @param imp           Input ImagePlus, must be 2D or 3D and binary (0 or 255)
+	 * @param phase         either foreground (this.FORE) or background (this.BACK)
+	 * @param copyWorkArray true to copy 8-bit pixels into a new work array
+	 * @return the particle labels, particle count and binary work array
+	 */
+	public Labelling label(final ImagePlus imp, final int phase, final boolean copyWorkArray) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int nSlices = imp.getImageStackSize();
-		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		final int minSlicesPerChunk = 10;
 
-		// set up number of chunks
-		final int nChunks = nSlices < minSlicesPerChunk * nProcessors
-				? (int) Math.ceil((double) nSlices / (double) minSlicesPerChunk)
-				: nProcessors;
+		// set up the work array
+		final byte[][] workArray = makeWorkArray(imp, copyWorkArray);
+
+		try (final ChunkScheduler scheduler = new ChunkScheduler(Prefs.getThreads())) {
+			// split the stack into slabs of similar foreground count
+			final long[] sliceCounts = countPhasePixels(workArray, phase);
+			final int[] startSlices = scheduler.split(sliceCounts);
+			final int nChunks = startSlices.length;
+			final long[] chunkCounts = new long[nChunks];
+			for (int chunk = 0; chunk < nChunks; chunk++) {
+				final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] : nSlices;
+				for (int z = startSlices[chunk]; z < endSlice; z++)
+					chunkCounts[chunk] += sliceCounts[z];
+			}
+
+			// set up label offsets to avoid collisions between chunks
+			final int[] chunkIDOffsets = getChunkIDOffsets(chunkCounts);
+			final int maxLabel = getMaxLabel(chunkCounts);
+
+			// set up a label forest split into one label space per chunk
+			// assume there is a new particle label for every 10000 pixels
+			long maxChunkPixels = 0;
+			for (int chunk = 0; chunk < nChunks; chunk++) {
+				final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] : nSlices;
+				maxChunkPixels = Math.max(maxChunkPixels, (long) w * h * (endSlice - startSlices[chunk]));
+			}
+			final int initialArrayCapacity = (int) Math.min(maxLabel, 1 + maxChunkPixels / 10000);
+			final UnionFind forest = new UnionFind(chunkIDOffsets, maxLabel, initialArrayCapacity);
+
+			// do a first labelling and join first degree neighbours
+			final int[][] particleLabels = new int[nSlices][w * h];
+			final long[] labellingTimes = scheduler.invokeAll(nChunks,
+					chunk -> labelChunk(workArray, particleLabels, forest, chunk, chunkIDOffsets, startSlices, w, h,
+							nSlices, phase));
+
+			// find neighbours in the previous chunk
+			// each chunk records pairs of labels that join it to the previous chunk,
+			// which are then joined in the label forest by a single thread
+			final IntArrayList[] chunkJoins = new IntArrayList[nChunks];
+			final long[] stitchingTimes = scheduler.invokeAll(nChunks,
+					chunk -> chunkJoins[chunk] = findChunkJoins(workArray, particleLabels, startSlices[chunk], w, h,
+							nSlices, phase));
+			for (final IntArrayList joins : chunkJoins) {
+				final int nJoins = joins.size();
+				for (int i = 0; i < nJoins; i += 2) {
+					forest.union(joins.get(i), joins.get(i + 1));
+				}
+			}
+
+			// resolve the label forest and generate a LUT
+			final int[][] lut = forest.makeLut();
 
-		// set up chunk sizes - last chunk is the remainder
-		final int slicesPerChunk = (int) Math.ceil((double) nSlices / (double) nChunks);
+			// rewrite the pixel values using the LUT
+			applyLUT(scheduler, particleLabels, lut, chunkIDOffsets, startSlices, nSlices);
 
-		// set up start slice array
-		final int[] startSlices = new int[nChunks];
-		for (int i = 0; i < nChunks; i++) {
-			startSlices[i] = i * slicesPerChunk;
+			final ChunkTimings timings = new ChunkTimings(startSlices, chunkCounts, labellingTimes, stitchingTimes);
+			if (IJ.debugMode)
+				timings.log();
+			return new Labelling(particleLabels, countParticles(lut), workArray, timings);
 		}
+	}
 
-		// set up label offsets to avoid collisions between chunks
-		final int chunkLabelSpace = MAX_LABEL / nChunks;
-		final int[] chunkIDOffsets = new int[nChunks];
-		for (int i = 0; i < nChunks; i++) {
-			chunkIDOffsets[i] = i * chunkLabelSpace;
+	/**
+	 * Count the pixels of the phase in each slice
+	 *
+	 * @param workArray binary work array
+	 * @param phase     FORE or BACK
+	 * @return number of pixels of the phase in each slice
+	 */
+	private static long[] countPhasePixels(final byte[][] workArray, final int phase) {
+		final int d = workArray.length;
+		final long[] counts = new long[d];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					long count = 0;
+					for (final byte pixel : workArray[z]) {
+						if (pixel == phase)
+							count++;
+					}
+					counts[z] = count;
+				}
+			});
 		}
+		Multithreader.startAndJoin(threads);
+		return counts;
+	}
 
-		// set up a map split into one per chunk
-		final ArrayList<MutableList<IntHashSet>> chunkMaps = new ArrayList<>(nChunks);
+	/**
+	 * Give each chunk a label space in proportion to its phase pixel count. A
+	 * chunk can't have more new labels than phase pixels, so when the counts fit
+	 * in an int each chunk gets exactly as much as it might need.
+	 *
+	 * @param chunkCounts number of phase pixels in each chunk
+	 * @return first label of each chunk, strictly ascending and starting at 0
+	 */
+	static int[] getChunkIDOffsets(final long[] chunkCounts) {
+		final int nChunks = chunkCounts.length;
+		final long total = getLabelSpace(chunkCounts);
+		final double scale = Math.min(1, (double) getMaxLabel(chunkCounts) / total);
+		final int[] chunkIDOffsets = new int[nChunks];
+		// + 1 for label 0 or for an empty chunk
+		long cumulative = 0;
 		for (int chunk = 0; chunk < nChunks; chunk++) {
-			// assume there is a new particle label for every 10000 pixels
-			final int initialArrayCapacity = 1 + w * h * slicesPerChunk / 10000;
-			final MutableList<IntHashSet> map = FastList.newList(initialArrayCapacity);
-			chunkMaps.add(map);
+			final int offset = (int) (cumulative * scale);
+			chunkIDOffsets[chunk] = chunk == 0 ? 0 : Math.max(offset, chunkIDOffsets[chunk - 1] + 1);
+			cumulative += chunkCounts[chunk] + 1;
 		}
+		return chunkIDOffsets;
+	}
 
-		// set up the work array
-		makeWorkArray(imp);
-
-		//do a first labelling and map first degree neighbours
-		int[][] particleLabels = firstIDAttribution(chunkMaps, chunkIDOffsets, startSlices, w, h, nSlices, phase);
-
-		//merge neighbour networks and generate a LUT
-		final int[][] lut = generateLut(chunkMaps, chunkIDOffsets);
-		
-		// rewrite the pixel values using the LUT
-		applyLUT(particleLabels, lut, chunkIDOffsets, startSlices, nSlices);
+	/**
+	 * @param chunkCounts number of phase pixels in each chunk
+	 * @return first label that is not allowed in the last chunk
+	 */
+	static int getMaxLabel(final long[] chunkCounts) {
+		return (int) Math.min(Integer.MAX_VALUE - 8, getLabelSpace(chunkCounts));
+	}
 
-		return particleLabels;
+	private static long getLabelSpace(final long[] chunkCounts) {
+		long total = 0;
+		for (final long count : chunkCounts)
+			total += count + 1;
+		return total;
 	}
 
 	/**
-	 * Generate a label replacement LUT
+	 * Count the particles in a label replacement LUT
 	 * 
-	 * @param chunkMaps list of HashMaps
-	 * @param chunkIDOffsets ID offsets
-	 * @return LUTs, one per image chunk
+	 * @param lut LUTs, one per image chunk
+	 * @return number of particle labels, including 0
 	 */
-	private static int[][] generateLut(ArrayList<MutableList<IntHashSet>> chunkMaps, int[] chunkIDOffsets) {
-		// merge labels between the HashSets, handling the chunk offsets and indexes
-		bucketFountain(chunkMaps, chunkIDOffsets);
-
-		HashMap<Integer, Integer> lutMap = makeLutMap(chunkMaps);
-
-		return lutFromLutMap(lutMap, chunkMaps, chunkIDOffsets);
+	static int countParticles(final int[][] lut) {
+		int maxLabel = 0;
+		for (final int[] chunkLut : lut) {
+			for (final int label : chunkLut) {
+				if (label > maxLabel)
+					maxLabel = label;
+			}
+		}
+		// +1 is for label 0
+		return maxLabel + 1;
 	}
 
 	/**
-	 * Create a work array and store it as a field of this instance, which can be
-	 * retrieved with getWorkArray
+	 * Create a work array. 8-bit slices are copied in bulk, and other bit depths
+	 * are converted from their pixel arrays with the same narrowing to byte as
+	 * {@link ImageProcessor#get(int)}.
 	 *
 	 * @param imp an image.
+	 * @return binary work array with one byte[] per slice
+	 */
+	static byte[][] makeWorkArray(final ImagePlus imp) {
+		return makeWorkArray(imp, true);
+	}
+
+	/**
+	 * Create a work array
+	 *
+	 * @param imp  an image.
+	 * @param copy if false, 8-bit slices are used as they are, without copying
+	 * @return binary work array with one byte[] per slice
 	 */
-	static void makeWorkArray(final ImagePlus imp) {
+	static byte[][] makeWorkArray(final ImagePlus imp, final boolean copy) {
 		final int s = imp.getStackSize();
 		final int p = imp.getWidth() * imp.getHeight();
-		workArray = new byte[s][p];
+		final byte[][] workArray = new byte[s][];
 		final ImageStack stack = imp.getStack();
 
 		AtomicInteger ai = new AtomicInteger(0);
@@ -164,519 +289,330 @@ public class ConnectedComponents {
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
 				for (int z = ai.getAndIncrement(); z < s; z = ai.getAndIncrement()) {
-					final ImageProcessor ip = stack.getProcessor(z + 1);
-					for (int i = 0; i < p; i++) {
-						workArray[z][i] = (byte) ip.get(i);
+					final Object pixels = stack.getPixels(z + 1);
+					if (pixels instanceof byte[]) {
+						workArray[z] = copy ? ((byte[]) pixels).clone() : (byte[]) pixels;
+						continue;
+					}
+					final byte[] slice = new byte[p];
+					if (pixels instanceof short[]) {
+						final short[] shorts = (short[]) pixels;
+						for (int i = 0; i < p; i++)
+							slice[i] = (byte) shorts[i];
+					} else if (pixels instanceof float[]) {
+						final float[] floats = (float[]) pixels;
+						for (int i = 0; i < p; i++)
+							slice[i] = (byte) Float.floatToIntBits(floats[i]);
+					} else if (pixels instanceof int[]) {
+						final int[] ints = (int[]) pixels;
+						for (int i = 0; i < p; i++)
+							slice[i] = (byte) ints[i];
+					} else {
+						final ImageProcessor ip = stack.getProcessor(z + 1);
+						for (int i = 0; i < p; i++)
+							slice[i] = (byte) ip.get(i);
 					}
+					workArray[z] = slice;
 				}
 			});
 		}
 		Multithreader.startAndJoin(threads);
+		return workArray;
 	}
 
 	/**
-	 * Go through all pixels and assign initial particle label.
+	 * Go through all pixels of a chunk and assign initial particle label.
 	 *
-	 * @param chunkMaps collision recording lists
+	 * @param workArray binary work array
+	 * @param particleLabels label array, filled in for the chunk's slices
+	 * @param forest label forest recording the joins between labels
+	 * @param chunk index of the chunk
 	 * @param chunkIDOffsets ID offsets 
 	 * @param startSlices first slice of each chunk
 	 * @param w image width
 	 * @param h image height
 	 * @param nSlices number of slices
 	 * @param phase     FORE or BACK for foreground of background respectively
-	 * @return particleLabels int[] array containing label associating every pixel
-	 *         with a particle
 	 */
-	private static int[][] firstIDAttribution(final ArrayList<MutableList<IntHashSet>> chunkMaps,
-			final int[] chunkIDOffsets, final int[] startSlices, final int w, final int h, final int nSlices,
-			final int phase) {
+	private static void labelChunk(final byte[][] workArray, final int[][] particleLabels, final UnionFind forest,
+			final int chunk, final int[] chunkIDOffsets, final int[] startSlices, final int w, final int h,
+			final int nSlices, final int phase) {
 
 		final int nChunks = chunkIDOffsets.length;
-		final int wh = w * h;
-		// set up the particle label stack
-		final int[][] particleLabels = new int[nSlices][wh];
 
-		// set up the threads (one thread per chunk)
-		final Thread[] threads = new Thread[nChunks];
+		// label image IDs have the chunk ID offset
+		int ID = chunkIDOffsets[chunk];
 
-		for (int thread = 0; thread < nChunks; thread++) {
-			// each chunk is processed in a single thread
-			final int chunk = thread;
-			// the starting ID for each chunk is the offset
-			final int IDoffset = chunkIDOffsets[chunk];
-			final int nextIDOffset = chunk < (chunkIDOffsets.length - 1) ? chunkIDOffsets[chunk + 1] : MAX_LABEL;
-			threads[chunk] = new Thread(() -> {
-				// get the Array of HashSets that relate to this image chunk
-				final MutableList<IntHashSet> chunkMap = chunkMaps.get(chunk);
-
-				// label image IDs have the chunk ID offset
-				int ID = IDoffset;
-
-				if (ID == 0)
-					ID = 1;
-
-				final int startSlice = startSlices[chunk];
-
-				// final slice of the chunk is the next chunk's start slice minus one for all
-				// but the last chunk
-				final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : nSlices - 1;
-
-				if (phase == FORE) {
-					// first slice of the chunk - use 4 neighbourhood to not
-					// bleed into prior chunk
-					final int[] sliceNbh = new int[4];
-					for (int y = 0; y < h; y++) {
-						final int rowIndex = y * w;
-						for (int x = 0; x < w; x++) {
-							final int arrayIndex = rowIndex + x;
-							if (workArray[startSlice][arrayIndex] == FORE) {
-								// Find the minimum particleLabel in the
-								// neighbouring pixels
-								get4Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
+		if (ID == 0)
+			ID = 1;
 
-								final int minTag = getMinTag(sliceNbh, ID);
+		final int startSlice = startSlices[chunk];
 
-								// add neighbourhood to map
-								addNeighboursToMap(chunkMap, sliceNbh, minTag, IDoffset);
+		// final slice of the chunk is the next chunk's start slice minus one for all
+		// but the last chunk
+		final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : nSlices - 1;
 
-								// assign the smallest particle label from the
-								// neighbours to the pixel
-								particleLabels[startSlice][arrayIndex] = minTag;
+		if (phase == FORE) {
+			// first slice of the chunk - use 4 neighbourhood to not
+			// bleed into prior chunk
+			final int[] sliceNbh = new int[4];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (workArray[startSlice][arrayIndex] == FORE) {
+						// Find the minimum particleLabel in the
+						// neighbouring pixels
+						get4Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
 
-								// increment the particle label
-								if (minTag == ID) {
-									ID++;
-									expandMap(chunkMap, ID, IDoffset, nextIDOffset);
-								}
-							}
-						}
-					}
+						final int minTag = getMinTag(sliceNbh, ID);
 
-					// use 13 neighbourhood for all but first slice
-					final int[] nbh = new int[13];
-					boolean lastPixelWasForeground = false;
-					final int wm1 = w - 1;
-					final int hm1 = h - 1;
-					int centre = 0;
-					for (int z = startSlice + 1; z <= endSlice; z++) {
-						for (int y = 0; y < h; y++) {
-							final int rowIndex = y * w;
-							for (int x = 0; x < w; x++) {
-								final int arrayIndex = rowIndex + x;
-								if (workArray[z][arrayIndex] == FORE) {
-									
-									//for pixels in the middle of the slice,
-									if (lastPixelWasForeground && x > 0 && y > 0 && x < wm1 && y < hm1) {
-										 //slide the neighbourhood and 
-										// pick up 4 new labels from the label array
-										get13Neighborhood(nbh, particleLabels, x, y, z, w, centre);
-									} else {
-										// Find the minimum particleLabel in the
-										// neighbouring pixels - 13 pixels from label array
-										get13Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
-									}
-
-									centre = getMinTag(nbh, ID);
-
-									// add neighbourhood to map
-									addNeighboursToMap(chunkMap, nbh, centre, IDoffset);
-
-									// assign the smallest particle label from the
-									// neighbours to the pixel
-									particleLabels[z][arrayIndex] = centre;
-									
-									// increment the particle label
-									if (centre == ID) {
-										ID++;
-										expandMap(chunkMap, ID, IDoffset, nextIDOffset);
-									}
-									lastPixelWasForeground = true;
-								} else {
-									lastPixelWasForeground = false;
-								}
-							}
+						// join neighbourhood in the label forest
+						joinNeighbours(forest, sliceNbh, minTag);
+
+						// assign the smallest particle label from the
+						// neighbours to the pixel
+						particleLabels[startSlice][arrayIndex] = minTag;
+
+						// increment the particle label
+						if (minTag == ID) {
+							forest.makeSet(chunk, ID);
+							ID++;
 						}
 					}
 				}
+			}
 
-				else if (phase == BACK) {
-					// first slice of the chunk - use 2 neighbourhood to not
-					// bleed into prior chunk
-					final int[] sliceNbh = new int[2];
-					for (int y = 0; y < h; y++) {
-						final int rowIndex = y * w;
-						for (int x = 0; x < w; x++) {
-							final int arrayIndex = rowIndex + x;
-							if (workArray[startSlice][arrayIndex] == BACK) {
+			// use 13 neighbourhood for all but first slice
+			final int[] nbh = new int[13];
+			boolean lastPixelWasForeground = false;
+			final int wm1 = w - 1;
+			final int hm1 = h - 1;
+			int centre = 0;
+			for (int z = startSlice + 1; z <= endSlice; z++) {
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (workArray[z][arrayIndex] == FORE) {
+							
+							//for pixels in the middle of the slice,
+							if (lastPixelWasForeground && x > 0 && y > 0 && x < wm1 && y < hm1) {
+								 //slide the neighbourhood and 
+								// pick up 4 new labels from the label array
+								get13Neighborhood(nbh, particleLabels, x, y, z, w, centre);
+							} else {
 								// Find the minimum particleLabel in the
-								// neighbouring pixels
-								get2Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
-
-								final int minTag = getMinTag(sliceNbh, ID);
-
-								// add neighbourhood to map
-								addNeighboursToMap(chunkMap, sliceNbh, minTag, IDoffset);
-
-								// assign the smallest particle label from the
-								// neighbours to the pixel
-								particleLabels[startSlice][arrayIndex] = minTag;
-								// increment the particle label
-								if (minTag == ID) {
-									ID++;
-									expandMap(chunkMap, ID, IDoffset, nextIDOffset);
-								}
+								// neighbouring pixels - 13 pixels from label array
+								get13Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
 							}
-						}
-					}
 
-					// use 3-neighbourhood for all but the first slice
-					final int[] nbh = new int[3];
-					for (int z = startSlice + 1; z <= endSlice; z++) {
-						for (int y = 0; y < h; y++) {
-							final int rowIndex = y * w;
-							for (int x = 0; x < w; x++) {
-								final int arrayIndex = rowIndex + x;
-								if (workArray[z][arrayIndex] == BACK) {
-
-									// Find the minimum particleLabel in the
-									// neighbouring pixels
-									get3Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
-
-									final int minTag = getMinTag(nbh, ID);
-
-									addNeighboursToMap(chunkMap, nbh, minTag, IDoffset);
-
-									// assign the smallest particle label from the
-									// neighbours to the pixel
-									particleLabels[z][arrayIndex] = minTag;
-									// increment the particle label
-									if (minTag == ID) {
-										ID++;
-										expandMap(chunkMap, ID, IDoffset, nextIDOffset);
-									}
-								}
+							centre = getMinTag(nbh, ID);
+
+							// join neighbourhood in the label forest
+							joinNeighbours(forest, nbh, centre);
+
+							// assign the smallest particle label from the
+							// neighbours to the pixel
+							particleLabels[z][arrayIndex] = centre;
+							
+							// increment the particle label
+							if (centre == ID) {
+								forest.makeSet(chunk, ID);
+								ID++;
 							}
+							lastPixelWasForeground = true;
+						} else {
+							lastPixelWasForeground = false;
 						}
 					}
 				}
-				// there is always one too many IDs per chunk, so trim the last one off
-				chunkMap.remove(chunkMap.size() - 1);
-			});
+			}
 		}
-		Multithreader.startAndJoin(threads);
 
-		// find neighbours in the previous chunk
-		// this will result in occasional HashSet values less than
-		// the chunk's IDoffset, which indicate linkage between chunks
-		final Thread[] stitchingThreads = new Thread[nChunks];
-		for (int thread = 0; thread < nChunks; thread++) {
-			final int chunk = thread;
-			stitchingThreads[thread] = new Thread(() -> {
-
-				// need only one z per thread
-				final int z = startSlices[chunk];
-				final MutableList<IntHashSet> chunkMap = chunkMaps.get(chunk);
-				final int IDoffset = chunkIDOffsets[chunk];
-
-				if (chunk > 0) {
-					if (phase == FORE) {
-						final int[] nbh = new int[9];
-						for (int y = 0; y < h; y++) {
-							final int rowIndex = y * w;
-							for (int x = 0; x < w; x++) {
-								final int arrayIndex = rowIndex + x;
-								if (workArray[z][arrayIndex] == FORE) {
-									final int label = particleLabels[z][arrayIndex];
-									get9Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
-									addChunkNeighboursToMap(chunkMap, nbh, label - IDoffset);
-								}
-							}
+		else if (phase == BACK) {
+			// first slice of the chunk - use 2 neighbourhood to not
+			// bleed into prior chunk
+			final int[] sliceNbh = new int[2];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (workArray[startSlice][arrayIndex] == BACK) {
+						// Find the minimum particleLabel in the
+						// neighbouring pixels
+						get2Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
+
+						final int minTag = getMinTag(sliceNbh, ID);
+
+						// join neighbourhood in the label forest
+						joinNeighbours(forest, sliceNbh, minTag);
+
+						// assign the smallest particle label from the
+						// neighbours to the pixel
+						particleLabels[startSlice][arrayIndex] = minTag;
+						// increment the particle label
+						if (minTag == ID) {
+							forest.makeSet(chunk, ID);
+							ID++;
 						}
 					}
+				}
+			}
 
-					if (phase == BACK) {
-						final int[] nbh = new int[1];
-						for (int y = 0; y < h; y++) {
-							final int rowIndex = y * w;
-							for (int x = 0; x < w; x++) {
-								final int arrayIndex = rowIndex + x;
-								if (workArray[z][arrayIndex] == BACK) {
-									final int label = particleLabels[z][arrayIndex];
-									get1Neighborhood(nbh, particleLabels, x, y, z, w);
-									addChunkNeighboursToMap(chunkMap, nbh, label - IDoffset);
-								}
+			// use 3-neighbourhood for all but the first slice
+			final int[] nbh = new int[3];
+			for (int z = startSlice + 1; z <= endSlice; z++) {
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (workArray[z][arrayIndex] == BACK) {
+
+							// Find the minimum particleLabel in the
+							// neighbouring pixels
+							get3Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
+
+							final int minTag = getMinTag(nbh, ID);
+
+							joinNeighbours(forest, nbh, minTag);
+
+							// assign the smallest particle label from the
+							// neighbours to the pixel
+							particleLabels[z][arrayIndex] = minTag;
+							// increment the particle label
+							if (minTag == ID) {
+								forest.makeSet(chunk, ID);
+								ID++;
 							}
 						}
 					}
 				}
-			});
+			}
 		}
-		Multithreader.startAndJoin(stitchingThreads);
-
-		return particleLabels;
 	}
 
 	/**
-	 * Empty each HashSet into a lower-indexed HashSet, based on the lowest label
-	 * found in the HashSet and the HashSets' indices. Resolve inter-chunk label
-	 * collisions. Transitively connected labels are joined when they are added to the same, 
-	 * lower-indexed, HashSet.
-	 * <br/>
-	 * By iterating downwards from the highest index, this algorithm resembles buckets
-	 * splashing water from the uppermost to the lowermost.
-	 * It is named after <i>Bucket Fountain</i>, a kinetic sculpture by Burren and Keen (1969),
-	 * installed in Cuba Mall, Wellington, New Zealand.
-	 * 
-	 * @see <a href="https://en.wikipedia.org/wiki/Bucket_Fountain">Wikipedia: Bucket Fountain</a>
-	 * @param chunkMaps list of collisions between labels
-	 * @param chunkIDOffsets ID offsets
+	 * Find the joins between a chunk and the previous chunk
+	 *
+	 * @param workArray binary work array
+	 * @param particleLabels label array
+	 * @param z first slice of the chunk
+	 * @param w image width
+	 * @param h image height
+	 * @param nSlices number of slices
+	 * @param phase     FORE or BACK for foreground of background respectively
+	 * @return pairs of labels to be joined
 	 */
-	private static void bucketFountain(final ArrayList<MutableList<IntHashSet>> chunkMaps, final int[] chunkIDOffsets) {
-		// iterate backwards through the chunk maps
-
-		final int nChunks = chunkIDOffsets.length;
-
-		for (int chunk = nChunks - 1; chunk >= 0; chunk--) {
-			final MutableList<IntHashSet> map = chunkMaps.get(chunk);
-			final int priorChunk = chunk > 0 ? chunk - 1 : 0;
-			final MutableList<IntHashSet> priorMap = chunkMaps.get(priorChunk);
-			final int IDoffset = chunkIDOffsets[chunk];
-			final int priorIDoffset = chunkIDOffsets[priorChunk];
-			for (int i = map.size() - 1; i >= 0; i--) {
-				final IntHashSet set = map.get(i);
-				if (!set.isEmpty()) {
-					// find the minimum label in the set
-					int minLabel = set.min();
-					
-					// if minimum label is less than this chunk's offset, need
-					// to move set to previous chunk's map
-					if (minLabel < IDoffset) {
-						priorMap.get(minLabel - priorIDoffset).addAll(set);
-						set.clear();
-						continue;
-					}
-					// move whole set's contents to a lower position in the map
-					if (minLabel < i + IDoffset) {
-						map.get(minLabel - IDoffset).addAll(set);
-						set.clear();
+	private static IntArrayList findChunkJoins(final byte[][] workArray, final int[][] particleLabels, final int z,
+			final int w, final int h, final int nSlices, final int phase) {
+		final IntArrayList joins = new IntArrayList();
+
+		if (z > 0) {
+			if (phase == FORE) {
+				final int[] nbh = new int[9];
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (workArray[z][arrayIndex] == FORE) {
+							final int label = particleLabels[z][arrayIndex];
+							get9Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
+							addChunkNeighbourJoins(joins, nbh, label);
+						}
 					}
 				}
 			}
-		}
-	}
-
-	/**
-	 * Check the labels within HashSets for consistency and merge them if needed.
-	 * Generate a label replacement LUT based on the index of the HashSet each label is
-	 * found within.
-	 * 
-	 * @param chunkMaps list of collisions between labels
-	 * @return lutMap initial mapping of partial region labels to final labels
-	 */
-	private static HashMap<Integer, Integer> makeLutMap(final ArrayList<MutableList<IntHashSet>> chunkMaps) {
-		// count unique labels and particles
-		int labelCount = 0;
-		for (MutableList<IntHashSet> map : chunkMaps) {
-			for (IntHashSet set : map) {
-				if (!set.isEmpty())
-					labelCount += set.size();
-			}
-		}
 
-		// set up a 1D HashMap of HashSets with the minimum label
-		// set as the 'root' (key) of the hashMap
-		HashMap<Integer, IntHashSet> hashMap = new HashMap<>(labelCount);
-		for (MutableList<IntHashSet> map : chunkMaps) {
-			for (IntHashSet set : map) {
-				if (!set.isEmpty())
-					hashMap.put(set.min(), set);
-			}
-		}
-
-		// set up a LUT to keep track of the minimum replacement value for each label
-		final HashMap<Integer, Integer> lutMap = new HashMap<>(labelCount);
-		for (MutableList<IntHashSet> map : chunkMaps) {
-			for (IntHashSet set : map) {
-				// start so that each label looks up itself
-				set.forEach(label -> lutMap.put(label, label));
-			}
-		}
-
-		// check the hashMap for duplicate appearances and merge sets downwards
-		boolean somethingChanged = true;
-		while (somethingChanged) {
-			somethingChanged = false;
-			for (Entry<Integer, IntHashSet> pair : hashMap.entrySet()) {
-				final IntHashSet set = pair.getValue();
-				final int key = pair.getKey();
-				MutableIntIterator iterator = set.intIterator();
-				while (iterator.hasNext()) {
-					final int label = iterator.next();
-					int lutValue = lutMap.get(label);
-					// lower the lut lookup value to the root of this set
-					if (lutValue > key) {
-						lutMap.put(label, key);
-						somethingChanged = true;
-						continue;
-					}
-					// looks like there is a value in the wrong place
-					if (lutValue < key) {
-						// move all the set's labels to the lower root
-						hashMap.get(lutValue).addAll(set);
-						// update all the set's lut lookups with the new root
-						MutableIntIterator iter = set.intIterator();
-						while (iter.hasNext()) {
-							final int l = iter.next();
-							lutMap.put(l, lutValue);
+			if (phase == BACK) {
+				final int[] nbh = new int[1];
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (workArray[z][arrayIndex] == BACK) {
+							final int label = particleLabels[z][arrayIndex];
+							get1Neighborhood(nbh, particleLabels, x, y, z, w);
+							addChunkNeighbourJoins(joins, nbh, label);
 						}
-						set.clear();
-						somethingChanged = true;
-						break;
 					}
 				}
 			}
 		}
-		return lutMap;
-	}
-
-	/**
-	 * Translate the LUT coded as a HashMap into a primitive array for rapid pixel relabelling
-	 * 
-	 * @param lutMap hashmap LUT
-	 * @param chunkMaps list of labels
-	 * @param chunkIDOffsets ID offsets
-	 * @return LUT as a 2D int array, with an int[] array per chunk
-	 */
-	private static int[][] lutFromLutMap(final HashMap<Integer, Integer> lutMap,
-			final ArrayList<MutableList<IntHashSet>> chunkMaps, final int[] chunkIDOffsets) {
-		// count number of unique labels in the LUT
-		IntHashSet lutLabels = new IntHashSet();
-		for (Map.Entry<Integer, Integer> pair : lutMap.entrySet()) {
-			lutLabels.add(pair.getValue());
-		}
-		final int nLabels = lutLabels.size();
-		nParticles = nLabels;
-
-		// assign incremental replacement values
-		// translate old
-		final HashMap<Integer, Integer> lutLut = new HashMap<>(nLabels);
-		final AtomicInteger value = new AtomicInteger(1);
-		lutLabels.forEach(lutValue -> {
-			if (lutValue == 0) {
-				lutLut.put(0, 0);
-			} else {
-			  lutLut.put(lutValue, value.getAndIncrement());
-			}
-		});
-
-		// lutLut now contains mapping from the old lut value (the lutLut 'key') to the
-		// new lut value (lutLut 'value')
-		for (Map.Entry<Integer, Integer> pair : lutMap.entrySet()) {
-			Integer oldLutValue = pair.getValue();
-			Integer newLutValue = lutLut.get(oldLutValue);
-			pair.setValue(newLutValue);
-		}
-
-		// translate the HashMap LUT to a chunkwise LUT, to be used in combination
-		// with the IDoffsets.
-		final int nChunks = chunkIDOffsets.length;
-		int[][] lut = new int[nChunks][];
-		for (int chunk = 0; chunk < nChunks; chunk++) {
-			final int nChunkLabels = chunkMaps.get(chunk).size();
-			final int IDoffset = chunkIDOffsets[chunk];
-			int[] chunkLut = new int[nChunkLabels];
-			for (int i = 0; i < nChunkLabels; i++) {
-				chunkLut[i] = lutMap.get(i + IDoffset);
-			}
-			lut[chunk] = chunkLut;
-		}
-		return lut;
+		return joins;
 	}
 
 	/**
 	 * Apply the LUT in multiple threads
 	 * 
+	 * @param scheduler chunk scheduler
 	 * @param particleLabels label array
 	 * @param lut label LUT
 	 * @param chunkIDOffsets ID offsets 
 	 * @param startSlices start slices per chunk
 	 * @param d image depth
 	 */
-	private static void applyLUT(final int[][] particleLabels, final int[][] lut, final int[] chunkIDOffsets,
-			final int[] startSlices, final int d) {
+	private static void applyLUT(final ChunkScheduler scheduler, final int[][] particleLabels, final int[][] lut,
+			final int[] chunkIDOffsets, final int[] startSlices, final int d) {
 		final int nChunks = chunkIDOffsets.length;
-
-		final Thread[] threads = new Thread[nChunks];
-		for (int thread = 0; thread < nChunks; thread++) {
-			final int chunk = thread;
-			threads[thread] = new Thread(() -> {
-				final int startSlice = startSlices[chunk];
-				final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : d - 1;
-				final int IDoffset = chunkIDOffsets[chunk];
-				final int[] chunkLut = lut[chunk];
-				for (int z = startSlice; z <= endSlice; z++) {
-					final int[] slice = particleLabels[z];
-					final int l = slice.length;
-					for (int i = 0; i < l; i++) {
-						final int label = slice[i];
-						if (label == 0)
-							continue;
-						slice[i] = chunkLut[label - IDoffset];
-					}
+		scheduler.invokeAll(nChunks, chunk -> {
+			final int startSlice = startSlices[chunk];
+			final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : d - 1;
+			final int IDoffset = chunkIDOffsets[chunk];
+			final int[] chunkLut = lut[chunk];
+			for (int z = startSlice; z <= endSlice; z++) {
+				final int[] slice = particleLabels[z];
+				final int l = slice.length;
+				for (int i = 0; i < l; i++) {
+					final int label = slice[i];
+					if (label == 0)
+						continue;
+					slice[i] = chunkLut[label - IDoffset];
 				}
-			});
-		}
-		Multithreader.startAndJoin(threads);
+			}
+		});
 	}
 
 	/**
-	 * Add all the neighbouring labels of a pixel to the map, except 0 (background)
-	 * and the pixel's own label, which is already in the map.
-	 * 
-	 * This chunked version of the map stores label IDs ('centre') in the HashSet
-	 * and uses label ID minus per chunk ID offset as the List index.
+	 * Join all the neighbouring labels of a pixel to the pixel's label in the
+	 * label forest, except 0 (background) and the pixel's own label.
 	 * 
-	 * In this version the non-zero neighbours' labels are always bigger than the
-	 * centre, so the centre value is added to the neighbours' map indices.
+	 * All the non-zero neighbours' labels belong to the same chunk as the centre.
 	 *
-	 * @param map      a map of LUT values.
+	 * @param forest   label forest
 	 * @param nbh      a neighbourhood in the image.
 	 * @param centre   current pixel's label (with offset)
-	 * @param IDoffset chunk's ID offset
 	 */
-	private static void addNeighboursToMap(final List<IntHashSet> map, final int[] nbh, final int centre,
-			final int IDoffset) {
+	private static void joinNeighbours(final UnionFind forest, final int[] nbh, final int centre) {
 
 		int lastNonZero = -1;
 		for (final int val : nbh) {
-			// skip background, self-similar, and the last label added
-			// adding them again is a redundant waste of time
+			// skip background, self-similar, and the last label joined
+			// joining them again is a redundant waste of time
 			if (val == 0 || val == centre || val == lastNonZero)
 				continue;
-			map.get(val - IDoffset).add(centre);
+			forest.union(centre, val);
 			lastNonZero = val;
 		}
 	}
 
 	/**
-	 * Add all the neighbouring labels of a pixel to the map, except 0 (background).
-	 * The LUT gets updated with the minimum neighbour found, but this is only
-	 * within the first neighbours and not the minimum label in the pixel's
-	 * neighbour network
+	 * Record the joins between a pixel's label and its neighbours in the previous
+	 * chunk, except 0 (background). Labels are added to the list in pairs.
 	 *
-	 * @param map    a map of LUT values.
+	 * @param joins  list of label pairs to be joined
 	 * @param nbh    a neighbourhood in the image.
-	 * @param centre current pixel's map index (label - IDoffset)
+	 * @param centre current pixel's label (with offset)
 	 */
-	private static void addChunkNeighboursToMap(final List<IntHashSet> map, final int[] nbh, final int centre) {
-		final IntHashSet set = map.get(centre);
+	private static void addChunkNeighbourJoins(final IntArrayList joins, final int[] nbh, final int centre) {
 		int lastNonZero = -1;
 		for (final int val : nbh) {
 			// skip background
 			// and the last non-zero value (already added)
 			if (val == 0 || val == lastNonZero)
 				continue;
-			set.add(val);
+			joins.add(centre);
+			joins.add(val);
 			lastNonZero = val;
 		}
 	}
@@ -946,27 +882,6 @@ public class ConnectedComponents {
 		return minTag;
 	}
 
-	/**
-	 * Increase the length of the list of label HashSets to accommodate the full
-	 * range of IDs
-	 * 
-	 * @param map Single chunk's list of label buckets
-	 * @param ID current ID value
-	 * @param IDoffset this chunk's ID offset
-	 * @param nextIDOffset ID offset of the next chunk
-	 */
-	private static void expandMap(final List<IntHashSet> map, final int ID,
-			final int IDoffset, final int nextIDOffset) {
-		if (ID >= nextIDOffset) {
-			throw new IllegalArgumentException("ID "+ID+" is greater than the allowed range (max "+(nextIDOffset-1)+")");
-		}
-		while (ID - IDoffset >= map.size()) {
-			final IntHashSet set = new IntHashSet();
-			set.add(map.size() + IDoffset);
-			map.add(set);
-		}
-	}
-
 	/**
 	 * @return number of particles in the image
 	 */
@@ -981,4 +896,120 @@ public class ConnectedComponents {
 		return workArray;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Result of a connected components labelling: the particle labels, the number
+	 * of particles and the binary work array that was labelled.
+	 */
+	public static final class Labelling {
+
+		private final int[][] particleLabels;
+		private final int nParticles;
+		private final byte[][] workArray;
+		private final ChunkTimings chunkTimings;
+
+		Labelling(final int[][] particleLabels, final int nParticles, final byte[][] workArray,
+				final ChunkTimings chunkTimings) {
+			this.particleLabels = particleLabels;
+			this.nParticles = nParticles;
+			this.workArray = workArray;
+			this.chunkTimings = chunkTimings;
+		}
+
+		/**
+		 * @return 2D int array with the same dimensions as the input image, with
+		 *         individual connected components labelled with a unique, consecutive
+		 *         label.
+		 */
+		public int[][] getParticleLabels() {
+			return particleLabels;
+		}
+
+		/**
+		 * @return number of particles in the image, including the 0 label
+		 */
+		public int getNParticles() {
+			return nParticles;
+		}
+
+		/**
+		 * @return binary work array containing foreground and background pixels
+		 */
+		public byte[][] getWorkArray() {
+			return workArray;
+		}
+
+		/**
+		 * @return how the image was split into chunks and how long each chunk took
+		 */
+		public ChunkTimings getChunkTimings() {
+			return chunkTimings;
+		}
+	}
+
+	/**
+	 * The slabs a labelling was split into, and the time each slab took in the
+	 * first labelling pass and in the stitching pass, to measure load imbalance.
+	 */
+	public static final class ChunkTimings {
+
+		private final int[] startSlices;
+		private final long[] phaseCounts;
+		private final long[] labellingTimes;
+		private final long[] stitchingTimes;
+
+		ChunkTimings(final int[] startSlices, final long[] phaseCounts, final long[] labellingTimes,
+				final long[] stitchingTimes) {
+			this.startSlices = startSlices;
+			this.phaseCounts = phaseCounts;
+			this.labellingTimes = labellingTimes;
+			this.stitchingTimes = stitchingTimes;
+		}
+
+		/**
+		 * @return number of chunks
+		 */
+		public int getNChunks() {
+			return startSlices.length;
+		}
+
+		/**
+		 * @return first slice (0-based) of each chunk
+		 */
+		public int[] getStartSlices() {
+			return startSlices.clone();
+		}
+
+		/**
+		 * @return number of pixels of the labelled phase in each chunk
+		 */
+		public long[] getPhaseCounts() {
+			return phaseCounts.clone();
+		}
+
+		/**
+		 * @return time spent labelling each chunk in the first pass, in nanoseconds
+		 */
+		public long[] getLabellingTimes() {
+			return labellingTimes.clone();
+		}
+
+		/**
+		 * @return time spent stitching each chunk to the previous chunk, in
+		 *         nanoseconds
+		 */
+		public long[] getStitchingTimes() {
+			return stitchingTimes.clone();
+		}
+
+		/**
+		 * Write the timings of each chunk to the ImageJ log
+		 */
+		void log() {
+			for (int chunk = 0; chunk < startSlices.length; chunk++) {
+				IJ.log("Chunk " + chunk + ": start slice = " + startSlices[chunk] + ", pixels = " + phaseCounts[chunk]
+						+ ", labelling = " + labellingTimes[chunk] / 1000000 + " ms, stitching = "
+						+ stitchingTimes[chunk] / 1000000 + " ms");
+			}
+		}
+	}
+}
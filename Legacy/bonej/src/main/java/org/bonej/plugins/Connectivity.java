@@ -23,7 +23,10 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package org.bonej.plugins;
 
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bonej.util.ImageCheck;
 import org.bonej.util.Multithreader;
@@ -32,6 +35,7 @@ import org.bonej.util.ResultInserter;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.macro.Interpreter;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
@@ -60,6 +64,10 @@ import ij.plugin.PlugIn;
  * <li>Calculate connectivity as &#946;<sub>1</sub> = 1 - &#916;&#967;</li>
  * <li>Calculate connectivity density as &#946;<sub>1</sub> / V</li>
  * </ol>
+ * <p>
+ * Virtual stacks are read a slice at a time, so images larger than memory can
+ * be measured.
+ * </p>
  *
  * @author Michael Doube
  *
@@ -95,6 +103,28 @@ import ij.plugin.PlugIn;
 public class Connectivity implements PlugIn {
 
 	private final static int[] EULER_LUT = fillEulerLUT();
+
+	/**
+	 * Euler LUT value of each octant, indexed by a bit per foreground voxel: bit
+	 * i - 1 is set when element i of the octant that {@link #getDeltaEuler}
+	 * takes is foreground
+	 */
+	private final static int[] OCTANT_LUT = fillOctantLUT();
+
+	/** indices of the foreground voxel counts of the edge correction */
+	private static final int STACK_VERTICES = 0;
+	private static final int STACK_EDGES = 1;
+	private static final int STACK_FACES = 2;
+	private static final int EDGE_VERTICES = 3;
+	private static final int FACE_VERTICES = 4;
+	private static final int FACE_EDGES = 5;
+	private static final int N_EDGE_COUNTS = 6;
+
+	/** number of slices of a virtual stack to read ahead of the Euler sum */
+	private static final int READ_AHEAD_SLICES = 4;
+
+	/** marks a virtual stack whose slices could not all be read */
+	private static final byte[] END_OF_STACK = new byte[0];
 	
 	/** working image width */
 	private int width = 0;
@@ -113,9 +143,12 @@ public class Connectivity implements PlugIn {
 			return;
 		}
 
-		final double sumEuler = getSumEuler(imp);
+		// one read of the stack for both the Euler sum and its edge correction
+		final double[] eulerAndCorrection = getEulerAndEdgeCorrection(imp, true,
+			true);
+		final double sumEuler = eulerAndCorrection[0];
 
-		final double deltaChi = getDeltaChi(imp, sumEuler);
+		final double deltaChi = sumEuler - eulerAndCorrection[1];
 
 		final double connectivity = getConnectivity(deltaChi);
 
@@ -149,7 +182,7 @@ public class Connectivity implements PlugIn {
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
 		final double vD = cal.pixelDepth;
-		final double stackVolume = width * height * depth * vW * vH * vD;
+		final double stackVolume = (double) width * height * depth * vW * vH * vD;
 		final double connDensity = connectivity / stackVolume;
 		return connDensity;
 	}
@@ -176,8 +209,8 @@ public class Connectivity implements PlugIn {
 	 * @return delta Chi
 	 */
 	public double getDeltaChi(final ImagePlus imp, final double sumEuler) {
-		setDimensions(imp);
-		final double deltaChi = sumEuler - correctForEdges(imp.getStack());
+		final double deltaChi = sumEuler - getEulerAndEdgeCorrection(imp, false,
+			true)[1];
 		return deltaChi;
 	}
 
@@ -189,108 +222,241 @@ public class Connectivity implements PlugIn {
 	 * @return Euler characteristic of the foreground particles
 	 */
 	public double getSumEuler(final ImagePlus imp) {
+		return getEulerAndEdgeCorrection(imp, true, false)[0];
+	}
+
+	/**
+	 * Calculate the Euler characteristic of the foreground and its correction
+	 * for the stack's edges, or either of them, in one multithreaded pass
+	 * through the stack's slices.
+	 *
+	 * @param imp Binary ImagePlus
+	 * @param doSumEuler true to calculate the Euler characteristic
+	 * @param doEdgeCorrection true to calculate the edge correction
+	 * @return Euler characteristic of the foreground particles and the edge
+	 *         correction to subtract from it, each 0 if not calculated
+	 */
+	private double[] getEulerAndEdgeCorrection(final ImagePlus imp,
+		final boolean doSumEuler, final boolean doEdgeCorrection)
+	{
 		setDimensions(imp);
 		final ImageStack stack = imp.getImageStack();
-
-		final int[] sumEulerInt = new int[depth + 1];
+		if (stack.isVirtual()) return getStreamedEulerAndEdgeCorrection(stack,
+			doSumEuler, doEdgeCorrection);
+		final byte[][] slices = new byte[depth][];
+		for (int z = 0; z < depth; z++)
+			slices[z] = (byte[]) stack.getPixels(z + 1);
+		// stands in for the slices and rows outside the image
+		final byte[] blank = new byte[width * height];
 
 		final AtomicInteger ai = new AtomicInteger(0);
 		final Thread[] threads = Multithreader.newThreads();
+		final long[] threadSums = new long[threads.length];
+		final long[][] threadCounts = new long[threads.length][N_EDGE_COUNTS];
 		for (int thread = 0; thread < threads.length; thread++) {
+			final int t = thread;
 			threads[thread] = new Thread(new Runnable() {
 				@Override
 				public void run() {
+					long sum = 0;
 					for (int z = ai.getAndIncrement(); z <= depth; z = ai.getAndIncrement()) {
-						for (int y = 0; y <= height; y++) {
-							for (int x = 0; x <= width; x++) {
-								final byte[] octant = getOctant(stack, x, y, z);
-								if (octant[0] == 0)
-									continue;
-								sumEulerInt[z] += getDeltaEuler(octant);
+						final byte[] above = z > 0 ? slices[z - 1] : blank;
+						final byte[] below = z < depth ? slices[z] : blank;
+						if (doSumEuler) {
+							for (int y = 0; y <= height; y++) {
+								sum += getRowSumEuler(above, below, blank, y);
 							}
 						}
+						if (doEdgeCorrection && z < depth) {
+							countEdgeVoxels(below, z > 0 ? above : null, z,
+								threadCounts[t]);
+						}
 					}
+					threadSums[t] = sum;
 				}
 			});
 		}
 		Multithreader.startAndJoin(threads);
-		double sumEuler = Arrays.stream(sumEulerInt).sum();
-
+		double sumEuler = Arrays.stream(threadSums).sum();
 		sumEuler /= 8;
-		return sumEuler;
-	}
 
-	private void setDimensions(final ImagePlus imp) {
-		this.width = imp.getWidth();
-		this.height = imp.getHeight();
-		this.depth = imp.getStackSize();
-		return;
+		final long[] counts = new long[N_EDGE_COUNTS];
+		for (final long[] threadCount : threadCounts) {
+			for (int i = 0; i < N_EDGE_COUNTS; i++)
+				counts[i] += threadCount[i];
+		}
+		final double edgeCorrection = doEdgeCorrection ? correctForEdges(counts)
+			: 0;
+		return new double[] { sumEuler, edgeCorrection };
 	}
 
-	/*
-	 * -----------------------------------------------------------------------
-	 */
 	/**
-	 * Get octant of a vertex at (0,0,0) of a voxel (upper top left) in a 3D
-	 * image (0 border conditions)
+	 * Calculate the Euler characteristic and edge correction of a virtual stack,
+	 * holding only two adjacent slices and a few read-ahead slices in memory. A
+	 * reader thread loads the slices in order while the vertices between the
+	 * previous pair are summed, so stacks much larger than the heap can be
+	 * measured. The rows of each slice pair are summed in bands by one set of
+	 * worker threads, which is kept for the whole stack.
 	 *
-	 * @param stack
-	 *            3D image (ImageStack)
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 8-pixel octant (0 if out of image)
+	 * @param stack virtual stack, dimensions as set by setDimensions()
+	 * @param doSumEuler true to calculate the Euler characteristic
+	 * @param doEdgeCorrection true to calculate the edge correction
+	 * @return as {@link #getEulerAndEdgeCorrection}
 	 */
-	private byte[] getOctant(final ImageStack stack, final int x, final int y, final int z) {
-		final byte[] octant = new byte[9];
-		
-		final int x1 = x - 1;
-		final int y1 = y - 1;
-		final int z1 = z - 1;
-
-		octant[1] = getPixel(stack, x1, y1, z1);
-		octant[2] = getPixel(stack, x1, y, z1);
-		octant[3] = getPixel(stack, x, y1, z1);
-		octant[4] = getPixel(stack, x, y, z1);
-		octant[5] = getPixel(stack, x1, y1, z);
-		octant[6] = getPixel(stack, x1, y, z);
-		octant[7] = getPixel(stack, x, y1, z);
-		octant[8] = getPixel(stack, x, y, z);
-		
-		for (int i = 1; i < 9; i++)
-			if (octant[i] != 0) {
-				octant[0] = 1;
-				break;
+	private double[] getStreamedEulerAndEdgeCorrection(final ImageStack stack,
+		final boolean doSumEuler, final boolean doEdgeCorrection)
+	{
+		final byte[] blank = new byte[width * height];
+		final BlockingQueue<byte[]> readAhead = new ArrayBlockingQueue<>(
+			READ_AHEAD_SLICES);
+		final AtomicReference<Throwable> readError = new AtomicReference<>();
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean abandoned = false;
+				int z = 1;
+				try {
+					for (; z <= depth; z++) {
+						final byte[] slice = (byte[]) stack.getPixels(z);
+						if (slice == null) break;
+						readAhead.put(slice);
+					}
+				}
+				catch (final InterruptedException ie) {
+					// the sum was abandoned, so stop reading
+					abandoned = true;
+				}
+				catch (final Throwable t) {
+					readError.set(t);
+				}
+				finally {
+					// always wake the summing thread if the stack was not read
+					if (!abandoned && z <= depth) {
+						try {
+							readAhead.put(END_OF_STACK);
+						}
+						catch (final InterruptedException ie) {
+							// the sum was abandoned
+						}
+					}
+				}
 			}
+		});
+		reader.start();
+
+		long sum = 0;
+		final long[] counts = new long[N_EDGE_COUNTS];
+		try (final ChunkScheduler scheduler = new ChunkScheduler(Prefs
+			.getThreads()))
+		{
+			// split the rows of vertices into bands of equal size
+			final long[] rowWeights = new long[height + 1];
+			Arrays.fill(rowWeights, 1);
+			final int[] startRows = scheduler.split(rowWeights);
+			byte[] above = blank;
+			for (int z = 0; z <= depth; z++) {
+				final byte[] below = z < depth ? readAhead.take() : blank;
+				if (below == END_OF_STACK) {
+					final Throwable cause = readError.get();
+					if (cause instanceof Error) throw (Error) cause;
+					throw new RuntimeException("Could not read slice " + (z + 1), cause);
+				}
+				if (doSumEuler) sum += getSlicePairSumEuler(scheduler, startRows,
+					above, below, blank);
+				if (doEdgeCorrection && z < depth) {
+					countEdgeVoxels(below, z > 0 ? above : null, z, counts);
+				}
+				above = below;
+				IJ.showProgress(z, depth);
+			}
+		}
+		catch (final InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+		finally {
+			reader.interrupt();
+		}
 
-		return octant;
-	} /* end getNeighborhood */
+		final double sumEuler = sum / 8.0;
+		final double edgeCorrection = doEdgeCorrection ? correctForEdges(counts)
+			: 0;
+		return new double[] { sumEuler, edgeCorrection };
+	}
 
-	/*
-	 * -----------------------------------------------------------------------
+	/**
+	 * Sum the Euler LUT values of the vertices between two adjacent slices,
+	 * sharing bands of rows between the scheduler's threads.
+	 *
+	 * @param scheduler worker threads
+	 * @param startRows first row of vertices of each band, in ascending order
+	 * @param above slice before the vertices (blank if outside the image)
+	 * @param below slice after the vertices (blank if outside the image)
+	 * @param blank background slice
+	 * @return 8 times the contribution of the vertices to the Euler
+	 *         characteristic
 	 */
+	private long getSlicePairSumEuler(final ChunkScheduler scheduler,
+		final int[] startRows, final byte[] above, final byte[] below,
+		final byte[] blank)
+	{
+		final int nBands = startRows.length;
+		final long[] bandSums = new long[nBands];
+		scheduler.invokeAll(nBands, band -> {
+			final int endRow = band + 1 < nBands ? startRows[band + 1] : height + 1;
+			long sum = 0;
+			for (int y = startRows[band]; y < endRow; y++) {
+				sum += getRowSumEuler(above, below, blank, y);
+			}
+			bandSums[band] = sum;
+		});
+		return Arrays.stream(bandSums).sum();
+	}
+
 	/**
-	 * Get pixel in 3D image stack (0 border conditions)
+	 * Sum the Euler LUT values of the vertices along one row, sliding a 2 x 2 x
+	 * 2 window of pixels along x.
 	 *
-	 * @param stack
-	 *            3D image
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * @param above slice before the vertices (blank if outside the image)
+	 * @param below slice after the vertices (blank if outside the image)
+	 * @param blank background slice
+	 * @param y y-coordinate of the vertices
+	 * @return 8 times the row's contribution to the Euler characteristic
 	 */
-	private byte getPixel(final ImageStack stack, final int x, final int y, final int z) {
-		if (x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return ((byte[]) stack.getPixels(z + 1))[y * this.width + x];
+	private long getRowSumEuler(final byte[] above, final byte[] below,
+		final byte[] blank, final int y)
+	{
+		// rows y - 1 and y of each slice, or 0 border rows
+		final boolean hasPrevRow = y > 0;
+		final boolean hasRow = y < height;
+		final byte[] abovePrev = hasPrevRow ? above : blank;
+		final byte[] aboveRow = hasRow ? above : blank;
+		final byte[] belowPrev = hasPrevRow ? below : blank;
+		final byte[] belowRow = hasRow ? below : blank;
+		final int prevOffset = hasPrevRow ? (y - 1) * width : 0;
+		final int rowOffset = hasRow ? y * width : 0;
+		long sum = 0;
+		// octant bits of the window's x - 1 column
+		int left = 0;
+		for (int x = 0; x <= width; x++) {
+			int right = 0;
+			if (x < width) {
+				right = (abovePrev[prevOffset + x] == -1 ? 1 : 0) | //
+					(aboveRow[rowOffset + x] == -1 ? 2 : 0) | //
+					(belowPrev[prevOffset + x] == -1 ? 16 : 0) | //
+					(belowRow[rowOffset + x] == -1 ? 32 : 0);
+			}
+			sum += OCTANT_LUT[left | right << 2];
+			left = right;
+		}
+		return sum;
+	}
 
-		return 0;
-	} /* end getPixel */
+	private void setDimensions(final ImagePlus imp) {
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.depth = imp.getStackSize();
+		return;
+	}
 
 	/**
 	 * Get delta euler value for an octant (~= vertex) from look up table
@@ -305,7 +471,7 @@ public class Connectivity implements PlugIn {
 	 *            voxel values
 	 * @return or false if the point is Euler invariant or not
 	 */
-	private int getDeltaEuler(final byte[] octant) {
+	static int getDeltaEuler(final byte[] octant) {
 		if (octant[0] == 0)
 			return 0;
 		
@@ -359,335 +525,176 @@ public class Connectivity implements PlugIn {
 
 	/*------------------------------------------------------------------------*/
 	/**
-	 * Check all vertices of stack and count if foreground (-1) this is &#967;
-	 * <sub>0</sub> from Odgaard and Gundersen (1993) and <i>f</i> in my working
+	 * Add one slice's foreground voxels on the stack's vertices, edges and
+	 * faces to the counts that make up the edge correction. Only the first and
+	 * last slices are read in full; other slices are read around their borders.
+	 * Counts that look at voxel edges along z take each voxel together with the
+	 * one in the previous slice.
 	 *
-	 * @param stack
-	 * @return number of voxel vertices intersecting with stack vertices
+	 * @param slice pixels of slice z
+	 * @param prev pixels of slice z - 1, or null if z is 0
+	 * @param z index of the slice, from 0
+	 * @param counts counts to add to, indexed by STACK_VERTICES etc.
 	 */
-	private long getStackVertices(final ImageStack stack) {
-		long nStackVertices = 0;
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
+	private void countEdgeVoxels(final byte[] slice, final byte[] prev,
+		final int z, final long[] counts)
+	{
+		final int w1 = width - 1;
+		final int h1 = height - 1;
+		final int d1 = depth - 1;
+		final int xInc = Math.max(1, w1);
+		final int yInc = Math.max(1, h1);
+		final boolean isEndSlice = z == 0 || z == d1;
+		final boolean isInnerSlice = z > 0 && z < d1;
 
-		for (int z = 0; z < depth; z += zInc) {
+		if (isEndSlice) {
+			// stack vertices, f in my working
 			for (int y = 0; y < height; y += yInc) {
 				for (int x = 0; x < width; x += xInc) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackVertices++;
+					if (isForeground(slice, x, y)) counts[STACK_VERTICES]++;
 				}
 			}
-		}
-
-		return nStackVertices;
-	}/* end getStackVertices */
 
-	/**
-	 * Count the number of foreground voxels on edges of stack, this is part of
-	 * &#967;<sub>1</sub> (<i>e</i> in my working)
-	 *
-	 * @param stack
-	 * @return number of voxel edges intersecting with stack edges
-	 */
-	private long getStackEdges(final ImageStack stack) {
-		long nStackEdges = 0;
-		
-		final int w1 = width - 1;
-		final int h1 = height - 1;
-		final int d1 = depth -1;
-		
-		final int xInc = Math.max(1, w1);
-		final int yInc = Math.max(1, h1);
-		final int zInc = Math.max(1, d1);
-		
-		// left to right stack edges
-		for (int z = 0; z < depth; z += zInc) {
+			// stack edges along x and y, part of e
 			for (int y = 0; y < height; y += yInc) {
 				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
+					if (isForeground(slice, x, y)) counts[STACK_EDGES]++;
 				}
 			}
-		}
-
-		// back to front stack edges
-		for (int z = 0; z < depth; z += zInc) {
 			for (int x = 0; x < width; x += xInc) {
 				for (int y = 1; y < h1; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
+					if (isForeground(slice, x, y)) counts[STACK_EDGES]++;
 				}
 			}
-		}
-
-		// top to bottom stack edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int x = 0; x < width; x += xInc) {
-				for (int z = 1; z < d1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-		}
-		return nStackEdges;
-	}/* end getStackEdges */
-
-	/*---------------------------------------------------------------------*/
-	/**
-	 * Count the number of foreground voxel faces intersecting with stack faces
-	 * This is part of &#967;<sub>2</sub> and is <i>c</i> in my working
-	 *
-	 * @param stack
-	 * @return number of voxel faces intersecting with stack faces
-	 */
-	private long getStackFaces(final ImageStack stack) {
-		
-		final int w1 = width - 1;
-		final int h1 = height - 1;
-		final int d1 = depth -1;
-		
-		final int xInc = Math.max(1, w1);
-		final int yInc = Math.max(1, h1);
-		final int zInc = Math.max(1, d1);
-		long nStackFaces = 0;
 
-		// top and bottom faces
-		for (int z = 0; z < depth; z += zInc) {
+			// top and bottom stack faces, part of c
 			for (int y = 1; y < h1; y++) {
 				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
+					if (isForeground(slice, x, y)) counts[STACK_FACES]++;
 				}
 			}
-		}
 
-		// back and front faces
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 1; z < d1; z++) {
-				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
+			// voxel vertices on stack edges along x and y, part of d
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 1; x < width; x++) {
+					if (isForeground(slice, x, y) || isForeground(slice, x - 1, y))
+						counts[EDGE_VERTICES]++;
 				}
 			}
-		}
-
-		// left and right faces
-		for (int x = 0; x < width; x += xInc) {
-			for (int y = 1; y < h1; y++) {
-				for (int z = 1; z < d1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
+			for (int x = 0; x < width; x += xInc) {
+				for (int y = 1; y < height; y++) {
+					if (isForeground(slice, x, y) || isForeground(slice, x, y - 1))
+						counts[EDGE_VERTICES]++;
 				}
 			}
-		}
-		return nStackFaces;
-	}/* end getStackFaces */
 
-	/**
-	 * Count the number of voxel vertices intersecting stack faces. This
-	 * contributes to &#967;<sub>2</sub> (<i>a</i> in my working)
-	 *
-	 * @param stack
-	 * @return Number of voxel vertices intersecting stack faces
-	 */
-	private long getFaceVertices(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nFaceVertices = 0;
-
-		// top and bottom faces (all 4 edges)
-		for (int z = 0; z < depth; z += zInc) {
+			// voxel vertices and edges on top and bottom stack faces, part of a
+			// and b
 			for (int y = 0; y <= height; y++) {
 				for (int x = 0; x <= width; x++) {
 					// if the voxel or any of its neighbours are foreground, the
 					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
-				}
-			}
-		}
-
-		// left and right faces (2 vertical edges)
-		for (int x = 0; x < width; x += xInc) {
-			for (int y = 0; y <= height; y++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
+					if (isForeground(slice, x, y) || isForeground(slice, x, y - 1) ||
+						isForeground(slice, x - 1, y - 1) || isForeground(slice, x - 1, y))
+						counts[FACE_VERTICES]++;
+					// check 2 edges per voxel
+					if (isForeground(slice, x, y)) counts[FACE_EDGES] += 2;
+					else {
+						if (isForeground(slice, x, y - 1)) counts[FACE_EDGES]++;
+						if (isForeground(slice, x - 1, y)) counts[FACE_EDGES]++;
+					}
 				}
 			}
 		}
 
-		// back and front faces (0 vertical edges)
-		for (int y = 0; y < height; y += yInc) {
-			for (int x = 1; x < width; x++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
+		if (isInnerSlice) {
+			// stack edges along z, part of e
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 0; x < width; x += xInc) {
+					if (isForeground(slice, x, y)) counts[STACK_EDGES]++;
 				}
 			}
-		}
-		return nFaceVertices;
-	}/* end getFaceVertices */
 
-	/**
-	 * Count the number of intersections between voxel edges and stack faces.
-	 * This is part of &#967;<sub>2</sub>, in my working it's called <i>b</i>
-	 *
-	 * @param stack
-	 * @return number of intersections between voxel edges and stack faces
-	 */
-	private long getFaceEdges(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nFaceEdges = 0;
-
-		// top and bottom faces (all 4 edges)
-		// check 2 edges per voxel
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y <= height; y++) {
-				for (int x = 0; x <= width; x++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1) {
-						nFaceEdges += 2;
-					} else {
-						if (getPixel(stack, x, y - 1, z) == -1) {
-							nFaceEdges++;
-						}
-						if (getPixel(stack, x - 1, y, z) == -1) {
-							nFaceEdges++;
-						}
-					}
+			// back and front, left and right stack faces, part of c
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 1; x < w1; x++) {
+					if (isForeground(slice, x, y)) counts[STACK_FACES]++;
 				}
 			}
-		}
-
-		// back and front faces, horizontal edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 1; z < depth; z++) {
-				for (int x = 0; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
+			for (int x = 0; x < width; x += xInc) {
+				for (int y = 1; y < h1; y++) {
+					if (isForeground(slice, x, y)) counts[STACK_FACES]++;
 				}
 			}
 		}
 
-		// back and front faces, vertical edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 0; z < depth; z++) {
-				for (int x = 0; x <= width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceEdges++;
+		if (prev != null) {
+			// voxel vertices on stack edges along z, part of d
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 0; x < width; x += xInc) {
+					if (isForeground(slice, x, y) || isForeground(prev, x, y))
+						counts[EDGE_VERTICES]++;
 				}
 			}
-		}
 
-		// left and right stack faces, horizontal edges
-		for (int x = 0; x < width; x += xInc) {
-			for (int z = 1; z < depth; z++) {
-				for (int y = 0; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
+			// voxel vertices on left and right stack faces, part of a
+			for (int x = 0; x < width; x += xInc) {
+				for (int y = 0; y <= height; y++) {
+					if (isForeground(slice, x, y) || isForeground(slice, x, y - 1) ||
+						isForeground(prev, x, y - 1) || isForeground(prev, x, y))
+						counts[FACE_VERTICES]++;
 				}
 			}
-		}
 
-		// left and right stack faces, vertical voxel edges
-		for (int x = 0; x < width; x += xInc) {
-			for (int z = 0; z < depth; z++) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceEdges++;
+			// voxel vertices on back and front stack faces, part of a
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 1; x < width; x++) {
+					if (isForeground(slice, x, y) || isForeground(prev, x, y) ||
+						isForeground(prev, x - 1, y) || isForeground(slice, x - 1, y))
+						counts[FACE_VERTICES]++;
 				}
 			}
-		}
-		return nFaceEdges;
-	}/* end getFaceEdges */
 
-	/*-------------------------------------------------------------------------*/
-	/**
-	 * Count number of voxel vertices intersecting stack edges. It contributes
-	 * to &#967;<sub>1</sub>, and I call it <i>d</i> in my working
-	 *
-	 * @param stack
-	 * @return number of voxel vertices intersecting stack edges
-	 */
-	private long getEdgeVertices(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nEdgeVertices = 0;
-
-		// left->right edges
-		for (int z = 0; z < depth; z += zInc) {
+			// horizontal voxel edges on back and front, left and right stack
+			// faces, part of b
 			for (int y = 0; y < height; y += yInc) {
-				for (int x = 1; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nEdgeVertices++;
+				for (int x = 0; x < width; x++) {
+					if (isForeground(slice, x, y) || isForeground(prev, x, y))
+						counts[FACE_EDGES]++;
 				}
 			}
-		}
-
-		// back->front edges
-		for (int z = 0; z < depth; z += zInc) {
 			for (int x = 0; x < width; x += xInc) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nEdgeVertices++;
+				for (int y = 0; y < height; y++) {
+					if (isForeground(slice, x, y) || isForeground(prev, x, y))
+						counts[FACE_EDGES]++;
 				}
 			}
 		}
 
-		// top->bottom edges
+		// vertical voxel edges on back and front, left and right stack faces,
+		// part of b
+		for (int y = 0; y < height; y += yInc) {
+			for (int x = 0; x <= width; x++) {
+				if (isForeground(slice, x, y) || isForeground(slice, x - 1, y))
+					counts[FACE_EDGES]++;
+			}
+		}
 		for (int x = 0; x < width; x += xInc) {
-			for (int y = 0; y < height; y += yInc) {
-				for (int z = 1; z < depth; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nEdgeVertices++;
-				}
+			for (int y = 1; y < height; y++) {
+				if (isForeground(slice, x, y) || isForeground(slice, x, y - 1))
+					counts[FACE_EDGES]++;
 			}
 		}
-		return nEdgeVertices;
-	}/* end getEdgeVertices */
+	}
+
+	/**
+	 * Check whether a pixel of a slice is foreground (-1), with 0 border
+	 * conditions in x and y
+	 */
+	private boolean isForeground(final byte[] slice, final int x, final int y) {
+		return x >= 0 && x < width && y >= 0 && y < height &&
+			slice[y * width + x] == -1;
+	}
 
 	/*----------------------------------------------------------------------*/
 	/**
@@ -708,17 +715,17 @@ public class Connectivity implements PlugIn {
 	 * connectivity
 	 * </p>
 	 *
-	 * @param stack
+	 * @param counts foreground voxel counts from countEdgeVoxels()
 	 * @return edgeCorrection for subtraction from the stack's Euler number
 	 */
-	private double correctForEdges(final ImageStack stack) {
+	private static double correctForEdges(final long[] counts) {
 
-		final long f = getStackVertices(stack);
-		final long e = getStackEdges(stack) + 3 * f;
-		final long c = getStackFaces(stack) + 2 * e - 3 * f;
-		final long d = getEdgeVertices(stack) + f;
-		final long a = getFaceVertices(stack);
-		final long b = getFaceEdges(stack);
+		final long f = counts[STACK_VERTICES];
+		final long e = counts[STACK_EDGES] + 3 * f;
+		final long c = counts[STACK_FACES] + 2 * e - 3 * f;
+		final long d = counts[EDGE_VERTICES] + f;
+		final long a = counts[FACE_VERTICES];
+		final long b = counts[FACE_EDGES];
 
 		final double chiZero = f;
 		final double chiOne = (double) d - (double) e;
@@ -729,6 +736,25 @@ public class Connectivity implements PlugIn {
 		return edgeCorrection;
 	}/* end correctForEdges */
 
+	/*
+	 * -----------------------------------------------------------------------
+	 */
+	/**
+	 * Fill the octant LUT from {@link #getDeltaEuler}, so that a vertex's Euler
+	 * value can be looked up from its voxels' bits without decoding the octant.
+	 */
+	private static int[] fillOctantLUT() {
+		final int[] lut = new int[256];
+		final byte[] octant = new byte[9];
+		for (int index = 1; index < 256; index++) {
+			octant[0] = 1;
+			for (int i = 1; i < 9; i++)
+				octant[i] = (index & 1 << (i - 1)) != 0 ? (byte) -1 : 0;
+			lut[index] = getDeltaEuler(octant);
+		}
+		return lut;
+	}
+
 	/*
 	 * -----------------------------------------------------------------------
 	 */
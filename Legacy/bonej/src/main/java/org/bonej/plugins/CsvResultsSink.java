@@ -0,0 +1,232 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+/**
+ * Writes rows of measurements to a CSV file as they are added, instead of
+ * keeping them all in a {@link ResultsTable}.
+ * <p>
+ * Rows are collected as text and written to the file a chunk at a time. The
+ * headings are taken from the first row, and every later row must have the
+ * same headings in the same order. Only the count, mean, standard deviation,
+ * minimum and maximum of each column are kept in memory, and they are shown
+ * as a summary table when the sink is closed.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class CsvResultsSink implements ResultsSink {
+
+	/** number of characters collected before they are written to the file */
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 4096);
+	private final List<String> headings = new ArrayList<>();
+	private double[] values = new double[16];
+	private String label;
+	/** index of the next value in the current row */
+	private int column;
+	private long nRows;
+
+	// summary statistics of each column, from Welford's algorithm
+	private long[] counts;
+	private double[] means;
+	private double[] sumSquares;
+	private double[] mins;
+	private double[] maxs;
+
+	/**
+	 * Create a sink that writes to a file, which is replaced if it exists
+	 *
+	 * @param path CSV file to write
+	 * @throws IOException if the file cannot be opened for writing
+	 */
+	CsvResultsSink(final Path path) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	@Override
+	public void incrementCounter() throws IOException {
+		finishRow();
+		nRows++;
+		label = null;
+		column = 0;
+	}
+
+	@Override
+	public void addLabel(final String label) {
+		this.label = label;
+	}
+
+	/**
+	 * @throws IllegalStateException if no row has been started
+	 * @throws IllegalArgumentException if the heading doesn't match the heading
+	 *           of the column in the first row
+	 */
+	@Override
+	public void addValue(final String heading, final double value) {
+		if (nRows == 0) throw new IllegalStateException("No row has been started");
+		if (nRows == 1) {
+			headings.add(heading);
+			if (column == values.length) values = Arrays.copyOf(values, 2 *
+				values.length);
+		}
+		else if (column >= headings.size() || !headings.get(column).equals(
+			heading))
+		{
+			throw new IllegalArgumentException("Unexpected column " + heading +
+				" in row " + nRows);
+		}
+		values[column++] = value;
+	}
+
+	/**
+	 * Write the remaining rows, close the file and show the summary table
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+		getSummary().show("Particle summary");
+		IJ.log(nRows + " rows of results written to " + path);
+	}
+
+	/**
+	 * Write the remaining rows and close the file
+	 *
+	 * @throws IOException if the rows cannot be written
+	 */
+	void finish() throws IOException {
+		try {
+			finishRow();
+			writeChunk();
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return table with the count, mean, standard deviation, minimum and
+	 *         maximum of each column, ignoring NaNs.
+	 */
+	ResultsTable getSummary() {
+		final ResultsTable summary = new ResultsTable();
+		for (int c = 0; c < headings.size(); c++) {
+			summary.incrementCounter();
+			summary.addLabel(headings.get(c));
+			summary.addValue("N", counts[c]);
+			summary.addValue("Mean", counts[c] > 0 ? means[c] : Double.NaN);
+			summary.addValue("SD", counts[c] > 1 ? Math.sqrt(sumSquares[c] /
+				(counts[c] - 1)) : Double.NaN);
+			summary.addValue("Min", counts[c] > 0 ? mins[c] : Double.NaN);
+			summary.addValue("Max", counts[c] > 0 ? maxs[c] : Double.NaN);
+		}
+		return summary;
+	}
+
+	/**
+	 * Append the current row to the chunk, preceded by the heading line if it is
+	 * the first row, and write the chunk when it is full.
+	 */
+	private void finishRow() throws IOException {
+		if (nRows == 0 || column < 0) return;
+		final int nColumns = headings.size();
+		if (nRows == 1) {
+			chunk.append("Label");
+			for (final String heading : headings) {
+				chunk.append(',');
+				appendText(heading);
+			}
+			chunk.append('\n');
+			counts = new long[nColumns];
+			means = new double[nColumns];
+			sumSquares = new double[nColumns];
+			mins = new double[nColumns];
+			maxs = new double[nColumns];
+			Arrays.fill(mins, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+		}
+		else if (column != nColumns) {
+			throw new IllegalArgumentException("Row " + nRows + " has " + column +
+				" values instead of " + nColumns);
+		}
+		if (label != null) appendText(label);
+		for (int c = 0; c < nColumns; c++) {
+			final double value = values[c];
+			chunk.append(',');
+			if (value == Math.rint(value) && Math.abs(value) < 1e15) chunk.append(
+				(long) value);
+			else chunk.append(value);
+			if (Double.isNaN(value)) continue;
+			counts[c]++;
+			final double delta = value - means[c];
+			means[c] += delta / counts[c];
+			sumSquares[c] += delta * (value - means[c]);
+			mins[c] = Math.min(mins[c], value);
+			maxs[c] = Math.max(maxs[c], value);
+		}
+		chunk.append('\n');
+		// no row is written twice
+		column = -1;
+		if (chunk.length() >= CHUNK_SIZE) writeChunk();
+	}
+
+	private void writeChunk() throws IOException {
+		final ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(
+			chunk));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		chunk.setLength(0);
+	}
+
+	/** Append text, quoted if it contains a separator or a quote */
+	private void appendText(final String text) {
+		if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf(
+			'\n') < 0)
+		{
+			chunk.append(text);
+			return;
+		}
+		chunk.append('"').append(text.replace("\"", "\"\"")).append('"');
+	}
+}
@@ -0,0 +1,154 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Keeps the unfiltered particle labelling of the last image analysed, if the
+ * user chose to keep it, so that particles can be filtered again with
+ * different volume or edge limits without running {@link ConnectedComponents}
+ * again.
+ * <p>
+ * An entry is valid for the image it was made from, identified by
+ * {@link ImagePlus#getID()}, and for as long as the image's pixels equal the
+ * cached work array, which is the unmodified copy of the 8-bit input that the
+ * labelling was made from. The entry is softly referenced, so it is dropped
+ * rather than running out of memory.
+ * </p>
+ * <p>
+ * The arrays are cached and returned by reference, not copied, so that a cached
+ * labelling costs no more memory than the labelling itself. Neither the caller
+ * of {@link #put} nor the callers of the getters may modify them; filter them
+ * with {@link ParticleAnalysis#getFilteredParticles}, which writes its results
+ * into new arrays.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class LabelCache {
+
+	private static SoftReference<LabelCache> last = new SoftReference<>(null);
+
+	private final int imageID;
+	private final int phase;
+	private final int[][] particleLabels;
+	private final byte[][] workArray;
+	private final long[] particleSizes;
+
+	private LabelCache(final int imageID, final int phase,
+		final int[][] particleLabels, final byte[][] workArray,
+		final long[] particleSizes)
+	{
+		this.imageID = imageID;
+		this.phase = phase;
+		this.particleLabels = particleLabels;
+		this.workArray = workArray;
+		this.particleSizes = particleSizes;
+	}
+
+	/**
+	 * Cache an unfiltered labelling, replacing any labelling already in the
+	 * cache. The arrays must not be modified afterwards.
+	 *
+	 * @param imp            the labelled image
+	 * @param phase          foreground or background
+	 * @param particleLabels particle label image array
+	 * @param workArray      binary work array, as made from imp's pixels
+	 * @param particleSizes  size of each particle, in voxels
+	 */
+	static synchronized void put(final ImagePlus imp, final int phase,
+		final int[][] particleLabels, final byte[][] workArray,
+		final long[] particleSizes)
+	{
+		last = new SoftReference<>(new LabelCache(imp.getID(), phase,
+			particleLabels, workArray, particleSizes.clone()));
+	}
+
+	/**
+	 * Get the cached labelling of an image.
+	 *
+	 * @param imp   an image
+	 * @param phase foreground or background
+	 * @return the cached labelling, or null if there is none for this image and
+	 *         phase, or if the image has changed since it was labelled.
+	 */
+	static synchronized LabelCache get(final ImagePlus imp, final int phase) {
+		final LabelCache cache = last.get();
+		if (cache == null || cache.imageID != imp.getID() || cache.phase != phase)
+			return null;
+		final ImageStack stack = imp.getStack();
+		if (stack.getSize() != cache.workArray.length || imp.getWidth() *
+			imp.getHeight() != cache.workArray[0].length) return null;
+		for (int z = 0; z < cache.workArray.length; z++) {
+			final Object pixels = stack.getPixels(z + 1);
+			if (!(pixels instanceof byte[]) || !Arrays.equals((byte[]) pixels,
+				cache.workArray[z])) return null;
+		}
+		return cache;
+	}
+
+	/**
+	 * Drop the cached labelling, if any.
+	 *
+	 * @return true if a labelling was dropped
+	 */
+	static synchronized boolean clear() {
+		final boolean wasCached = last.get() != null;
+		last = new SoftReference<>(null);
+		return wasCached;
+	}
+
+	/**
+	 * @return number of particle labels, including the background label 0
+	 */
+	int getNParticles() {
+		return particleSizes.length;
+	}
+
+	/**
+	 * @return the unfiltered particle labels, which must not be modified
+	 */
+	int[][] getParticleLabels() {
+		return particleLabels;
+	}
+
+	/**
+	 * @return the unfiltered work array, which must not be modified
+	 */
+	byte[][] getWorkArray() {
+		return workArray;
+	}
+
+	/**
+	 * @return a copy of the unfiltered particle sizes
+	 */
+	long[] getParticleSizes() {
+		return particleSizes.clone();
+	}
+}
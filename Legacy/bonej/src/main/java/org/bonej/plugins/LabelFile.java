@@ -0,0 +1,265 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bonej.util.Multithreader;
+
+/**
+ * Particle label image stored outside the heap, in a temporary file of int
+ * labels that is read and written one slice at a time through reused direct
+ * buffers. The file is not memory mapped, so nothing holds it open once it is
+ * closed and it can be deleted on every platform.
+ * <p>
+ * Slices are stored in z order, each as width * height ints in native byte
+ * order. The file is deleted when the label file is closed.
+ * </p>
+ *
+ * @author Michael Doube
+ * @see StreamingConnectedComponents
+ */
+public final class LabelFile implements Closeable {
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int depth;
+
+	/** number of particle labels, including 0 */
+	private int nParticles;
+
+	/** number of pixels with each label */
+	private long[] particleSizes;
+
+	/** slice buffer of getSlice() and writeSlices(), allocated on first use */
+	private ByteBuffer buffer;
+
+	private LabelFile(final Path path, final FileChannel channel, final int width,
+		final int height, final int depth)
+	{
+		this.path = path;
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * Create an empty label file
+	 *
+	 * @param directory directory to hold the file, or null for the system
+	 *          temporary directory
+	 * @param width image width
+	 * @param height image height
+	 * @param depth number of slices
+	 * @return a label file with all labels set to 0
+	 * @throws IOException if the file cannot be created
+	 */
+	static LabelFile create(final Path directory, final int width,
+		final int height, final int depth) throws IOException
+	{
+		final Path path = directory == null ? Files.createTempFile("bonej-labels",
+			".raw") : Files.createTempFile(directory, "bonej-labels", ".raw");
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		return new LabelFile(path, channel, width, height, depth);
+	}
+
+	/**
+	 * Write consecutive slices of labels to the file
+	 *
+	 * @param startSlice z index (0-based) of the first slice
+	 * @param labels label slices, each width * height
+	 * @throws IOException if the file cannot be written
+	 */
+	synchronized void writeSlices(final int startSlice, final int[][] labels)
+		throws IOException
+	{
+		for (int z = 0; z < labels.length; z++) {
+			writeSlice(startSlice + z, getBuffer(), labels[z]);
+		}
+	}
+
+	/**
+	 * Rewrite every label in the file through a LUT, in place and in multiple
+	 * threads, and count the pixels of each new label.
+	 *
+	 * @param lut replacement value of each label in the file
+	 * @param nLabels number of labels after replacement, including 0
+	 * @throws IOException if the file cannot be read or written. The file may
+	 *           then be partly rewritten, and its particle sizes are not set.
+	 */
+	void applyLut(final int[] lut, final int nLabels) throws IOException {
+		final int wh = width * height;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread[] threads = Multithreader.newThreads();
+		final long[][] threadSizes = new long[threads.length][];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final long[] sizes = new long[nLabels];
+			threadSizes[thread] = sizes;
+			threads[thread] = new Thread(() -> {
+				try {
+					final ByteBuffer buffer = newSliceBuffer();
+					final int[] slice = new int[wh];
+					for (int z = ai.getAndIncrement(); z < depth &&
+						failure.get() == null; z = ai.getAndIncrement())
+					{
+						readSlice(z, buffer, slice);
+						for (int i = 0; i < wh; i++) {
+							final int label = lut[slice[i]];
+							slice[i] = label;
+							sizes[label]++;
+						}
+						writeSlice(z, buffer, slice);
+					}
+				}
+				catch (final Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final Throwable t = failure.get();
+		if (t instanceof IOException) throw (IOException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+
+		particleSizes = new long[nLabels];
+		for (final long[] sizes : threadSizes) {
+			for (int i = 0; i < nLabels; i++) {
+				particleSizes[i] += sizes[i];
+			}
+		}
+		nParticles = nLabels;
+	}
+
+	/**
+	 * Read one slice of labels
+	 *
+	 * @param z z index of the slice (0-based)
+	 * @return width * height array of labels
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized int[] getSlice(final int z) throws IOException {
+		final int[] slice = new int[width * height];
+		readSlice(z, getBuffer(), slice);
+		return slice;
+	}
+
+	/**
+	 * @return number of particles in the image, including the 0 label
+	 */
+	public int getNParticles() {
+		return nParticles;
+	}
+
+	/**
+	 * @return number of pixels with each label, indexed by label
+	 */
+	public long[] getParticleSizes() {
+		return particleSizes.clone();
+	}
+
+	/**
+	 * @return location of the label file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Close the file and delete it
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		Files.deleteIfExists(path);
+	}
+
+	/** @return the buffer shared by the synchronized slice reads and writes */
+	private ByteBuffer getBuffer() {
+		if (buffer == null) buffer = newSliceBuffer();
+		return buffer;
+	}
+
+	private ByteBuffer newSliceBuffer() {
+		return ByteBuffer.allocateDirect(4 * width * height).order(ByteOrder
+			.nativeOrder());
+	}
+
+	/**
+	 * Read a slice of labels through a buffer. Parts of the slice beyond the
+	 * end of the file have never been written, and are read as 0.
+	 */
+	private void readSlice(final int z, final ByteBuffer sliceBuffer,
+		final int[] slice) throws IOException
+	{
+		sliceBuffer.clear();
+		final long position = z * 4L * width * height;
+		while (sliceBuffer.hasRemaining()) {
+			if (channel.read(sliceBuffer, position + sliceBuffer.position()) < 0) {
+				while (sliceBuffer.hasRemaining())
+					sliceBuffer.put((byte) 0);
+			}
+		}
+		sliceBuffer.flip();
+		sliceBuffer.asIntBuffer().get(slice);
+	}
+
+	/** Write a slice of labels through a buffer */
+	private void writeSlice(final int z, final ByteBuffer sliceBuffer,
+		final int[] slice) throws IOException
+	{
+		sliceBuffer.clear();
+		sliceBuffer.asIntBuffer().put(slice);
+		final long position = z * 4L * width * height;
+		while (sliceBuffer.hasRemaining()) {
+			channel.write(sliceBuffer, position + sliceBuffer.position());
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Keeps only the largest particle of one phase of a binary work array, by
+ * flood filling, without labelling the image.
+ * <p>
+ * The particles are found and measured by flood filling each of them in turn,
+ * setting a bit per pixel. Whenever a particle is smaller than the largest one
+ * found so far, or a larger one is found, the smaller particle is filled again
+ * to switch it to the other phase. The largest particle is so filled only
+ * once. Apart from the work array, this needs one bit per pixel plus the flood
+ * fill's stack of pixel runs, instead of the four bytes per pixel of a label
+ * array.
+ * </p>
+ * <p>
+ * Foreground is 26-connected and background is 6-connected, as in
+ * {@link ConnectedComponents}.
+ * </p>
+ *
+ * @author Michael Doube
+ * @see Purify
+ */
+final class LargestParticle {
+
+	private final byte[][] workArray;
+	private final int w;
+	private final int h;
+	private final int d;
+	private final byte phase;
+	private final byte replacement;
+	private final boolean is26;
+	/** one bit per pixel, set once a pixel has been filled */
+	private final long[][] filled;
+	/** z, y, first x and last x of each run on the stack */
+	private int[] runs = new int[1024];
+	private int nRuns;
+
+	private LargestParticle(final byte[][] workArray, final int w, final int h,
+		final int phase)
+	{
+		this.workArray = workArray;
+		this.w = w;
+		this.h = h;
+		d = workArray.length;
+		this.phase = (byte) phase;
+		replacement = (byte) (phase == ConnectedComponents.FORE
+			? ConnectedComponents.BACK : ConnectedComponents.FORE);
+		is26 = phase == ConnectedComponents.FORE;
+		filled = new long[d][(w * h + 63) >>> 6];
+	}
+
+	/**
+	 * Switch all particles of a phase, except the largest one, to the other
+	 * phase. If two particles share the largest size, the one that is found
+	 * first in a scan of the stack is kept.
+	 *
+	 * @param workArray binary work array, which is changed in place
+	 * @param w image width
+	 * @param h image height
+	 * @param phase ConnectedComponents.FORE or ConnectedComponents.BACK
+	 */
+	static void keep(final byte[][] workArray, final int w, final int h,
+		final int phase)
+	{
+		new LargestParticle(workArray, w, h, phase).keep();
+	}
+
+	private void keep() {
+		final int wh = w * h;
+		long largestSize = 0;
+		int largestZ = -1;
+		int largestI = -1;
+		for (int z = 0; z < d; z++) {
+			final byte[] slice = workArray[z];
+			final long[] sliceFilled = filled[z];
+			for (int i = 0; i < wh; i++) {
+				if (!isUnfilled(slice, sliceFilled, i)) continue;
+				final long size = fill(z, i, false);
+				if (largestZ < 0) {
+					largestSize = size;
+					largestZ = z;
+					largestI = i;
+				}
+				else if (size > largestSize) {
+					fill(largestZ, largestI, true);
+					largestSize = size;
+					largestZ = z;
+					largestI = i;
+				}
+				else {
+					fill(z, i, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scanline flood fill of the particle that contains a pixel. The fill works
+	 * on runs of pixels along x, so the work array and the bit mask are read in
+	 * order.
+	 *
+	 * @param seedZ slice of the pixel
+	 * @param seedI index of the pixel in its slice
+	 * @param erase false to set the filled bit of each pixel of an unfilled
+	 *          particle, true to switch the pixels of a particle to the other
+	 *          phase
+	 * @return number of pixels in the particle
+	 */
+	private long fill(final int seedZ, final int seedI, final boolean erase) {
+		final int seedY = seedI / w;
+		nRuns = 0;
+		long size = fillRow(seedZ, seedY, seedI % w, seedI % w, erase);
+		// a run reaches its neighbour rows' pixels one further along x if
+		// diagonal neighbours are connected
+		final int reach = is26 ? 1 : 0;
+		while (nRuns > 0) {
+			nRuns--;
+			final int z = runs[4 * nRuns];
+			final int y = runs[4 * nRuns + 1];
+			final int xStart = Math.max(0, runs[4 * nRuns + 2] - reach);
+			final int xEnd = Math.min(w - 1, runs[4 * nRuns + 3] + reach);
+			for (int nz = Math.max(0, z - 1); nz <= Math.min(d - 1, z + 1); nz++) {
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+					// the run's own row is already filled, and 6-connected rows
+					// differ in y or z, not both
+					if (nz == z && ny == y || !is26 && nz != z && ny != y) continue;
+					size += fillRow(nz, ny, xStart, xEnd, erase);
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Fill and stack each run of pixels in a row that has a pixel in a range of
+	 * x. Runs may extend beyond the range. The runs are of unfilled phase pixels,
+	 * or of any phase pixels when erasing.
+	 *
+	 * @return number of pixels filled
+	 */
+	private long fillRow(final int z, final int y, final int xStart,
+		final int xEnd, final boolean erase)
+	{
+		final byte[] slice = workArray[z];
+		final long[] sliceFilled = filled[z];
+		final int offset = y * w;
+		long size = 0;
+		int x = xStart;
+		while (x <= xEnd) {
+			if (erase ? slice[offset + x] != phase : !isUnfilled(slice, sliceFilled,
+				offset + x))
+			{
+				x++;
+				continue;
+			}
+			int start = x;
+			int end = x;
+			if (erase) {
+				while (start > 0 && slice[offset + start - 1] == phase)
+					start--;
+				while (end < w - 1 && slice[offset + end + 1] == phase)
+					end++;
+				Arrays.fill(slice, offset + start, offset + end + 1, replacement);
+			}
+			else {
+				while (start > 0 && isUnfilled(slice, sliceFilled, offset + start - 1))
+					start--;
+				while (end < w - 1 && isUnfilled(slice, sliceFilled, offset + end + 1))
+					end++;
+				for (int i = offset + start; i <= offset + end; i++) {
+					sliceFilled[i >>> 6] |= 1L << i;
+				}
+			}
+			size += end - start + 1;
+			push(z, y, start, end);
+			// pixel end + 1 is outside the run, so can't start a new one
+			x = end + 2;
+		}
+		return size;
+	}
+
+	private boolean isUnfilled(final byte[] slice, final long[] sliceFilled,
+		final int i)
+	{
+		return slice[i] == phase && (sliceFilled[i >>> 6] & 1L << i) == 0;
+	}
+
+	/** Add a run to the stack of runs whose neighbours are still to be filled */
+	private void push(final int z, final int y, final int start, final int end) {
+		if (4 * nRuns == runs.length) runs = Arrays.copyOf(runs, 2 * runs.length);
+		runs[4 * nRuns] = z;
+		runs[4 * nRuns + 1] = y;
+		runs[4 * nRuns + 2] = start;
+		runs[4 * nRuns + 3] = end;
+		nRuns++;
+	}
+}
@@ -26,23 +26,24 @@ package org.bonej.plugins;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.bonej.geometry.ConvexHull3D;
 import org.bonej.geometry.FitEllipsoid;
 import org.bonej.util.Multithreader;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 import org.scijava.vecmath.Point3f;
 
-import Jama.EigenvalueDecomposition;
-import Jama.Matrix;
-import customnode.CustomTriangleMesh;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import marchingcubes.MCTriangulator;
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
 import sc.fiji.skeletonize3D.Skeletonize3D_;
 
@@ -53,6 +54,15 @@ import sc.fiji.skeletonize3D.Skeletonize3D_;
  */
 public class ParticleAnalysis {
 
+	/**
+	 * Largest side, in pixels, of a padded particle crop that is skeletonised in
+	 * a pack with other particles rather than on its own
+	 */
+	private static final int MAX_PACKED_SIDE = 32;
+
+	/** Largest width and height, in pixels, of a pack of particles */
+	private static final int PACK_SIDE = 256;
+
 	/** list of particle sizes */
 	private long[] particleSizes;
 
@@ -80,9 +90,76 @@ public class ParticleAnalysis {
 	 * @param max            minimum volume in calibrated units to include
 	 */
 	public void filterParticles(final ImagePlus imp, final int[][] particleLabels, final byte[][] workArray,
-			int nParticles, final int phase, final boolean doExclude, final double min, final double max) {
+			final int nParticles, final int phase, final boolean doExclude, final double min, final double max) {
+		filterParticles(imp, particleLabels, workArray, nParticles, phase, doExclude, min, max,
+				getParticleSizes(particleLabels, nParticles));
+	}
 
-		getParticleSizes(particleLabels, nParticles);
+	/**
+	 * Remove edge-touching, too small and too big particles, using particle sizes
+	 * that are already known instead of counting them again.
+	 * 
+	 * @param imp            Input image. Needed for calibration
+	 * @param particleLabels Particle label image array
+	 * @param workArray      Binary work array
+	 * @param nParticles     Number of particles in the image
+	 * @param phase          Foreground or background
+	 * @param doExclude      true to remove all particles touching a side
+	 * @param min            minimum volume in calibrated units to include
+	 * @param max            minimum volume in calibrated units to include
+	 * @param sizes          size of each particle in particleLabels, in voxels
+	 * @see #filterParticles(ImagePlus, int[][], byte[][], int, int, boolean,
+	 *      double, double)
+	 */
+	public void filterParticles(final ImagePlus imp, final int[][] particleLabels, final byte[][] workArray,
+			int nParticles, final int phase, final boolean doExclude, final double min, final double max,
+			final long[] sizes) {
+		final int[] lut = getFilterLut(imp, particleLabels, nParticles, doExclude, min, max, sizes);
+		if (lut != null)
+			applyFilterLut(lut, phase, particleLabels, workArray, particleLabels, workArray);
+	}
+
+	/**
+	 * Remove edge-touching, too small and too big particles, writing the
+	 * relabelled particles into new arrays so that the input arrays stay
+	 * unchanged and may be kept, e.g. by {@link LabelCache}. New arrays are made
+	 * only if a particle is removed.
+	 * 
+	 * @param imp            Input image. Needed for calibration
+	 * @param particleLabels Particle label image array, not modified
+	 * @param workArray      Binary work array, not modified
+	 * @param nParticles     Number of particles in the image
+	 * @param phase          Foreground or background
+	 * @param doExclude      true to remove all particles touching a side
+	 * @param min            minimum volume in calibrated units to include
+	 * @param max            minimum volume in calibrated units to include
+	 * @param sizes          size of each particle in particleLabels, in voxels
+	 * @return Object[] array containing the filtered work array and particle
+	 *         labels, which are the input arrays if no particle was removed
+	 */
+	Object[] getFilteredParticles(final ImagePlus imp, final int[][] particleLabels, final byte[][] workArray,
+			final int nParticles, final int phase, final boolean doExclude, final double min, final double max,
+			final long[] sizes) {
+		final int[] lut = getFilterLut(imp, particleLabels, nParticles, doExclude, min, max, sizes);
+		if (lut == null)
+			return new Object[] { workArray, particleLabels };
+		final int[][] filteredLabels = new int[particleLabels.length][];
+		final byte[][] filteredWorkArray = new byte[workArray.length][];
+		applyFilterLut(lut, phase, particleLabels, workArray, filteredLabels, filteredWorkArray);
+		return new Object[] { filteredWorkArray, filteredLabels };
+	}
+
+	/**
+	 * Make the lookup table that removes edge-touching, too small and too big
+	 * particles and closes the gaps between the remaining labels, and set
+	 * particleSizes to the filtered sizes.
+	 * 
+	 * @return the lookup table, or null if no particle is removed
+	 */
+	private int[] getFilterLut(final ImagePlus imp, final int[][] particleLabels, int nParticles,
+			final boolean doExclude, final double min, final double max, final long[] sizes) {
+
+		this.particleSizes = sizes.clone();
 
 		// flag to check whether sizes & labels arrays need to be updated
 		boolean runLutNeeded = false;
@@ -168,71 +245,92 @@ public class ParticleAnalysis {
 		}
 
 		// check the arrays only if needed
-		if (runLutNeeded) {
+		if (!runLutNeeded)
+			return null;
 
-			// minimise the lut and count non-zeros
-			int nonZeroCount = 0;
-			for (int i = 0; i < nParticles; i++) {
-				final int lutValue = lut[i];
-				if (lutValue != 0) {
-					nonZeroCount++;
-					lut[i] = nonZeroCount;
-				}
+		// minimise the lut and count non-zeros
+		int nonZeroCount = 0;
+		for (int i = 0; i < nParticles; i++) {
+			final int lutValue = lut[i];
+			if (lutValue != 0) {
+				nonZeroCount++;
+				lut[i] = nonZeroCount;
 			}
-			// lut is now 0 for particles to be deleted or a lower value to get rid of gaps
+		}
+		// lut is now 0 for particles to be deleted or a lower value to get rid of gaps
 
-			// reset nParticles, +1 is for particle 0 (background particle)
-			nParticles = nonZeroCount + 1;
+		// reset nParticles, +1 is for particle 0 (background particle)
+		nParticles = nonZeroCount + 1;
 
-			// replace particle sizes based on lut
-			long[] filteredParticleSizes = new long[nParticles];
+		// replace particle sizes based on lut
+		long[] filteredParticleSizes = new long[nParticles];
 
-			final int l = particleSizes.length;
-			for (int i = 0; i < l; i++) {
-				final long size = particleSizes[i];
-				final int lutValue = lut[i];
-				if (lutValue != 0) {
-					filteredParticleSizes[lutValue] = size;
-				}
+		final int l = particleSizes.length;
+		for (int i = 0; i < l; i++) {
+			final long size = particleSizes[i];
+			final int lutValue = lut[i];
+			if (lutValue != 0) {
+				filteredParticleSizes[lutValue] = size;
 			}
+		}
 
-			// particleSizes now has the shorter length to match the new particleLabels
-			this.particleSizes = filteredParticleSizes;
+		// particleSizes now has the shorter length to match the new particleLabels
+		this.particleSizes = filteredParticleSizes;
+		return lut;
+	}
 
-			// replace labels based on lut
+	/**
+	 * Relabel particles through a filter lookup table, and set the removed
+	 * particles' voxels to the other phase in the work array. The filtered arrays
+	 * may be the input arrays, to filter in place, or arrays of empty slices,
+	 * which are filled with new slices.
+	 */
+	private static void applyFilterLut(final int[] lut, final int phase, final int[][] particleLabels,
+			final byte[][] workArray, final int[][] filteredLabels, final byte[][] filteredWorkArray) {
+		final boolean inPlace = filteredLabels == particleLabels;
 
-			// handle both phases in the workArray
-			final byte flip;
-			if (phase == ConnectedComponents.FORE) {
-				flip = 0;
-			} else {
-				flip = (byte) 255;
-			}
+		// handle both phases in the workArray
+		final byte flip;
+		if (phase == ConnectedComponents.FORE) {
+			flip = 0;
+		} else {
+			flip = (byte) 255;
+		}
 
-			final int wh = w * h;
-
-			AtomicInteger ai = new AtomicInteger(0);
-
-			final Thread[] threads = Multithreader.newThreads();
-			for (int thread = 0; thread < threads.length; thread++) {
-				threads[thread] = new Thread(() -> {
-					for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
-						final int[] particleLabelSlice = particleLabels[z];
-						final byte[] workArraySlice = workArray[z];
-						for (int i = 0; i < wh; i++) {
-							final int oldLabel = particleLabelSlice[i];
-							if (oldLabel == 0)
-								continue;
-							final int newLabel = lut[oldLabel];
-							particleLabelSlice[i] = newLabel;
-							if (newLabel == 0)
-								workArraySlice[i] = flip;
-						}
+		final int d = particleLabels.length;
+		final int wh = particleLabels[0].length;
+
+		AtomicInteger ai = new AtomicInteger(0);
+
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] particleLabelSlice = particleLabels[z];
+					final int[] filteredLabelSlice;
+					final byte[] workArraySlice;
+					if (inPlace) {
+						filteredLabelSlice = particleLabelSlice;
+						workArraySlice = workArray[z];
+					} else {
+						filteredLabelSlice = new int[wh];
+						workArraySlice = workArray[z].clone();
+						filteredLabels[z] = filteredLabelSlice;
+						filteredWorkArray[z] = workArraySlice;
 					}
-				});
-			}
-			Multithreader.startAndJoin(threads);
+					for (int i = 0; i < wh; i++) {
+						final int oldLabel = particleLabelSlice[i];
+						if (oldLabel == 0)
+							continue;
+						final int newLabel = lut[oldLabel];
+						filteredLabelSlice[i] = newLabel;
+						if (newLabel == 0)
+							workArraySlice[i] = flip;
+					}
+				}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 	}
 
 	/**
@@ -305,231 +403,314 @@ public class ParticleAnalysis {
 	}
 
 	/**
-	 * Get the centroids of all the particles in real units
+	 * Get the slice after the last slice of a thread's slab. Slabs are
+	 * contiguous and fixed by thread index, so results combined in thread order
+	 * don't depend on thread timing.
 	 *
-	 * @param imp            an image.
-	 * @param particleLabels particles in the image.
-	 * @param particleSizes  sizes of the particles
-	 * @return double[][] containing all the particles' centroids
+	 * @param thread   thread index, or -1 for the first thread's start slice
+	 * @param nThreads number of threads
+	 * @param d        number of slices
+	 * @return end slice (exclusive) of the thread's slab
 	 */
-	static double[][] getCentroids(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
+	static int getEndSlice(final int thread, final int nThreads, final int d) {
+		return (int) ((long) (thread + 1) * d / nThreads);
+	}
+
+	/**
+	 * Get the Euler characteristic of each particle
+	 * <p>
+	 * Euler characteristics are summed for all particles in one scan of the
+	 * label array, and cavities are counted from one labelling of the
+	 * background. Background that can reach the image boundary without crossing
+	 * a particle is outside that particle, not one of its cavities.
+	 * </p>
+	 *
+	 * @param imp an image.
+	 * @param particleLabels particles of the image.
+	 * @param nParticles number of particles in the image
+	 * @return Euler characteristic, number of holes and number of cavities of
+	 *         each particle.
+	 */
+	static double[][] getEulerCharacter(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles)
+	{
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = particleSizes.length;
-		final double[][] sums = new double[nParticles][3];
+		final double[] eulers = getParticleEulers(particleLabels, w, h, nParticles);
+		final int[] cavities = getNCavities(particleLabels, w, h, nParticles);
+		final double[][] eulerCharacters = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final double euler = eulers[p];
+			// Calculate number of holes and cavities using
+			// Euler = particles - holes + cavities
+			// where particles = 1
+			final double holes = cavities[p] - euler + 1;
+			final double[] bettis = { euler, holes, cavities[p] };
+			eulerCharacters[p] = bettis;
+		}
+		return eulerCharacters;
+	}
 
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int particle = particleLabels[z][index + x];
-					sums[particle][0] += x;
-					sums[particle][1] += y;
-					sums[particle][2] += z;
+	/**
+	 * Sum the Euler characteristic of every particle in one scan of the voxel
+	 * vertices. Each vertex adds the octant LUT value of each label in its 8
+	 * voxels to that label's sum, as {@link Connectivity#getSumEuler} does for
+	 * an image of a single particle.
+	 *
+	 * @param particleLabels particle label array
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particle labels, including 0
+	 * @return Euler characteristic of each particle
+	 */
+	private static double[] getParticleEulers(final int[][] particleLabels,
+		final int w, final int h, final int nParticles)
+	{
+		final int d = particleLabels.length;
+		final Thread[] threads = Multithreader.newThreads();
+		final long[][] partialSums = new long[threads.length][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		for (int thread = 0; thread < threads.length; thread++) {
+			final long[] sums = new long[nParticles];
+			partialSums[thread] = sums;
+			threads[thread] = new Thread(() -> {
+				final byte[] octant = new byte[9];
+				final int[] voxels = new int[8];
+				for (int z = ai.getAndIncrement(); z <= d; z = ai.getAndIncrement()) {
+					final int[] above = z > 0 ? particleLabels[z - 1] : null;
+					final int[] below = z < d ? particleLabels[z] : null;
+					for (int y = 0; y <= h; y++) {
+						for (int x = 0; x <= w; x++) {
+							// same voxel order as the octants of Connectivity.getDeltaEuler()
+							voxels[0] = getLabel(above, x - 1, y - 1, w, h);
+							voxels[1] = getLabel(above, x - 1, y, w, h);
+							voxels[2] = getLabel(above, x, y - 1, w, h);
+							voxels[3] = getLabel(above, x, y, w, h);
+							voxels[4] = getLabel(below, x - 1, y - 1, w, h);
+							voxels[5] = getLabel(below, x - 1, y, w, h);
+							voxels[6] = getLabel(below, x, y - 1, w, h);
+							voxels[7] = getLabel(below, x, y, w, h);
+							for (int i = 0; i < 8; i++) {
+								final int label = voxels[i];
+								if (label == 0 || isRepeated(voxels, i)) continue;
+								octant[0] = 1;
+								for (int j = 0; j < 8; j++) {
+									octant[j + 1] = voxels[j] == label ? (byte) -1 : 0;
+								}
+								sums[label] += Connectivity.getDeltaEuler(octant);
+							}
+						}
+					}
 				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final double[] eulers = new double[nParticles];
+		for (final long[] sums : partialSums) {
+			for (int p = 0; p < nParticles; p++) {
+				eulers[p] += sums[p];
 			}
 		}
-		final Calibration cal = imp.getCalibration();
-		final double[][] centroids = new double[nParticles][3];
 		for (int p = 0; p < nParticles; p++) {
-			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSizes[p];
-			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSizes[p];
-			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSizes[p];
+			eulers[p] /= 8;
 		}
-		return centroids;
+		return eulers;
+	}
+
+	private static int getLabel(final int[] slice, final int x, final int y,
+		final int w, final int h)
+	{
+		if (slice == null || x < 0 || x >= w || y < 0 || y >= h) return 0;
+		return slice[y * w + x];
+	}
+
+	private static boolean isRepeated(final int[] voxels, final int i) {
+		for (int j = 0; j < i; j++) {
+			if (voxels[j] == voxels[i]) return true;
+		}
+		return false;
 	}
 
 	/**
-	 * Get the mean and standard deviation of pixel values &gt;0 for each particle
-	 * in a particle label work array
+	 * Count the cavities of every particle from one labelling of the
+	 * background.
+	 * <p>
+	 * Background components, particles and the space outside the image are
+	 * joined into a graph by their 6-connected contacts. A particle's cavities
+	 * are the parts of the graph that it cuts off from the outside when it is
+	 * removed, so a cavity may contain background and other particles. These
+	 * parts are counted for all particles at once by finding the graph's
+	 * articulation points with a depth-first search from the outside.
+	 * </p>
 	 *
-	 * @param imp            Input image containing pixel values
-	 * @param particleLabels workArray containing particle labels
-	 * @param particleSizes  array of particle sizes as pixel counts
-	 * @return array containing mean, std dev and max pixel values for each particle
+	 * @param particleLabels particle label array
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particle labels, including 0
+	 * @return number of cavities of each particle
 	 */
-	static double[][] getMeanStdDev(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
-		final int d = imp.getImageStackSize();
-		final int wh = imp.getWidth() * imp.getHeight();
-		final ImageStack stack = imp.getImageStack();
-		final int nParticles = particleSizes.length;
-		final double[] sums = new double[nParticles];
+	private static int[] getNCavities(final int[][] particleLabels, final int w,
+		final int h, final int nParticles)
+	{
+		final int d = particleLabels.length;
+		final int wh = w * h;
+		final ImageStack stack = new ImageStack(w, h);
 		for (int z = 0; z < d; z++) {
-			final float[] pixels = (float[]) stack.getPixels(z + 1);
-			final int[] labelPixels = particleLabels[z];
+			final int[] labels = particleLabels[z];
+			final byte[] slice = new byte[wh];
 			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > 0) {
-					sums[labelPixels[i]] += value;
-				}
+				if (labels[i] != 0) slice[i] = (byte) 0xFF;
 			}
+			stack.addSlice(null, slice);
 		}
-		final double[][] meanStdDev = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][0] = sums[p] / particleSizes[p];
-		}
+		final ConnectedComponents.Labelling background = new ConnectedComponents()
+			.label(new ImagePlus("background", stack), ConnectedComponents.BACK,
+				false);
+		final int[][] backgroundLabels = background.getParticleLabels();
 
-		final double[] sumSquares = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			final float[] pixels = (float[]) stack.getPixels(z + 1);
-			final int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > 0) {
-					final int p = labelPixels[i];
-					final double residual = value - meanStdDev[p][0];
-					sumSquares[p] += residual * residual;
-					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
-				}
-			}
+		// node 0 is the outside, particles keep their labels and background
+		// component b is node nParticles - 1 + b
+		final int nNodes = nParticles - 1 + background.getNParticles();
+		final long[] edges = getContacts(particleLabels, backgroundLabels, w, h,
+			nParticles);
+
+		// adjacency lists in compressed sparse row form
+		final int[] offsets = new int[nNodes + 1];
+		for (final long edge : edges) {
+			offsets[(int) (edge >>> 32) + 1]++;
+			offsets[(int) edge + 1]++;
 		}
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+		for (int n = 0; n < nNodes; n++) {
+			offsets[n + 1] += offsets[n];
+		}
+		final int[] neighbours = new int[offsets[nNodes]];
+		final int[] fill = Arrays.copyOf(offsets, nNodes);
+		for (final long edge : edges) {
+			final int a = (int) (edge >>> 32);
+			final int b = (int) edge;
+			neighbours[fill[a]++] = b;
+			neighbours[fill[b]++] = a;
 		}
-		return meanStdDev;
-	}
 
-	/**
-	 * Calculate Eigenvalue decompositions of all the particles
-	 * 
-	 * @param imp ImagePlus, used for calibration
-	 * @param particleLabels label image array
-	 * @param centroids list of particle centroids
-	 * @return list of EigenvalueDecompositions
-	 */
-	static EigenvalueDecomposition[] getEigens(final ImagePlus imp, final int[][] particleLabels,
-			final double[][] centroids) {
-		final Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = centroids.length;
-		final EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		final double[][] momentTensors = new double[nParticles][6];
-		for (int z = 0; z < d; z++) {
-			final double zVd = z * vD;
-			for (int y = 0; y < h; y++) {
-				final double yVh = y * vH;
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
-					if (p > 0) {
-						final double xVw = x * vW;
-						final double dx = xVw - centroids[p][0];
-						final double dy = yVh - centroids[p][1];
-						final double dz = zVd - centroids[p][2];
-						momentTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-						momentTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-						momentTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-						momentTensors[p][3] += dx * dy; // Ixy
-						momentTensors[p][4] += dx * dz; // Ixz
-						momentTensors[p][5] += dy * dz; // Iyz
-					}
+		// iterative depth-first search for articulation points
+		final int[] cavities = new int[nParticles];
+		final int[] order = new int[nNodes];
+		final int[] low = new int[nNodes];
+		final int[] parent = new int[nNodes];
+		final int[] next = Arrays.copyOf(offsets, nNodes);
+		final int[] path = new int[nNodes];
+		int depth = 0;
+		int visited = 1;
+		order[0] = visited;
+		low[0] = visited;
+		parent[0] = -1;
+		path[0] = 0;
+		while (depth >= 0) {
+			final int node = path[depth];
+			if (next[node] < offsets[node + 1]) {
+				final int neighbour = neighbours[next[node]++];
+				if (order[neighbour] == 0) {
+					visited++;
+					order[neighbour] = visited;
+					low[neighbour] = visited;
+					parent[neighbour] = node;
+					path[++depth] = neighbour;
+				}
+				else if (neighbour != parent[node]) {
+					low[node] = Math.min(low[node], order[neighbour]);
 				}
 			}
-			for (int p = 1; p < nParticles; p++) {
-				final double[][] inertiaTensor = new double[3][3];
-				inertiaTensor[0][0] = momentTensors[p][0];
-				inertiaTensor[1][1] = momentTensors[p][1];
-				inertiaTensor[2][2] = momentTensors[p][2];
-				inertiaTensor[0][1] = -momentTensors[p][3];
-				inertiaTensor[0][2] = -momentTensors[p][4];
-				inertiaTensor[1][0] = -momentTensors[p][3];
-				inertiaTensor[1][2] = -momentTensors[p][5];
-				inertiaTensor[2][0] = -momentTensors[p][4];
-				inertiaTensor[2][1] = -momentTensors[p][5];
-				final Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
-				final EigenvalueDecomposition E = new EigenvalueDecomposition(inertiaTensorMatrix);
-				eigens[p] = E;
+			else {
+				depth--;
+				final int up = parent[node];
+				if (up < 0) continue;
+				low[up] = Math.min(low[up], low[node]);
+				// the subtree below node is cut off from the outside by up
+				if (up > 0 && up < nParticles && low[node] >= order[up]) {
+					cavities[up]++;
+				}
 			}
 		}
-		return eigens;
+		return cavities;
 	}
 
 	/**
-	 * Get the minimum and maximum x, y and z coordinates of each particle
+	 * Find the pairs of graph nodes whose voxels touch across a face, and the
+	 * nodes that touch the image boundary, which are joined to the outside.
 	 *
-	 * @param imp            ImagePlus (used for stack size)
-	 * @param particleLabels work array containing labelled particles
-	 * @param nParticles     number of particles in the image
-	 * @return int[][] containing x, y and z minima and maxima.
+	 * @return distinct contacts, each packed as (smaller node &lt;&lt; 32) |
+	 *         larger node
 	 */
-	static int[][] getParticleLimits(final ImagePlus imp, final int[][] particleLabels, final int nParticles) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int[][] limits = new int[nParticles][6];
-		for (int i = 0; i < nParticles; i++) {
-			limits[i][0] = Integer.MAX_VALUE; // x min
-			limits[i][1] = 0; // x max
-			limits[i][2] = Integer.MAX_VALUE; // y min
-			limits[i][3] = 0; // y max
-			limits[i][4] = Integer.MAX_VALUE; // z min
-			limits[i][5] = 0; // z max
-		}
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int i = particleLabels[z][index + x];
-					limits[i][0] = Math.min(limits[i][0], x);
-					limits[i][1] = Math.max(limits[i][1], x);
-					limits[i][2] = Math.min(limits[i][2], y);
-					limits[i][3] = Math.max(limits[i][3], y);
-					limits[i][4] = Math.min(limits[i][4], z);
-					limits[i][5] = Math.max(limits[i][5], z);
+	private static long[] getContacts(final int[][] particleLabels,
+		final int[][] backgroundLabels, final int w, final int h,
+		final int nParticles)
+	{
+		final int d = particleLabels.length;
+		final Thread[] threads = Multithreader.newThreads();
+		final LongHashSet[] partialContacts = new LongHashSet[threads.length];
+		final AtomicInteger ai = new AtomicInteger(0);
+		for (int thread = 0; thread < threads.length; thread++) {
+			final LongHashSet contacts = new LongHashSet();
+			partialContacts[thread] = contacts;
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++) {
+							final int node = getNode(particleLabels, backgroundLabels, x, y,
+								z, w, nParticles);
+							if (x + 1 < w) addContact(contacts, node, getNode(particleLabels,
+								backgroundLabels, x + 1, y, z, w, nParticles));
+							if (y + 1 < h) addContact(contacts, node, getNode(particleLabels,
+								backgroundLabels, x, y + 1, z, w, nParticles));
+							if (z + 1 < d) addContact(contacts, node, getNode(particleLabels,
+								backgroundLabels, x, y, z + 1, w, nParticles));
+							if (x == 0 || y == 0 || z == 0 || x == w - 1 || y == h - 1 ||
+								z == d - 1) addContact(contacts, 0, node);
+						}
+					}
 				}
-			}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final LongHashSet contacts = partialContacts[0];
+		for (int t = 1; t < partialContacts.length; t++) {
+			contacts.addAll(partialContacts[t]);
 		}
-		return limits;
+		return contacts.toArray();
 	}
-	
-	/**
-	 * Get the Euler characteristic of each particle
-	 *
-	 * @param imp an image.
-	 * @param particleLabels particles of the image.
-	 * @param limits limits of the particles.
-	 * @param nParticles number of particles in the image
-	 * @return euler characteristic of each image.
-	 */
-	static double[][] getEulerCharacter(final ImagePlus imp,
-		final int[][] particleLabels, final int[][] limits, final int nParticles)
+
+	private static void addContact(final LongHashSet contacts, final int a,
+		final int b)
 	{
-		final Connectivity con = new Connectivity();
-		final double[][] eulerCharacters = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			final ImagePlus particleImp = getBinaryParticle(p, imp, particleLabels,
-				limits, 1);
-			final double euler = con.getSumEuler(particleImp);
-			final double cavities = getNCavities(particleImp);
-			// Calculate number of holes and cavities using
-			// Euler = particles - holes + cavities
-			// where particles = 1
-			final double holes = cavities - euler + 1;
-			final double[] bettis = { euler, holes, cavities };
-			eulerCharacters[p] = bettis;
-		}
-		return eulerCharacters;
+		if (a == b) return;
+		contacts.add(a < b ? (long) a << 32 | b : (long) b << 32 | a);
 	}
-	
+
+	private static int getNode(final int[][] particleLabels,
+		final int[][] backgroundLabels, final int x, final int y, final int z,
+		final int w, final int nParticles)
+	{
+		final int i = y * w + x;
+		final int label = particleLabels[z][i];
+		if (label != 0) return label;
+		return nParticles - 1 + backgroundLabels[z][i];
+	}
+
 	/**
 	 * Calculate number of branches and total branch length by running Skeletonize3D
 	 * and Analyze Skeleton on each particle.
 	 * 
 	 * <p>
-	 * Calls {@link AnalyzeSkeleton_#run()} with no arguments.
+	 * Calls {@link AnalyzeSkeleton_#run()} with no arguments. Particles whose
+	 * padded bounding box fits in {@link #MAX_PACKED_SIDE} pixels are laid out
+	 * side by side in shared scratch stacks and skeletonised a stack at a time;
+	 * bigger particles are skeletonised one at a time. The results of packed
+	 * particles hold the per-tree counts and lengths of their trees, but not their
+	 * graphs or voxel lists.
 	 * </p>
 	 *  
 	 * @param imp            Input image
-	 * @param particleLabels particle label array
+	 * @param voxelIndex     voxels of each particle
 	 * @param limits         xyz limits of each particle
 	 * @param nParticles     number of particles
 	 * @return array of {@link SkeletonResult} result objects. Use methods therein
@@ -537,23 +718,39 @@ public class ParticleAnalysis {
 	 *         there should be only one tree per particle so its result is at [0].
 	 */
 	static SkeletonResult[] getBranchLength(final ImagePlus imp,
-			final int[][] particleLabels, final int[][] limits, final int nParticles)
+			final VoxelIndex voxelIndex, final int[][] limits, final int nParticles)
 	{
 		final SkeletonResult[] skeletonResults = new SkeletonResult[nParticles];
+		final int[][] crops = new int[nParticles][];
+		for (int p = 1; p < nParticles; p++) {
+			crops[p] = getCrop(p, imp, limits, 1);
+		}
+		final List<Integer> singles = new ArrayList<>();
+		final List<SkeletonPack> packs = getSkeletonPacks(crops, limits, nParticles,
+			singles);
+		// getStack() creates the stack of a single image on first call
+		imp.getStack();
 		final Thread[] threads = Multithreader.newThreads();
-		final AtomicInteger ai = new AtomicInteger(1);
+		final AtomicInteger ai = new AtomicInteger(0);
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
 				final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
 				final AnalyzeSkeleton_ analyzeSkeleton_ = new AnalyzeSkeleton_();
-				for (int i = ai.getAndIncrement(); i < nParticles; i = ai.getAndIncrement()) {
-					final ImagePlus particleImp = getBinaryParticle(i, imp, particleLabels,
-							limits, 1);
-					skeletoniser.setup("", particleImp);
-					skeletoniser.run(null);
-					analyzeSkeleton_.setup("", particleImp);
-					final SkeletonResult skeletonResult = analyzeSkeleton_.run();
-					skeletonResults[i] = skeletonResult;
+				for (int i = ai.getAndIncrement(); i < singles.size() + packs.size(); i = ai.getAndIncrement()) {
+					if (i < singles.size()) {
+						final int p = singles.get(i);
+						skeletonResults[p] = getSkeletonResult(getBinaryParticle(p, imp,
+							voxelIndex, limits, 1), skeletoniser, analyzeSkeleton_);
+						continue;
+					}
+					final SkeletonPack pack = packs.get(i - singles.size());
+					if (skeletonisePack(pack, imp, voxelIndex, crops, skeletoniser,
+						analyzeSkeleton_, skeletonResults)) continue;
+					// the trees could not be told apart, so fall back to one at a time
+					for (final int p : pack.particles) {
+						skeletonResults[p] = getSkeletonResult(getBinaryParticle(p, imp,
+							voxelIndex, limits, 1), skeletoniser, analyzeSkeleton_);
+					}
 				}
 			});
 		}
@@ -561,18 +758,229 @@ public class ParticleAnalysis {
 		return skeletonResults;
 	}
 
+	private static SkeletonResult getSkeletonResult(final ImagePlus binaryImp,
+		final Skeletonize3D_ skeletoniser, final AnalyzeSkeleton_ analyzeSkeleton_)
+	{
+		skeletoniser.setup("", binaryImp);
+		skeletoniser.run(null);
+		analyzeSkeleton_.setup("", binaryImp);
+		return analyzeSkeleton_.run();
+	}
+
 	/**
-	 * Calculate the number of cavities in the image, which may be interpreted
-	 * as a count of disconnected particles of background.
-	 * 
-	 * @param imp input image
-	 * @return number of cavities
+	 * Lay out the small particles in packs, filling rows of each pack's xy plane
+	 * from left to right and top to bottom. Each particle's crop is separated from
+	 * its neighbours by at least one empty pixel, so that their skeletons can't
+	 * touch.
+	 *
+	 * @param crops          padded crop of each particle, from
+	 *                       {@link #getCrop(int, ImagePlus, int[][], int)}
+	 * @param limits         xyz limits of each particle
+	 * @param nParticles     number of particles
+	 * @param singles        receives the particles that are too big to pack,
+	 *                       largest first
+	 * @return packs of small particles
+	 */
+	private static List<SkeletonPack> getSkeletonPacks(final int[][] crops,
+		final int[][] limits, final int nParticles, final List<Integer> singles)
+	{
+		final List<Integer> small = new ArrayList<>();
+		for (final int p : getLargestFirst(limits, nParticles)) {
+			final int[] crop = crops[p];
+			if (crop[3] > MAX_PACKED_SIDE || crop[4] > MAX_PACKED_SIDE ||
+				crop[5] > MAX_PACKED_SIDE) singles.add(p);
+			else small.add(p);
+		}
+		// deepest first, so that each pack holds particles of similar depth
+		small.sort((a, b) -> crops[a][5] != crops[b][5] ? Integer.compare(
+			crops[b][5], crops[a][5]) : Integer.compare(crops[b][4], crops[a][4]));
+		final List<SkeletonPack> packs = new ArrayList<>();
+		SkeletonPack pack = null;
+		int x = 0;
+		int y = 0;
+		int rowHeight = 0;
+		for (final int p : small) {
+			final int width = crops[p][3];
+			final int height = crops[p][4];
+			if (pack != null && x + width > PACK_SIDE) {
+				x = 0;
+				y += rowHeight + 1;
+				rowHeight = 0;
+			}
+			if (pack == null || y + height > PACK_SIDE || 2 * crops[p][5] < pack.depth) {
+				pack = new SkeletonPack(crops[p][5]);
+				packs.add(pack);
+				x = 0;
+				y = 0;
+				rowHeight = 0;
+			}
+			pack.add(p, x, y, width, height);
+			x += width + 1;
+			rowHeight = Math.max(rowHeight, height);
+		}
+		return packs;
+	}
+
+	/**
+	 * Skeletonise and analyse a pack of particles in one go, and split the trees
+	 * found back out to the particles they lie in.
+	 *
+	 * @return true if the results were set, false if a tree could not be traced
+	 *         back to its particle, in which case no results are set.
+	 */
+	private static boolean skeletonisePack(final SkeletonPack pack,
+		final ImagePlus imp, final VoxelIndex voxelIndex, final int[][] crops,
+		final Skeletonize3D_ skeletoniser, final AnalyzeSkeleton_ analyzeSkeleton_,
+		final SkeletonResult[] skeletonResults)
+	{
+		final int w = imp.getWidth();
+		final int packSize = pack.width * pack.height;
+		final int nSlots = pack.particles.size();
+		final ImageStack stack = new ImageStack(pack.width, pack.height);
+		final byte[][] slices = new byte[pack.depth][];
+		for (int z = 0; z < pack.depth; z++) {
+			slices[z] = new byte[packSize];
+			stack.addSlice("", slices[z]);
+		}
+		// slot + 1 of the particle that owns each pixel of the xy plane
+		final int[] slotMap = new int[packSize];
+		for (int s = 0; s < nSlots; s++) {
+			final int p = pack.particles.get(s);
+			final int[] crop = crops[p];
+			final int xOffset = pack.xOrigins.get(s) - crop[0];
+			final int yOffset = pack.yOrigins.get(s) - crop[1];
+			for (int y = pack.yOrigins.get(s); y < pack.yOrigins.get(s) + crop[4]; y++) {
+				final int offset = y * pack.width + pack.xOrigins.get(s);
+				Arrays.fill(slotMap, offset, offset + crop[3], s + 1);
+			}
+			for (int z = voxelIndex.getFirstSlice(p); z <= voxelIndex.getLastSlice(p); z++) {
+				final int[] sliceVoxels = voxelIndex.getSliceVoxels(z);
+				final byte[] slice = slices[z - crop[2]];
+				for (int v = voxelIndex.getStart(p, z); v < voxelIndex.getEnd(p, z); v++) {
+					final int i = sliceVoxels[v];
+					final int y = i / w + yOffset;
+					final int x = i % w + xOffset;
+					slice[y * pack.width + x] = (byte) 0xFF;
+				}
+			}
+		}
+		final ImagePlus packImp = new ImagePlus("Particles", stack);
+		packImp.setCalibration(imp.getCalibration());
+		final SkeletonResult packResult = getSkeletonResult(packImp, skeletoniser,
+			analyzeSkeleton_);
+
+		final int nTrees = packResult.getNumOfTrees();
+		final Graph[] graphs = packResult.getGraph();
+		final int[] treeSlots = new int[nTrees];
+		final int[] nSlotTrees = new int[nSlots];
+		for (int t = 0; t < nTrees; t++) {
+			if (graphs == null || graphs[t] == null || graphs[t].getVertices()
+				.isEmpty()) return false;
+			final List<Point> points = graphs[t].getVertices().get(0).getPoints();
+			if (points.isEmpty()) return false;
+			final Point point = points.get(0);
+			final int slot = slotMap[point.y * pack.width + point.x] - 1;
+			if (slot < 0) return false;
+			treeSlots[t] = slot;
+			nSlotTrees[slot]++;
+		}
+		for (int s = 0; s < nSlots; s++) {
+			// trees keep the order they have in the pack, which is their scan order
+			final int[] trees = new int[nSlotTrees[s]];
+			int n = 0;
+			for (int t = 0; t < nTrees; t++) {
+				if (treeSlots[t] == s) trees[n++] = t;
+			}
+			skeletonResults[pack.particles.get(s)] = getTreeResults(packResult, trees);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the per-tree counts and lengths of some of the trees of a result into a
+	 * new result.
+	 */
+	private static SkeletonResult getTreeResults(final SkeletonResult result,
+		final int[] trees)
+	{
+		final SkeletonResult treeResult = new SkeletonResult(trees.length);
+		treeResult.setBranches(select(result.getBranches(), trees));
+		treeResult.setJunctions(select(result.getJunctions(), trees));
+		treeResult.setEndPoints(select(result.getEndPoints(), trees));
+		treeResult.setSlabs(select(result.getSlabs(), trees));
+		treeResult.setTriples(select(result.getTriples(), trees));
+		treeResult.setQuadruples(select(result.getQuadruples(), trees));
+		treeResult.setAverageBranchLength(select(result.getAverageBranchLength(),
+			trees));
+		treeResult.setMaximumBranchLength(select(result.getMaximumBranchLength(),
+			trees));
+		return treeResult;
+	}
+
+	private static int[] select(final int[] values, final int[] indices) {
+		final int[] selected = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			selected[i] = values[indices[i]];
+		}
+		return selected;
+	}
+
+	private static double[] select(final double[] values, final int[] indices) {
+		final double[] selected = new double[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			selected[i] = values[indices[i]];
+		}
+		return selected;
+	}
+
+	/**
+	 * Small particles laid out side by side in the xy plane of one scratch stack.
 	 */
-	private static int getNCavities(final ImagePlus imp) {
-		final ConnectedComponents connector = new ConnectedComponents();
-		connector.run(imp, ConnectedComponents.BACK);
-		return connector.getNParticles() - 2;
-	}	
+	private static final class SkeletonPack {
+
+		private final int depth;
+		private final List<Integer> particles = new ArrayList<>();
+		private final List<Integer> xOrigins = new ArrayList<>();
+		private final List<Integer> yOrigins = new ArrayList<>();
+		private int width;
+		private int height;
+
+		private SkeletonPack(final int depth) {
+			this.depth = depth;
+		}
+
+		private void add(final int p, final int x, final int y, final int cropWidth,
+			final int cropHeight)
+		{
+			particles.add(p);
+			xOrigins.add(x);
+			yOrigins.add(y);
+			width = Math.max(width, x + cropWidth);
+			height = Math.max(height, y + cropHeight);
+		}
+	}
+
+	/**
+	 * Get the bounding box of a particle, padded and clipped to the image
+	 *
+	 * @param p              The particle ID
+	 * @param imp            original image
+	 * @param limits         x,y and z limits of each particle
+	 * @param padding        amount of empty space to pad around the particle
+	 * @return xMin, yMin, zMin, width, height and depth of the crop
+	 */
+	private static int[] getCrop(final int p, final ImagePlus imp,
+		final int[][] limits, final int padding)
+	{
+		final int xMin = Math.max(0, limits[p][0] - padding);
+		final int xMax = Math.min(imp.getWidth() - 1, limits[p][1] + padding);
+		final int yMin = Math.max(0, limits[p][2] - padding);
+		final int yMax = Math.min(imp.getHeight() - 1, limits[p][3] + padding);
+		final int zMin = Math.max(0, limits[p][4] - padding);
+		final int zMax = Math.min(imp.getImageStackSize() - 1, limits[p][5] + padding);
+		return new int[] { xMin, yMin, zMin, xMax - xMin + 1, yMax - yMin + 1,
+			zMax - zMin + 1 };
+	}
 
 	/**
 	 * create a binary ImagePlus containing a single particle and which 'just fits'
@@ -580,40 +988,38 @@ public class ParticleAnalysis {
 	 *
 	 * @param p              The particle ID to get
 	 * @param imp            original image, used for calibration
-	 * @param particleLabels work array of particle labels
+	 * @param voxelIndex     voxels of each particle
 	 * @param limits         x,y and z limits of each particle
 	 * @param padding        amount of empty space to pad around each particle
 	 * @return a cropped single particle image.
 	 */
-	static ImagePlus getBinaryParticle(final int p, final ImagePlus imp, final int[][] particleLabels,
+	static ImagePlus getBinaryParticle(final int p, final ImagePlus imp, final VoxelIndex voxelIndex,
 			final int[][] limits, final int padding) {
 
 		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int xMin = Math.max(0, limits[p][0] - padding);
-		final int xMax = Math.min(w - 1, limits[p][1] + padding);
-		final int yMin = Math.max(0, limits[p][2] - padding);
-		final int yMax = Math.min(h - 1, limits[p][3] + padding);
-		final int zMin = Math.max(0, limits[p][4] - padding);
-		final int zMax = Math.min(d - 1, limits[p][5] + padding);
-		final int stackWidth = xMax - xMin + 1;
-		final int stackHeight = yMax - yMin + 1;
-		final int stackSize = stackWidth * stackHeight;
-		final ImageStack stack = new ImageStack(stackWidth, stackHeight);
+		final int[] crop = getCrop(p, imp, limits, padding);
+		final int xMin = crop[0];
+		final int yMin = crop[1];
+		final int zMin = crop[2];
+		final int zMax = zMin + crop[5] - 1;
+		final int stackWidth = crop[3];
+		final int stackSize = stackWidth * crop[4];
+		final ImageStack stack = new ImageStack(stackWidth, crop[4]);
+		final byte[][] slices = new byte[crop[5]][];
 		for (int z = zMin; z <= zMax; z++) {
-			final byte[] slice = new byte[stackSize];
-			int i = 0;
-			for (int y = yMin; y <= yMax; y++) {
-				final int sourceIndex = y * w;
-				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
-						slice[i] = (byte) 0xFF;
-					}
-					i++;
-				}
+			slices[z - zMin] = new byte[stackSize];
+			stack.addSlice(imp.getStack().getSliceLabel(z + 1), slices[z - zMin]);
+		}
+		// set only the particle's own voxels, not its whole bounding box
+		for (int z = voxelIndex.getFirstSlice(p); z <= voxelIndex.getLastSlice(p); z++) {
+			final int[] sliceVoxels = voxelIndex.getSliceVoxels(z);
+			final byte[] slice = slices[z - zMin];
+			for (int v = voxelIndex.getStart(p, z); v < voxelIndex.getEnd(p, z); v++) {
+				final int i = sliceVoxels[v];
+				final int y = i / w;
+				final int x = i % w;
+				slice[(y - yMin) * stackWidth + x - xMin] = (byte) 0xFF;
 			}
-			stack.addSlice(imp.getStack().getSliceLabel(z + 1), slice);
 		}
 		final ImagePlus binaryImp = new ImagePlus("Particle_" + p, stack);
 		final Calibration cal = imp.getCalibration();
@@ -627,186 +1033,247 @@ public class ParticleAnalysis {
 	 * Create a list of surface meshes, each wrapping a particle
 	 * 
 	 * @param imp Input image, needed for calibration
-	 * @param particleLabels label array
+	 * @param voxelIndex voxels of each particle
 	 * @param limits bounding box limits for each particle
 	 * @param resampling user-set resampling level
 	 * @param nParticles number of particles
-	 * @return list of surface meshes, one per particle
+	 * @return list of surface meshes, one per particle, or null for particles
+	 *         whose mesh is empty
 	 */
-	static ArrayList<List<Point3f>> getSurfacePoints(final ImagePlus imp, final int[][] particleLabels,
+	static ArrayList<SurfaceMesh> getSurfaceMeshes(final ImagePlus imp, final VoxelIndex voxelIndex,
 			final int[][] limits, final int resampling, final int nParticles) {
 		final Calibration cal = imp.getCalibration();
-		final ArrayList<List<Point3f>> surfacePoints = new ArrayList<>();
 		final boolean[] channels = { true, false, false };
-		for (int p = 0; p < nParticles; p++) {
-			if (p > 0) {
-				final ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels, limits, resampling);
-				// noinspection TypeMayBeWeakened
-				final MCTriangulator mct = new MCTriangulator();
-				@SuppressWarnings("unchecked")
-				final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
-
-				final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-				final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-				final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-				for (final Point3f point : points) {
-					point.x += xOffset;
-					point.y += yOffset;
-					point.z += zOffset;
-				}
-				if (points.isEmpty()) {
-					IJ.log("Particle " + p + " resulted in 0 surface points");
-					surfacePoints.add(null);
-				} else {
-					surfacePoints.add(points);
+		final SurfaceMesh[] meshes = new SurfaceMesh[nParticles];
+		// mesh the biggest particles first so that no long job starts last
+		final Integer[] order = getLargestFirst(limits, nParticles);
+		// getStack() creates the stack of a single image on first call
+		imp.getStack();
+		final Thread[] threads = Multithreader.newThreads();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				try {
+					// noinspection TypeMayBeWeakened
+					final MCTriangulator mct = new MCTriangulator();
+					for (int i = ai.getAndIncrement(); i < order.length && failure.get() == null; i = ai
+							.getAndIncrement()) {
+						final int p = order[i];
+						final ImagePlus binaryImp = getBinaryParticle(p, imp, voxelIndex, limits, resampling);
+						@SuppressWarnings("unchecked")
+						final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
+
+						final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
+						final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
+						final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
+						for (final Point3f point : points) {
+							point.x += xOffset;
+							point.y += yOffset;
+							point.z += zOffset;
+						}
+						meshes[p] = new SurfaceMesh(points);
+					}
+				} catch (final Throwable t) {
+					failure.compareAndSet(null, t);
 				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		rethrowFailure(failure);
+
+		final ArrayList<SurfaceMesh> surfaceMeshes = new ArrayList<>(nParticles);
+		for (int p = 0; p < nParticles; p++) {
+			if (p > 0 && meshes[p].getNTriangles() == 0) {
+				IJ.log("Particle " + p + " resulted in 0 surface points");
+				surfaceMeshes.add(null);
 			} else {
-				surfacePoints.add(null);
+				surfaceMeshes.add(meshes[p]);
 			}
 		}
-		return surfacePoints;
+		return surfaceMeshes;
 	}
 
 	/**
-	 * Calculate surface areas of the particles
-	 * 
-	 * @param surfacePoints list of surface points
-	 * @return list of surface areas
+	 * Rethrow the first exception or error that stopped a worker thread, which
+	 * Multithreader.startAndJoin() would otherwise lose along with the thread.
+	 *
+	 * @param failure first throwable caught by the worker threads, if any
 	 */
-	static double[] getSurfaceAreas(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().mapToDouble(ParticleAnalysis::getSurfaceArea).toArray();
+	private static void rethrowFailure(final AtomicReference<Throwable> failure) {
+		final Throwable t = failure.get();
+		if (t == null)
+			return;
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		throw new RuntimeException(t);
 	}
 
 	/**
-	 * Calculate surface area of the isosurface
+	 * Sort the foreground particles by the volume of their bounding boxes, which
+	 * is what the cost of meshing them scales with.
 	 *
-	 * @param points in 3D triangle mesh
-	 * @return surface area
+	 * @param limits bounding box limits for each particle
+	 * @param nParticles number of particles
+	 * @return particle labels 1 to nParticles - 1, largest bounding box first
 	 */
-	private static double getSurfaceArea(final List<Point3f> points) {
-		if (points == null) {
-			return 0;
-		}
-		double sumArea = 0;
-		final int nPoints = points.size();
-		final Point3f origin = new Point3f(0.0f, 0.0f, 0.0f);
-		for (int n = 0; n < nPoints; n += 3) {
-			final Point3f cp = crossProduct(points.get(n), points.get(n + 1), points.get(n + 2));
-			final double deltaArea = 0.5 * cp.distance(origin);
-			sumArea += deltaArea;
+	private static Integer[] getLargestFirst(final int[][] limits, final int nParticles) {
+		final Integer[] order = new Integer[Math.max(0, nParticles - 1)];
+		final long[] boxVolumes = new long[nParticles];
+		for (int p = 1; p < nParticles; p++) {
+			order[p - 1] = p;
+			boxVolumes[p] = (long) (limits[p][1] - limits[p][0] + 1) * (limits[p][3] - limits[p][2] + 1)
+					* (limits[p][5] - limits[p][4] + 1);
 		}
-		return sumArea;
+		Arrays.sort(order, (a, b) -> Long.compare(boxVolumes[b], boxVolumes[a]));
+		return order;
 	}
 
 	/**
-	 * Calculate volume contained within surface points
+	 * Calculate surface areas of the particles
 	 * 
-	 * @param surfacePoints list of surface points
+	 * @param surfaceMeshes list of surface meshes
+	 * @return list of surface areas
+	 */
+	static double[] getSurfaceAreas(final Collection<SurfaceMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().mapToDouble(m -> m == null ? 0 : m.getArea()).toArray();
+	}
+
+	/**
+	 * Calculate volume contained within surface meshes
+	 * 
+	 * @param surfaceMeshes list of surface meshes
 	 * @return  list of particle volumes
 	 */
-	static double[] getSurfaceVolume(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().mapToDouble(p -> {
-			if (p == null) {
-				return 0;
-			}
-			final CustomTriangleMesh mesh = new CustomTriangleMesh(p);
-			return Math.abs(mesh.getVolume());
-		}).toArray();
+	static double[] getSurfaceVolume(final Collection<SurfaceMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().mapToDouble(m -> m == null ? 0 : m.getVolume()).toArray();
 	}
 
 	/**
-	 * Get the Feret diameter of a surface. Uses an inefficient brute-force
-	 * algorithm.
+	 * Get the Feret diameter of a surface. The longest chord joins two vertices of
+	 * the surface's convex hull, so only the hull vertices are searched for it.
 	 *
-	 * @param surfacePoints points from a surface mesher
+	 * @param surfaceMeshes surface meshes from {@link #getSurfaceMeshes}
 	 * @return Feret diameters and x, y, z coordinates of the two feret points of each surface,
 	 * packed in a double so that the feret diameter of particle i is found at [i * 7] and the
 	 * points' coordinates are in the following 6 positions in ax, ay, az, bx, by, bz order.
 	 */
-	static double[][] getFerets(final List<List<Point3f>> surfacePoints) {
+	static double[][] getFerets(final List<SurfaceMesh> surfaceMeshes) {
 		Thread[] threads = Multithreader.newThreads();
-		final int nSurfaces = surfacePoints.size();
+		final int nSurfaces = surfaceMeshes.size();
 		//distance, xa, ya, za, xb, yb, zb
 		final double[][] ferets = new double[nSurfaces][7];
 		AtomicInteger ai = new AtomicInteger(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
-				for (int i = ai.getAndIncrement(); i < nSurfaces; i = ai.getAndIncrement()) {
-					final List<Point3f> surface = surfacePoints.get(i);
+				try {
+					for (int i = ai.getAndIncrement(); i < nSurfaces && failure.get() == null; i = ai
+							.getAndIncrement()) {
+						final SurfaceMesh surface = surfaceMeshes.get(i);
 					
 					
-					if (surface == null) {
-						Arrays.fill(ferets[i], Double.NaN);
-						continue;
-					}
+						if (surface == null) {
+							Arrays.fill(ferets[i], Double.NaN);
+							continue;
+						}
 					
-					final int nPoints = surface.size();
+						final int nPoints = 3 * surface.getNTriangles();
 					
-					//4 triangles * 3 points for the minimal tetrahedron
-					if (nPoints < 12) {
-						Arrays.fill(ferets[i], Double.NaN);
-					}
+						//4 triangles * 3 points for the minimal tetrahedron
+						if (nPoints < 12) {
+							Arrays.fill(ferets[i], Double.NaN);
+						}
 					
-					// check all the point pairs in this surface
-					Point3f feretA = new Point3f();
-					Point3f feretB = new Point3f();
-					double feret = 0;
-					for (int p = 0; p < nPoints; p++) {
-						Point3f a = surface.get(p);
-						for (int q = p + 1; q < nPoints; q++) {
-							Point3f b = surface.get(q);
-							final double distance = a.distance(b);
-							if (distance > feret) {
-								feret = distance;
-								feretA = a;
-								feretB = b;
+						// only convex hull vertices can be ends of the longest chord
+						final int[] candidates = getHullVertices(surface);
+						final float[] vertices = surface.getVertices();
+						int feretA = -1;
+						int feretB = -1;
+						double feret = 0;
+						for (int p = 0; p < candidates.length; p++) {
+							final int a = candidates[p];
+							for (int q = p + 1; q < candidates.length; q++) {
+								final int b = candidates[q];
+								final double distance = surface.distance(a, b);
+								if (distance > feret) {
+									feret = distance;
+									feretA = a;
+									feretB = b;
+								}
+							}
+						}
+						ferets[i][0] = feret;
+						Arrays.fill(ferets[i], 1, 7, 0);
+						if (feretA >= 0) {
+							for (int c = 0; c < 3; c++) {
+								ferets[i][1 + c] = vertices[3 * feretA + c];
+								ferets[i][4 + c] = vertices[3 * feretB + c];
 							}
 						}
 					}
-					ferets[i][0] = feret;
-					ferets[i][1] = feretA.x;
-					ferets[i][2] = feretA.y;
-					ferets[i][3] = feretA.z;
-					ferets[i][4] = feretB.x;
-					ferets[i][5] = feretB.y;
-					ferets[i][6] = feretB.z;
+				} catch (final Throwable t) {
+					failure.compareAndSet(null, t);
 				}
 			});
 		}
 		Multithreader.startAndJoin(threads);
+		rethrowFailure(failure);
 		return ferets;
 	}
 
+	/**
+	 * Find the vertices of a surface mesh that are vertices of its convex hull.
+	 *
+	 * @param surface surface mesh
+	 * @return indices of the hull vertices in ascending order, or of all the
+	 *         vertices if the surface is flat and has no 3D hull.
+	 */
+	static int[] getHullVertices(final SurfaceMesh surface) {
+		final double[] coordinates = toDoubles(surface.getVertices());
+		final int[] hull = ConvexHull3D.getHullVertices(coordinates);
+		if (hull != null) return hull;
+		final int[] all = new int[surface.getNVertices()];
+		Arrays.setAll(all, v -> v);
+		return all;
+	}
+
+	private static double[] toDoubles(final float[] vertices) {
+		final double[] coordinates = new double[vertices.length];
+		for (int i = 0; i < vertices.length; i++) {
+			coordinates[i] = vertices[i];
+		}
+		return coordinates;
+	}
+
 	/**
 	 * Get the list of best-fit ellipsoids for the particle surfaces
 	 * 
-	 * @param surfacePoints list of surface points
+	 * @param surfaceMeshes list of surface meshes
 	 * @return Object[] array containing the list of ellipsoids, each of which is
 	 *         also stored as an Object[] array (see FitEllipsoid.yuryPetrov() for
 	 *         details). Note that an Object[] is also an Object so there is no need
 	 *         to make a 2D array (i.e. Object[][]). However, client code must
 	 *         unwrap the ellipsoid elements into arrays by casting to Object[].
 	 */
-	static Object[] getEllipsoids(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().map(surface -> {
+	static Object[] getEllipsoids(final Collection<SurfaceMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().map(surface -> {
 
 			if (surface == null)
 				return null;
 
-			final Iterator<Point3f> pointIter = surface.iterator();
-			final double[][] coOrdinates = new double[surface.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				final Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
+			// mesh vertices are distinct, so each point is added once
+			final float[] vertices = surface.getVertices();
+			final FitEllipsoid.NormalEquations equations = new FitEllipsoid.NormalEquations();
+			for (int v = 0; v < vertices.length; v += 3) {
+				equations.add(vertices[v], vertices[v + 1], vertices[v + 2]);
 			}
 
 			Object[] ellipsoid = null;
 			try {
-				ellipsoid = FitEllipsoid.yuryPetrov(coOrdinates);
+				ellipsoid = FitEllipsoid.yuryPetrov(equations);
 			} catch (final IllegalArgumentException re) {
 				IJ.log("Could not fit ellipsoid to particle: "+re.getMessage());
 			} catch (final Exception e) {
@@ -815,30 +1282,4 @@ public class ParticleAnalysis {
 			return ellipsoid;
 		}).toArray();
 	}
-	
-	/**
-	 * Calculate the cross product of 3 Point3f's, which describe two vectors
-	 * joined at the tails. Can be used to find the plane / surface normal of a
-	 * triangle. Half of its magnitude is the area of the triangle.
-	 *
-	 * @param point0 both vectors' tails
-	 * @param point1 vector 1's head
-	 * @param point2 vector 2's head
-	 * @return cross product vector
-	 */
-	private static Point3f crossProduct(final Point3f point0,
-		final Point3f point1, final Point3f point2)
-	{
-		final double x1 = point1.x - point0.x;
-		final double y1 = point1.y - point0.y;
-		final double z1 = point1.z - point0.z;
-		final double x2 = point2.x - point0.x;
-		final double y2 = point2.y - point0.y;
-		final double z2 = point2.z - point0.z;
-		final Point3f crossVector = new Point3f();
-		crossVector.x = (float) (y1 * z2 - z1 * y2);
-		crossVector.y = (float) (z1 * x2 - x1 * z2);
-		crossVector.z = (float) (x1 * y2 - y1 * x2);
-		return crossVector;
-	}
 }
@@ -27,13 +27,15 @@ import java.awt.AWTEvent;
 import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.TextField;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.bonej.menuWrappers.ThicknessHelper;
 import org.bonej.util.DialogModifier;
 import org.bonej.util.ImageCheck;
-import org.scijava.vecmath.Point3f;
 
 import Jama.EigenvalueDecomposition;
 
@@ -42,7 +44,6 @@ import ij.ImagePlus;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij3d.Image3DUniverse;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
@@ -70,18 +71,22 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final List<?> checkboxes = gd.getCheckboxes();
 		final List<?> numbers = gd.getNumericFields();
 
+		// streamed labels are not kept
+		final Checkbox streamBox = (Checkbox) checkboxes.get(0);
+		final Checkbox keepBox = (Checkbox) checkboxes.get(12);
+		keepBox.setEnabled(!streamBox.getState());
 		// link moments and ellipsoid choice to unit vector choice
-		final Checkbox momBox = (Checkbox) checkboxes.get(4);
-		final Checkbox elBox = (Checkbox) checkboxes.get(8);
-		final Checkbox vvvBox = (Checkbox) checkboxes.get(9);
+		final Checkbox momBox = (Checkbox) checkboxes.get(5);
+		final Checkbox elBox = (Checkbox) checkboxes.get(9);
+		final Checkbox vvvBox = (Checkbox) checkboxes.get(10);
 		vvvBox.setEnabled(elBox.getState() || momBox.getState());
 		// link show stack 3d to volume resampling
-		final Checkbox box = (Checkbox) checkboxes.get(18);
+		final Checkbox box = (Checkbox) checkboxes.get(20);
 		final TextField numb = (TextField) numbers.get(4);
 		numb.setEnabled(box.getState());
 		// link show surfaces, gradient choice and split value
-		final Checkbox surfbox = (Checkbox) checkboxes.get(14);
-		final Choice col = (Choice) choices.get(0);
+		final Checkbox surfbox = (Checkbox) checkboxes.get(16);
+		final Choice col = (Choice) choices.get(1);
 		final TextField split = (TextField) numbers.get(3);
 		col.setEnabled(surfbox.getState());
 		split.setEnabled(surfbox.getState() && col.getSelectedIndex() == 1);
@@ -106,6 +111,15 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final Calibration cal = imp.getCalibration();
 		final String units = cal.getUnits();
 		final GenericDialog gd = new GenericDialog("Setup");
+		// labels that won't fit in memory are streamed through a temporary file,
+		// which allows only the measurements made in one scan of the labels
+		final boolean fitsInMemory = labelsFitInMemory(imp, false);
+		gd.addCheckbox("Stream_labels through a temporary file", !fitsInMemory);
+		if (!fitsInMemory) {
+			gd.addMessage("The particle labels may be too large for memory.");
+		}
+		gd.addMessage("Streamed labels allow only volumes, centroids, moments\n" +
+			"and axes to be measured.");
 		final String[] headers = { "Measurement Options", " " };
 		final String[] labels = new String[12];
 		final boolean[] defaultValues = new boolean[12];
@@ -131,11 +145,15 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		defaultValues[9] = false;
 		labels[10] = "Skeletons";
 		defaultValues[10] = false;
+		labels[11] = "Keep_labels for re-filtering";
+		defaultValues[11] = false;
 		gd.addCheckboxGroup(6, 2, labels, defaultValues, headers);
 		gd.addNumericField("Min Volume", 0, 3, 7, units + "³");
 		gd.addNumericField("Max Volume", Double.POSITIVE_INFINITY, 3, 7, units +
 			"³");
 		gd.addNumericField("Surface_resampling", 2, 0);
+		final String[] labellers = { "Multithreaded", "Run-length" };
+		gd.addChoice("Labelling algorithm", labellers, labellers[0]);
 		final String[] headers2 = { "Graphical Results", " " };
 		final String[] labels2 = new String[9];
 		final boolean[] defaultValues2 = new boolean[9];
@@ -162,6 +180,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addChoice("Surface colours", items, items[0]);
 		gd.addNumericField("Split value", 0, 3, 7, units + "³");
 		gd.addNumericField("Volume_resampling", 2, 0);
+		gd.addStringField("Results_file (CSV)", "", 20);
+		gd.addMessage("Leave the results file empty to show all results in a table");
 		gd.addHelp("https://imagej.net/BoneJ#Particle_Analyser");
 		gd.addDialogListener(this);
 		gd.showDialog();
@@ -170,85 +190,121 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		final double minVol = gd.getNextNumber();
 		final double maxVol = gd.getNextNumber();
+		final boolean isStreamed = gd.getNextBoolean();
 		final boolean doExclude = gd.getNextBoolean();
-		final boolean doSurfaceArea = gd.getNextBoolean();
-		final boolean doFeret = gd.getNextBoolean();
-		final boolean doSurfaceVolume = gd.getNextBoolean();
+		final boolean doSurfaceArea = gd.getNextBoolean() && !isStreamed;
+		final boolean doFeret = gd.getNextBoolean() && !isStreamed;
+		final boolean doSurfaceVolume = gd.getNextBoolean() && !isStreamed;
 		final int resampling = (int) Math.floor(gd.getNextNumber());
 		final boolean doMoments = gd.getNextBoolean();
-		final boolean doEulerCharacters = gd.getNextBoolean();
-		final boolean doThickness = gd.getNextBoolean();
-		final boolean doMask = gd.getNextBoolean();
-		final boolean doEllipsoids = gd.getNextBoolean();
+		final boolean doEulerCharacters = gd.getNextBoolean() && !isStreamed;
+		final boolean doThickness = gd.getNextBoolean() && !isStreamed;
+		final boolean doMask = gd.getNextBoolean() && !isStreamed;
+		final boolean doEllipsoids = gd.getNextBoolean() && !isStreamed;
 		final boolean doVerboseUnitVectors = gd.getNextBoolean();
-		final boolean doSkeletons = gd.getNextBoolean();
-		final boolean doParticleImage = gd.getNextBoolean();
-		final boolean doParticleSizeImage = gd.getNextBoolean();
-		final boolean doThickImage = gd.getNextBoolean();
-		final boolean doSurfaceImage = gd.getNextBoolean();
+		final boolean doSkeletons = gd.getNextBoolean() && !isStreamed;
+		boolean keepLabels = gd.getNextBoolean() && !isStreamed;
+		final boolean doRunLength = gd.getNextChoiceIndex() == 1;
+		final boolean doParticleImage = gd.getNextBoolean() && !isStreamed;
+		final boolean doParticleSizeImage = gd.getNextBoolean() && !isStreamed;
+		final boolean doThickImage = gd.getNextBoolean() && !isStreamed;
+		final boolean doSurfaceImage = gd.getNextBoolean() && !isStreamed;
 		final int colourMode = gd.getNextChoiceIndex();
 		final double splitValue = gd.getNextNumber();
 		final boolean doCentroidImage = gd.getNextBoolean();
 		final boolean doAxesImage = gd.getNextBoolean();
-		final boolean doEllipsoidImage = gd.getNextBoolean();
-		final boolean do3DOriginal = gd.getNextBoolean();
-		final boolean doEllipsoidStack = gd.getNextBoolean();
+		final boolean doEllipsoidImage = gd.getNextBoolean() && !isStreamed;
+		final boolean do3DOriginal = gd.getNextBoolean() && !isStreamed;
+		final boolean doEllipsoidStack = gd.getNextBoolean() && !isStreamed;
 		final int origResampling = (int) Math.floor(gd.getNextNumber());
+		final String resultsFile = gd.getNextString().trim();
+		if (keepLabels && !labelsFitInMemory(imp, true)) {
+			IJ.log("Not enough memory to keep the particle labels of " + imp
+				.getTitle() + " for re-filtering");
+			keepLabels = false;
+		}
 
 		// get the particles and do the analysis
 		final long start = System.nanoTime();
-		ConnectedComponents connector = new ConnectedComponents();
-		final Object[] result = getParticles(connector, imp, minVol, maxVol,
-				ConnectedComponents.FORE, doExclude);
+		final int[][] particleLabels;
+		final long[] particleSizes;
+		ParticleStatistics streamedStatistics = null;
+		if (isStreamed) {
+			IJ.log("Streaming the particle labels of " + imp.getTitle() +
+				" through a temporary file");
+			try {
+				streamedStatistics = getStreamedStatistics(imp, minVol, maxVol,
+					doExclude);
+			}
+			catch (final IOException e) {
+				IJ.error("Particle Analyser", "Could not stream particle labels: " + e
+					.getMessage());
+				return;
+			}
+			particleLabels = null;
+			particleSizes = streamedStatistics.getParticleSizes();
+		}
+		else {
+			ConnectedComponents connector = new ConnectedComponents();
+			final Object[] result = getParticles(connector, imp, minVol, maxVol,
+					ConnectedComponents.FORE, doExclude, doRunLength, keepLabels);
+			particleLabels = (int[][]) result[1];
+			particleSizes = (long[]) result[2];
+		}
 		// calculate particle labelling time in ms
 		final long time = (System.nanoTime() - start) / 1000000;
 		IJ.log("Particle labelling finished in " + time + " ms");
 		
 		//start of analysis
-		final int[][] particleLabels = (int[][]) result[1];
-		final long[] particleSizes = (long[]) result[2];
 		final int nParticles = particleSizes.length;
 
 		final double[] volumes = ParticleAnalysis.getVolumes(imp, particleSizes);
-		
-		//centroids and limits could run in separate threads - they do not depend on one another
-		final double[][] centroids = ParticleAnalysis.getCentroids(imp, particleLabels,
-			particleSizes);
-		final int[][] limits = ParticleAnalysis.getParticleLimits(imp, particleLabels, nParticles);
+
+		// the thickness map is summarised in the same pass as the moments
+		final ImagePlus thickImp = doThickness ? ThicknessHelper.getLocalThickness(imp, false, doMask) : null;
+
+		// centroids, limits, moments and thickness in one scan of the labels
+		final ParticleStatistics statistics = isStreamed ? streamedStatistics : ParticleStatistics.measure(
+			particleLabels, imp.getWidth(), imp.getHeight(), nParticles, thickImp);
+		final double[][] centroids = statistics.getCentroids(imp.getCalibration());
+		final int[][] limits = statistics.getParticleLimits();
 
 		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
 		if (doMoments || doAxesImage || colourMode == ParticleDisplay.ORIENTATION) {
-			eigens = ParticleAnalysis.getEigens(imp, particleLabels, centroids);
+			eigens = statistics.getEigens(imp.getCalibration());
 		}
 		
 		// set up resources for analysis
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<>();
-		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids ||
-			doFeret || doEllipsoidStack)
-		{
-			surfacePoints = ParticleAnalysis.getSurfacePoints(imp, particleLabels, limits, resampling, nParticles);
+		final boolean doSurfaces = doSurfaceArea || doSurfaceVolume || doSurfaceImage ||
+			doEllipsoids || doFeret || doEllipsoidStack;
+		VoxelIndex voxelIndex = null;
+		if (doSurfaces || doSkeletons) {
+			voxelIndex = VoxelIndex.build(particleLabels, imp.getWidth(), imp.getHeight(), nParticles);
+		}
+		ArrayList<SurfaceMesh> surfaceMeshes = new ArrayList<>();
+		if (doSurfaces) {
+			surfaceMeshes = ParticleAnalysis.getSurfaceMeshes(imp, voxelIndex, limits, resampling, nParticles);
 		}
 		// calculate dimensions
 		double[] surfaceAreas = new double[nParticles];
 		if (doSurfaceArea) {
-			surfaceAreas = ParticleAnalysis.getSurfaceAreas(surfacePoints);
+			surfaceAreas = ParticleAnalysis.getSurfaceAreas(surfaceMeshes);
 		}
 		double[][] ferets = new double[nParticles][7];
 		if (doFeret) {
-			ferets = ParticleAnalysis.getFerets(surfacePoints);
+			ferets = ParticleAnalysis.getFerets(surfaceMeshes);
 		}
 		double[] surfaceVolumes = new double[nParticles];
 		if (doSurfaceVolume) {
-			surfaceVolumes = ParticleAnalysis.getSurfaceVolume(surfacePoints);
+			surfaceVolumes = ParticleAnalysis.getSurfaceVolume(surfaceMeshes);
 		}
 		double[][] eulerCharacters = new double[nParticles][3];
 		if (doEulerCharacters) {
-			eulerCharacters = ParticleAnalysis.getEulerCharacter(imp, particleLabels, limits, nParticles);
+			eulerCharacters = ParticleAnalysis.getEulerCharacter(imp, particleLabels, nParticles);
 		}
 		double[][] thick = new double[nParticles][2];
 		if (doThickness) {
-			final ImagePlus thickImp = ThicknessHelper.getLocalThickness(imp, false, doMask);
-			thick = ParticleAnalysis.getMeanStdDev(thickImp, particleLabels, particleSizes);
+			thick = statistics.getMeanStdDev();
 			if (doThickImage) {
 				double max = 0;
 				for (int i = 1; i < nParticles; i++) {
@@ -263,117 +319,122 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		Object[] ellipsoids = new Object[nParticles][10];
 		if (doEllipsoids || doEllipsoidImage || doEllipsoidStack) {
-			ellipsoids = ParticleAnalysis.getEllipsoids(surfacePoints);
+			ellipsoids = ParticleAnalysis.getEllipsoids(surfaceMeshes);
 		}
 		SkeletonResult[] skeletonResults = null;
 		if (doSkeletons) {
-			skeletonResults = ParticleAnalysis.getBranchLength(imp, particleLabels, limits, nParticles);
+			skeletonResults = ParticleAnalysis.getBranchLength(imp, voxelIndex, limits, nParticles);
 		}
 
-		// Show numerical results
-		final ResultsTable rt = new ResultsTable();
-		for (int i = 1; i < volumes.length; i++) {
-			if (volumes[i] > 0) {
-				rt.incrementCounter();
-				rt.addLabel(imp.getTitle());
-				rt.addValue("ID", i);
-				rt.addValue("Vol. (" + units + "³)", volumes[i]);
-				rt.addValue("x Cent (" + units + ")", centroids[i][0]);
-				rt.addValue("y Cent (" + units + ")", centroids[i][1]);
-				rt.addValue("z Cent (" + units + ")", centroids[i][2]);
-				if (doSurfaceArea) {
-					rt.addValue("SA (" + units + "²)", surfaceAreas[i]);
-				}
-				if (doFeret) {
-					rt.addValue("Feret (" + units + ")", ferets[i][0]);
-					rt.addValue("FeretAx (" + units + ")", ferets[i][1]);
-					rt.addValue("FeretAy (" + units + ")", ferets[i][2]);
-					rt.addValue("FeretAz (" + units + ")", ferets[i][3]);
-					rt.addValue("FeretBx (" + units + ")", ferets[i][4]);
-					rt.addValue("FeretBy (" + units + ")", ferets[i][5]);
-					rt.addValue("FeretBz (" + units + ")", ferets[i][6]);
-				}
-				if (doSurfaceVolume) {
-					rt.addValue("Encl. Vol. (" + units + "³)", surfaceVolumes[i]);
-				}
-				if (doMoments) {
-					final EigenvalueDecomposition E = eigens[i];
-					rt.addValue("I1", E.getD().get(2, 2));
-					rt.addValue("I2", E.getD().get(1, 1));
-					rt.addValue("I3", E.getD().get(0, 0));
-					rt.addValue("vX", E.getV().get(0, 0));
-					rt.addValue("vY", E.getV().get(1, 0));
-					rt.addValue("vZ", E.getV().get(2, 0));
-					if (doVerboseUnitVectors) {
-						rt.addValue("vX1", E.getV().get(0, 1));
-						rt.addValue("vY1", E.getV().get(1, 1));
-						rt.addValue("vZ1", E.getV().get(2, 1));
-						rt.addValue("vX2", E.getV().get(0, 2));
-						rt.addValue("vY2", E.getV().get(1, 2));
-						rt.addValue("vZ2", E.getV().get(2, 2));
+		// Show numerical results, or write them to a file and show a summary
+		try (final ResultsSink rt = resultsFile.isEmpty() ? new ResultsSink.Table(
+			"Results") : new CsvResultsSink(Paths.get(resultsFile)))
+		{
+			for (int i = 1; i < volumes.length; i++) {
+				if (volumes[i] > 0) {
+					rt.incrementCounter();
+					rt.addLabel(imp.getTitle());
+					rt.addValue("ID", i);
+					rt.addValue("Vol. (" + units + "³)", volumes[i]);
+					rt.addValue("x Cent (" + units + ")", centroids[i][0]);
+					rt.addValue("y Cent (" + units + ")", centroids[i][1]);
+					rt.addValue("z Cent (" + units + ")", centroids[i][2]);
+					if (doSurfaceArea) {
+						rt.addValue("SA (" + units + "²)", surfaceAreas[i]);
 					}
-				}
-				if (doSkeletons) {
-					int nBranches = 0;
-					double branchesLength = Double.NaN;
-					final SkeletonResult skeletonResult = skeletonResults[i];
-					if (skeletonResult.getNumOfTrees() == 0) {
-						IJ.log("No skeleton found for particle "+i);
-					} else {
-					    nBranches = skeletonResults[i].getBranches()[0];
-					    branchesLength = skeletonResults[i].getAverageBranchLength()[0]
-					    		* nBranches;
+					if (doFeret) {
+						rt.addValue("Feret (" + units + ")", ferets[i][0]);
+						rt.addValue("FeretAx (" + units + ")", ferets[i][1]);
+						rt.addValue("FeretAy (" + units + ")", ferets[i][2]);
+						rt.addValue("FeretAz (" + units + ")", ferets[i][3]);
+						rt.addValue("FeretBx (" + units + ")", ferets[i][4]);
+						rt.addValue("FeretBy (" + units + ")", ferets[i][5]);
+						rt.addValue("FeretBz (" + units + ")", ferets[i][6]);
 					}
-					rt.addValue("n Branches", nBranches);
-					rt.addValue("Branches length ("+units+")", branchesLength);
-				}
-				if (doEulerCharacters) {
-					rt.addValue("Euler (χ)", eulerCharacters[i][0]);
-					rt.addValue("Holes (β1)", eulerCharacters[i][1]);
-					rt.addValue("Cavities (β2)", eulerCharacters[i][2]);
-				}
-				if (doThickness) {
-					rt.addValue("Thickness (" + units + ")", thick[i][0]);
-					rt.addValue("SD Thickness (" + units + ")", thick[i][1]);
-					rt.addValue("Max Thickness (" + units + ")", thick[i][2]);
-				}
-				if (doEllipsoids) {
-					final double[] rad;
-					final double[][] unitV;
-					if (ellipsoids[i] == null) {
-						rad = new double[] { Double.NaN, Double.NaN, Double.NaN };
-						unitV = new double[][] { { Double.NaN, Double.NaN, Double.NaN }, {
-							Double.NaN, Double.NaN, Double.NaN }, { Double.NaN, Double.NaN,
-								Double.NaN } };
+					if (doSurfaceVolume) {
+						rt.addValue("Encl. Vol. (" + units + "³)", surfaceVolumes[i]);
+					}
+					if (doMoments) {
+						final EigenvalueDecomposition E = eigens[i];
+						rt.addValue("I1", E.getD().get(2, 2));
+						rt.addValue("I2", E.getD().get(1, 1));
+						rt.addValue("I3", E.getD().get(0, 0));
+						rt.addValue("vX", E.getV().get(0, 0));
+						rt.addValue("vY", E.getV().get(1, 0));
+						rt.addValue("vZ", E.getV().get(2, 0));
+						if (doVerboseUnitVectors) {
+							rt.addValue("vX1", E.getV().get(0, 1));
+							rt.addValue("vY1", E.getV().get(1, 1));
+							rt.addValue("vZ1", E.getV().get(2, 1));
+							rt.addValue("vX2", E.getV().get(0, 2));
+							rt.addValue("vY2", E.getV().get(1, 2));
+							rt.addValue("vZ2", E.getV().get(2, 2));
+						}
 					}
-					else {
-						final Object[] el = (Object[]) ellipsoids[i];
-						rad = (double[]) el[1];
-						unitV = (double[][]) el[2];
+					if (doSkeletons) {
+						int nBranches = 0;
+						double branchesLength = Double.NaN;
+						final SkeletonResult skeletonResult = skeletonResults[i];
+						if (skeletonResult.getNumOfTrees() == 0) {
+							IJ.log("No skeleton found for particle "+i);
+						} else {
+						    nBranches = skeletonResults[i].getBranches()[0];
+						    branchesLength = skeletonResults[i].getAverageBranchLength()[0]
+						    		* nBranches;
+						}
+						rt.addValue("n Branches", nBranches);
+						rt.addValue("Branches length ("+units+")", branchesLength);
 					}
-					rt.addValue("Major radius (" + units + ")", rad[0]);
-					rt.addValue("Int. radius (" + units + ")", rad[1]);
-					rt.addValue("Minor radius (" + units + ")", rad[2]);
-					if (doVerboseUnitVectors) {
-						rt.addValue("V00", unitV[0][0]);
-						rt.addValue("V01", unitV[0][1]);
-						rt.addValue("V02", unitV[0][2]);
-						rt.addValue("V10", unitV[1][0]);
-						rt.addValue("V11", unitV[1][1]);
-						rt.addValue("V12", unitV[1][2]);
-						rt.addValue("V20", unitV[2][0]);
-						rt.addValue("V21", unitV[2][1]);
-						rt.addValue("V22", unitV[2][2]);
+					if (doEulerCharacters) {
+						rt.addValue("Euler (χ)", eulerCharacters[i][0]);
+						rt.addValue("Holes (β1)", eulerCharacters[i][1]);
+						rt.addValue("Cavities (β2)", eulerCharacters[i][2]);
+					}
+					if (doThickness) {
+						rt.addValue("Thickness (" + units + ")", thick[i][0]);
+						rt.addValue("SD Thickness (" + units + ")", thick[i][1]);
+						rt.addValue("Max Thickness (" + units + ")", thick[i][2]);
+					}
+					if (doEllipsoids) {
+						final double[] rad;
+						final double[][] unitV;
+						if (ellipsoids[i] == null) {
+							rad = new double[] { Double.NaN, Double.NaN, Double.NaN };
+							unitV = new double[][] { { Double.NaN, Double.NaN, Double.NaN }, {
+								Double.NaN, Double.NaN, Double.NaN }, { Double.NaN, Double.NaN,
+									Double.NaN } };
+						}
+						else {
+							final Object[] el = (Object[]) ellipsoids[i];
+							rad = (double[]) el[1];
+							unitV = (double[][]) el[2];
+						}
+						rt.addValue("Major radius (" + units + ")", rad[0]);
+						rt.addValue("Int. radius (" + units + ")", rad[1]);
+						rt.addValue("Minor radius (" + units + ")", rad[2]);
+						if (doVerboseUnitVectors) {
+							rt.addValue("V00", unitV[0][0]);
+							rt.addValue("V01", unitV[0][1]);
+							rt.addValue("V02", unitV[0][2]);
+							rt.addValue("V10", unitV[1][0]);
+							rt.addValue("V11", unitV[1][1]);
+							rt.addValue("V12", unitV[1][2]);
+							rt.addValue("V20", unitV[2][0]);
+							rt.addValue("V21", unitV[2][1]);
+							rt.addValue("V22", unitV[2][2]);
+						}
 					}
 				}
-				rt.updateResults();
 			}
 		}
-		rt.show("Results");
+		catch (final IOException | InvalidPathException e) {
+			IJ.error("Particle Analyser", "Could not write results to " +
+				resultsFile + ": " + e.getMessage());
+		}
 
 		// Show resulting image stacks
 		if (doParticleImage) {
-			ParticleDisplay.displayParticleLabels(particleLabels, imp).show();
+			ParticleDisplay.displayParticleLabels(particleLabels, imp, nParticles).show();
 			IJ.run("3-3-2 RGB");
 		}
 		if (doParticleSizeImage) {
@@ -391,7 +452,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 
 			final Image3DUniverse univ = new Image3DUniverse();
 			if (doSurfaceImage) {
-				ParticleDisplay.displayParticleSurfaces(univ, surfacePoints, colourMode, volumes,
+				ParticleDisplay.displayParticleSurfaces(univ, surfaceMeshes, colourMode, volumes,
 					splitValue, eigens);
 			}
 			if (doCentroidImage) {
@@ -432,7 +493,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	Object[] getParticles(ConnectedComponents connector, final ImagePlus imp, final int phase)
 	{
 		return getParticles(connector, imp, 0.0,
-			Double.POSITIVE_INFINITY, phase, false);
+			Double.POSITIVE_INFINITY, phase, false, false, false);
 	}
 	
 	/**
@@ -445,30 +506,132 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @param maxVol maximum volume particle to include
 	 * @param phase FORE or BACK for foreground or background respectively
 	 * @param doExclude exclude particles touching the edges.
+	 * @param doRunLength label with {@link RunLengthConnectedComponents} instead
+	 *          of connector, which is faster on sparse images
+	 * @param keepLabels keep the unfiltered labelling in {@link LabelCache}, so
+	 *          that the image can be filtered again without labelling it. This
+	 *          needs memory for a filtered copy of the labels.
 	 * @return Object[] array containing a binary workArray, particle labels and
 	 *         particle sizes
 	 */
 	private Object[] getParticles(ConnectedComponents connector, 
 			final ImagePlus imp, final double minVol, final double maxVol,
-		final int phase, final boolean doExclude)
+		final int phase, final boolean doExclude, final boolean doRunLength,
+		final boolean keepLabels)
 	{		
-		//do the connected components
-		final int[][] particleLabels = connector.run(imp, phase);
-		
-		byte[][] workArray = connector.getWorkArray();
-
-		final int nParticles = connector.getNParticles();
-
 		ParticleAnalysis pa = new ParticleAnalysis();
+
+		final int[][] particleLabels;
+		final byte[][] workArray;
+		final long[] particleSizes;
+		//reuse the labelling of an unchanged image, e.g. when only the limits changed
+		final LabelCache cache = LabelCache.get(imp, phase);
+		if (cache != null) {
+			particleLabels = cache.getParticleLabels();
+			workArray = cache.getWorkArray();
+			particleSizes = cache.getParticleSizes();
+			IJ.log("Reusing particle labels of " + imp.getTitle());
+			// the arrays are filtered in place below unless they stay cached
+			if (!keepLabels) LabelCache.clear();
+		} else if (doRunLength) {
+			//label runs of pixels, then expand them to a label array
+			final RunLengthConnectedComponents.Runs runs =
+				new RunLengthConnectedComponents().label(imp, phase);
+			particleLabels = runs.getParticleLabels();
+			workArray = ConnectedComponents.makeWorkArray(imp);
+			particleSizes = runs.getParticleSizes();
+			if (keepLabels)
+				LabelCache.put(imp, phase, particleLabels, workArray, particleSizes);
+		} else {
+			//do the connected components
+			particleLabels = connector.run(imp, phase);
+			workArray = connector.getWorkArray();
+			particleSizes = pa.getParticleSizes(particleLabels, connector.getNParticles());
+			if (keepLabels)
+				LabelCache.put(imp, phase, particleLabels, workArray, particleSizes);
+		}
 		
 		//optionally remove too big, too small, and edge-touching particles
-		pa.filterParticles(imp, particleLabels, workArray, nParticles,
-				phase, doExclude, minVol, maxVol);
-		
-		final long[] particleSizes = pa.getParticleSizes();
+		if (!keepLabels) {
+			pa.filterParticles(imp, particleLabels, workArray, particleSizes.length,
+					phase, doExclude, minVol, maxVol, particleSizes);
+			return new Object[] { workArray, particleLabels, pa.getParticleSizes() };
+		}
+		//leaving the cached labelling unchanged
+		final Object[] filtered = pa.getFilteredParticles(imp, particleLabels, workArray,
+				particleSizes.length, phase, doExclude, minVol, maxVol, particleSizes);
 		
-		return new Object[] { workArray, particleLabels, particleSizes };
+		return new Object[] { filtered[0], filtered[1], pa.getParticleSizes() };
 	}
-}
 
+	/**
+	 * Check whether the particle label array and work array of an image fit in
+	 * the free heap. A labelling of another image kept in {@link LabelCache} is
+	 * dropped first, so that it isn't counted as used memory.
+	 *
+	 * @param imp input image
+	 * @param keepLabels true if the labels are to be kept for re-filtering, which
+	 *          needs room for a filtered copy of them
+	 * @return true if the image can be labelled in memory
+	 */
+	static boolean labelsFitInMemory(final ImagePlus imp,
+		final boolean keepLabels)
+	{
+		final long nVoxels = (long) imp.getWidth() * imp.getHeight() * imp
+			.getImageStackSize();
+		// an int label and a byte of work array per voxel, unless the labels
+		// of this image are kept already
+		long needed = 0;
+		if (LabelCache.get(imp, ConnectedComponents.FORE) == null) {
+			needed = 5 * nVoxels;
+			if (LabelCache.clear()) System.gc();
+		}
+		if (keepLabels) needed += 5 * nVoxels;
+		return needed < IJ.maxMemory() - IJ.currentMemory();
+	}
 
+	/**
+	 * Label the foreground particles of an image through a temporary file, one
+	 * slab of slices at a time, and gather their statistics. Particles outside
+	 * the volume limits, or touching a side of the stack, are removed by
+	 * rewriting the file and measuring it again.
+	 *
+	 * @param imp input binary image, which may be backed by a virtual stack
+	 * @param minVol minimum volume particle to include
+	 * @param maxVol maximum volume particle to include
+	 * @param doExclude exclude particles touching the edges
+	 * @return statistics of the remaining particles, labelled consecutively
+	 * @throws IOException if the label file cannot be written or read
+	 */
+	static ParticleStatistics getStreamedStatistics(final ImagePlus imp,
+		final double minVol, final double maxVol, final boolean doExclude)
+		throws IOException
+	{
+		try (final LabelFile labelFile = new StreamingConnectedComponents().run(
+			imp, ConnectedComponents.FORE))
+		{
+			final ParticleStatistics statistics = ParticleStatistics.measure(
+				labelFile);
+			final int nParticles = labelFile.getNParticles();
+			final double[] volumes = ParticleAnalysis.getVolumes(imp, labelFile
+				.getParticleSizes());
+			final int[][] limits = statistics.getParticleLimits();
+			final int w = imp.getWidth();
+			final int h = imp.getHeight();
+			final int d = imp.getImageStackSize();
+			final int[] lut = new int[nParticles];
+			int nKept = 1;
+			for (int p = 1; p < nParticles; p++) {
+				final int[] l = limits[p];
+				final boolean isOnSide = l[0] == 0 || l[1] == w - 1 || l[2] == 0 ||
+					l[3] == h - 1 || l[4] == 0 || l[5] == d - 1;
+				if (volumes[p] < minVol || volumes[p] > maxVol || doExclude &&
+					isOnSide) continue;
+				lut[p] = nKept++;
+			}
+			if (nKept == nParticles) return statistics;
+			labelFile.applyLut(lut, nKept);
+			return ParticleStatistics.measure(labelFile);
+		}
+	}
+}
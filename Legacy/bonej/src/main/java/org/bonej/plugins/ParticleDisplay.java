@@ -30,12 +30,13 @@ import java.util.List;
 
 import org.bonej.geometry.Ellipsoid;
 import org.bonej.geometry.FitEllipsoid;
+import org.bonej.util.Multithreader;
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
-import customnode.CustomLineMesh;
+import customnode.CustomMesh;
 import customnode.CustomPointMesh;
 import ij.IJ;
 import ij.ImagePlus;
@@ -58,11 +59,18 @@ public class ParticleDisplay {
 	static final int SPLIT = 1;
 	/** Surface colour style: orientation */
 	static final int ORIENTATION = 2;
+	/**
+	 * Number of particles above which each kind of marker (centroids, axes,
+	 * Ferets and ellipsoids) is drawn as one mesh for all particles, rather than
+	 * as one mesh per particle
+	 */
+	static final int MAX_SEPARATE_MESHES = 500;
 
 	// ----------------- STACK DISPLAY ---------------//
 
 	/**
-	 * Create an image showing some particle measurement
+	 * Create an image showing some particle measurement. The image's stack is
+	 * virtual: its slices are worked out from particleLabels when viewed.
 	 *
 	 * @param imp            an image.
 	 * @param particleLabels the particles in the image.
@@ -71,21 +79,10 @@ public class ParticleDisplay {
 	 * @return ImagePlus with particle labels substituted with some value
 	 */
 	static ImagePlus displayParticleValues(final ImagePlus imp, final int[][] particleLabels, final double[] values) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int wh = w * h;
-		final float[][] pL = new float[d][wh];
-		values[0] = 0; // don't colour the background
-		final ImageStack stack = new ImageStack(w, h);
-		for (int z = 0; z < d; z++) {
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				pL[z][i] = (float) values[p];
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
-		}
-		final double max = Arrays.stream(values).max().orElse(0.0);
+		final double[] stackValues = values.clone();
+		stackValues[0] = 0; // don't colour the background
+		final ImageStack stack = new ParticleValueStack(particleLabels, stackValues, imp.getImageStack());
+		final double max = Arrays.stream(stackValues).max().orElse(0.0);
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_" + "volume", stack);
 		impOut.setCalibration(imp.getCalibration());
 		impOut.getProcessor().setMinAndMax(0, max);
@@ -93,28 +90,22 @@ public class ParticleDisplay {
 	}
 
 	/**
-	 * Display the particle labels as an ImagePlus
+	 * Display the particle labels as an ImagePlus. The image's stack is virtual:
+	 * its slices are worked out from particleLabels when viewed.
 	 *
 	 * @param particleLabels particles labelled in the original image.
 	 * @param imp            original image, used for image dimensions, calibration
 	 *                       and titles
+	 * @param nParticles     number of particle labels, including 0
 	 * @return an image of the particles.
 	 */
-	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int wh = w * h;
-		final ImageStack stack = new ImageStack(w, h);
-		double max = 0;
-		for (int z = 0; z < d; z++) {
-			final float[] slicePixels = new float[wh];
-			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = particleLabels[z][i];
-				max = Math.max(max, slicePixels[i]);
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), slicePixels);
+	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp, final int nParticles) {
+		final double[] labelValues = new double[nParticles];
+		for (int p = 0; p < nParticles; p++) {
+			labelValues[p] = p;
 		}
+		final ImageStack stack = new ParticleValueStack(particleLabels, labelValues, imp.getImageStack());
+		final double max = nParticles - 1;
 		final ImagePlus impParticles = new ImagePlus(imp.getShortTitle() + "_parts", stack);
 		impParticles.setCalibration(imp.getCalibration());
 		impParticles.getProcessor().setMinAndMax(0, max);
@@ -126,6 +117,11 @@ public class ParticleDisplay {
 
 	/**
 	 * Draw ellipsoids in a stack
+	 * <p>
+	 * Each row of an ellipsoid's bounding box is filled between the two x values
+	 * where the row crosses the ellipsoid's surface, which are the roots of a
+	 * quadratic in x. Slabs of slices are drawn in parallel.
+	 * </p>
 	 * 
 	 * @param imp ImagePlus, needed for calibration
 	 * @param ellipsoids list of ellipsoids
@@ -141,20 +137,15 @@ public class ParticleDisplay {
 		final double pH = cal.pixelHeight;
 		final double pD = cal.pixelDepth;
 
-		// set up a work array
-		final ByteProcessor[] bps = new ByteProcessor[d];
-		for (int z = 0; z < d; z++) {
-			bps[z] = new ByteProcessor(w, h);
-		}
-
-		final int n = ellipsoids.length;
-		for (int i = 0; i < n; i++) {
-			IJ.showStatus("Drawing ellipsoid stack...");
-			IJ.showProgress(i, n);
+		IJ.showStatus("Drawing ellipsoid stack...");
+		// centre, upper triangle of the 3x3 matrix and y and z pixel limits of
+		// each ellipsoid
+		final List<double[]> shapes = new ArrayList<>();
+		for (final Object e : ellipsoids) {
 			Ellipsoid ellipsoid;
 			try {
-				ellipsoid = new Ellipsoid((Object[]) ellipsoids[i]);
-			} catch (Exception e) {
+				ellipsoid = new Ellipsoid((Object[]) e);
+			} catch (Exception ex) {
 				continue;
 			}
 
@@ -162,44 +153,113 @@ public class ParticleDisplay {
 			final double[] box = ellipsoid.getAxisAlignedBoundingBox();
 
 			// decalibrate to pixels
-			final int xMin = clamp((int) Math.floor(box[0] / pW), 0, w - 1);
-			final int xMax = clamp((int) Math.floor(box[1] / pW), 0, w - 1);
 			final int yMin = clamp((int) Math.floor(box[2] / pH), 0, h - 1);
 			final int yMax = clamp((int) Math.floor(box[3] / pH), 0, h - 1);
 			final int zMin = clamp((int) Math.floor(box[4] / pD), 0, d - 1);
 			final int zMax = clamp((int) Math.floor(box[5] / pD), 0, d - 1);
 
-			// set the ellipsoid-contained pixels to foreground
-			for (int z = zMin; z <= zMax; z++) {
-				for (int y = yMin; y <= yMax; y++) {
-					for (int x = xMin; x <= xMax; x++) {
-						if (ellipsoid.contains(x * pW, y * pH, z * pD)) {
-							bps[z].set(x, y, 255);
-						}
+			// H = R diag(1 / r^2) R^T
+			final double[][] r = ellipsoid.getRotation();
+			final double[] radii = ellipsoid.getRadii();
+			final double[][] m = new double[3][3];
+			for (int i = 0; i < 3; i++) {
+				for (int j = i; j < 3; j++) {
+					for (int k = 0; k < 3; k++) {
+						m[i][j] += r[i][k] * r[j][k] / (radii[k] * radii[k]);
 					}
 				}
 			}
+			final double[] centre = ellipsoid.getCentre();
+			shapes.add(new double[] { centre[0], centre[1], centre[2], m[0][0], m[0][1], m[0][2], m[1][1],
+					m[1][2], m[2][2], yMin, yMax, zMin, zMax });
+		}
+
+		final byte[][] slices = new byte[d][w * h];
+		final Thread[] threads = Multithreader.newThreads();
+		final int nThreads = threads.length;
+		for (int thread = 0; thread < nThreads; thread++) {
+			final int t = thread;
+			threads[thread] = new Thread(() -> {
+				final int startSlice = ParticleAnalysis.getEndSlice(t - 1, nThreads, d);
+				final int endSlice = ParticleAnalysis.getEndSlice(t, nThreads, d);
+				final int nShapes = shapes.size();
+				for (int i = 0; i < nShapes; i++) {
+					// every thread visits every ellipsoid, so one thread's count will do
+					if (t == 0) IJ.showProgress(i, nShapes);
+					final double[] shape = shapes.get(i);
+					final int zStart = Math.max(startSlice, (int) shape[11]);
+					final int zEnd = Math.min(endSlice - 1, (int) shape[12]);
+					for (int z = zStart; z <= zEnd; z++) {
+						fillEllipsoidSlice(slices[z], shape, z * pD, w, pW, pH);
+					}
+				}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 
 		ImageStack stack = new ImageStack(w, h);
-		for (ByteProcessor bp : bps)
-			stack.addSlice(bp);
+		for (final byte[] slice : slices)
+			stack.addSlice(new ByteProcessor(w, h, slice));
 
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_Ellipsoids", stack);
 		impOut.setCalibration(cal);
 		return impOut;
 	}
 
+	/**
+	 * Fill the pixels of one slice that lie inside an ellipsoid, a row at a time.
+	 * 
+	 * A pixel at (x, y, z) is inside if v<sup>T</sup> H v &le; 1, where v is its
+	 * offset from the centre. Along a row, that is a quadratic in the x offset,
+	 * so the pixels inside are the ones between its two roots.
+	 *
+	 * @param slice pixels of the slice
+	 * @param shape centre, upper triangle of H and pixel limits of the ellipsoid
+	 * @param zPos calibrated z position of the slice
+	 * @param w width of the slice
+	 * @param pW pixel width
+	 * @param pH pixel height
+	 */
+	private static void fillEllipsoidSlice(final byte[] slice, final double[] shape, final double zPos, final int w,
+			final double pW, final double pH) {
+		final double cx = shape[0];
+		final double vz = zPos - shape[2];
+		final double a = shape[3];
+		final double bz = 2 * shape[5] * vz;
+		final double cz = shape[8] * vz * vz - 1;
+		final int yMax = (int) shape[10];
+		for (int y = (int) shape[9]; y <= yMax; y++) {
+			final double vy = y * pH - shape[1];
+			final double b = 2 * shape[4] * vy + bz;
+			final double c = shape[6] * vy * vy + 2 * shape[7] * vy * vz + cz;
+			final double discriminant = b * b - 4 * a * c;
+			if (discriminant < 0)
+				continue;
+			final double root = Math.sqrt(discriminant);
+			final int xStart = Math.max(0, (int) Math.ceil((cx + (-b - root) / (2 * a)) / pW));
+			final int xEnd = Math.min(w - 1, (int) Math.floor((cx + (-b + root) / (2 * a)) / pW));
+			if (xStart > xEnd)
+				continue;
+			final int offset = y * w;
+			Arrays.fill(slice, offset + xStart, offset + xEnd + 1, (byte) 255);
+		}
+	}
+
 	// ----------------- 3D VIEWER DISPLAY ----------//
 
 	/**
-	 * Draw the particle centroids in a 3D viewer
+	 * Draw the particle centroids in a 3D viewer. If there are more than
+	 * {@link #MAX_SEPARATE_MESHES} particles, the centroids are drawn as one
+	 * point mesh with a colour per point.
 	 *
 	 * @param centroids [n][3] centroids of particles.
 	 * @param univ      universe where the centroids are displayed.
 	 */
 	static void displayCentroids(final double[][] centroids, final Image3DUniverse univ) {
 		final int nCentroids = centroids.length;
+		final boolean batched = nCentroids - 1 > MAX_SEPARATE_MESHES;
+		final List<Point3f> batchPoints = new ArrayList<>();
+		final List<Color3f> batchColours = new ArrayList<>();
 		for (int p = 1; p < nCentroids; p++) {
 			IJ.showStatus("Rendering centroids...");
 			IJ.showProgress(p, nCentroids);
@@ -207,36 +267,82 @@ public class ParticleDisplay {
 			centroid.x = (float) centroids[p][0];
 			centroid.y = (float) centroids[p][1];
 			centroid.z = (float) centroids[p][2];
-			final List<Point3f> point = new ArrayList<>();
-			point.add(centroid);
-			final CustomPointMesh mesh = new CustomPointMesh(point);
-			mesh.setPointSize(5.0f);
 			final float red = 0.0f;
 			final float green = 0.5f * p / nCentroids;
 			final float blue = 1.0f;
 			final Color3f cColour = new Color3f(red, green, blue);
+			if (batched) {
+				batchPoints.add(centroid);
+				batchColours.add(cColour);
+				continue;
+			}
+			final List<Point3f> point = new ArrayList<>();
+			point.add(centroid);
+			final CustomPointMesh mesh = new CustomPointMesh(point);
+			mesh.setPointSize(5.0f);
 			mesh.setColor(cColour);
-			try {
-				univ.addCustomMesh(mesh, "Centroid " + p).setLocked(true);
-			} catch (final NullPointerException npe) {
-				IJ.log("3D Viewer was closed before rendering completed.");
+			if (!addCustomMesh(univ, mesh, "Centroid " + p))
 				return;
-			}
 		}
+		if (batchPoints.isEmpty())
+			return;
+		final CustomPointMesh mesh = new CustomPointMesh(batchPoints);
+		mesh.setPointSize(5.0f);
+		mesh.setColor(batchColours);
+		addCustomMesh(univ, mesh, "Centroids");
 	}
 
 	/**
-	 * Draws 3 orthogonal axes defined by the centroid, unitvector and axis length.
+	 * Add a locked custom mesh to the 3D viewer
+	 *
+	 * @param univ the universe where the mesh is drawn.
+	 * @param mesh the mesh to add.
+	 * @param title name of the mesh's content.
+	 * @return false if the viewer was closed, in which case nothing more should
+	 *         be added.
+	 */
+	private static boolean addCustomMesh(final Image3DUniverse univ, final CustomMesh mesh, final String title) {
+		try {
+			univ.addCustomMesh(mesh, title).setLocked(true);
+		} catch (final NullPointerException npe) {
+			IJ.log("3D Viewer was closed before rendering completed.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add a locked line mesh, made of pairs of points, to the 3D viewer
+	 *
+	 * @param univ the universe where the lines are drawn.
+	 * @param points start and end point of each line.
+	 * @param colour colour of the lines.
+	 * @param title name of the mesh's content.
+	 * @return false if the viewer was closed, in which case nothing more should
+	 *         be added.
+	 */
+	private static boolean addLineMesh(final Image3DUniverse univ, final List<Point3f> points, final Color3f colour,
+			final String title) {
+		try {
+			univ.addLineMesh(points, colour, title, false).setLocked(true);
+		} catch (final NullPointerException npe) {
+			IJ.log("3D Viewer was closed before rendering completed.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the end points of 3 orthogonal axes defined by the centroid, unitvector
+	 * and axis length.
 	 *
-	 * @param univ       the universe where axes are drawn.
 	 * @param centroid   centroid of a particle.
 	 * @param unitVector orientation of the particle.
 	 * @param lengths    lengths of the axes.
-	 * @param green      green component of the axes' color.
-	 * @param title      text shown by the axes.
+	 * @return start and end point of each axis.
 	 */
-	private static void displayAxes(final Image3DUniverse univ, final double[] centroid, final double[][] unitVector,
-			final double[] lengths, final float green, final String title) {
+	private static List<Point3f> getAxes(final double[] centroid, final double[][] unitVector,
+			final double[] lengths) {
 		final double cX = centroid[0];
 		final double cY = centroid[1];
 		final double cZ = centroid[2];
@@ -289,17 +395,13 @@ public class ParticleDisplay {
 		end3.y = (float) (cY + eVec3y * l3);
 		end3.z = (float) (cZ + eVec3z * l3);
 		mesh.add(end3);
-
-		final Color3f aColour = new Color3f(1.0f, green, 0.0f);
-		try {
-			univ.addLineMesh(mesh, aColour, title, false).setLocked(true);
-		} catch (final NullPointerException npe) {
-			IJ.log("3D Viewer was closed before rendering completed.");
-		}
+		return mesh;
 	}
 
 	/**
-	 * Display principal axes in the 3D Viewer
+	 * Display principal axes in the 3D Viewer. If there are more than
+	 * {@link #MAX_SEPARATE_MESHES} particles, all the axes are drawn as one line
+	 * mesh.
 	 * 
 	 * @param univ 3D Viewer universe
 	 * @param eigens list of eigenvalue decompositions
@@ -309,6 +411,9 @@ public class ParticleDisplay {
 	static void displayPrincipalAxes(final Image3DUniverse univ, final EigenvalueDecomposition[] eigens,
 			final double[][] centroids, long[] particleSizes) {
 		final int nEigens = eigens.length;
+		final boolean batched = nEigens - 1 > MAX_SEPARATE_MESHES;
+		final Color3f aColour = new Color3f(1.0f, 0.0f, 0.0f);
+		final List<Point3f> batchPoints = new ArrayList<>();
 
 		for (int p = 1; p < nEigens; p++) {
 			IJ.showStatus("Rendering principal axes...");
@@ -321,18 +426,29 @@ public class ParticleDisplay {
 			for (int i = 0; i < 3; i++) {
 				lengths[i] = 2 * Math.sqrt(eVal.get(2 - i, 2 - i) / size);
 			}
-			displayAxes(univ, centroids[p], eVec.getArray(), lengths, 0.0f, "Principal Axes " + p);
+			final List<Point3f> axes = getAxes(centroids[p], eVec.getArray(), lengths);
+			if (batched)
+				batchPoints.addAll(axes);
+			else if (!addLineMesh(univ, axes, aColour, "Principal Axes " + p))
+				return;
 		}
+		if (!batchPoints.isEmpty())
+			addLineMesh(univ, batchPoints, aColour, "Principal Axes");
 	}
 	
 	/**
-	 * Display Feret points and axis in the 3D Viewer
+	 * Display Feret points and axis in the 3D Viewer. If there are more than
+	 * {@link #MAX_SEPARATE_MESHES} particles, all the points are drawn as one
+	 * point mesh and all the axes as one line mesh.
 	 * 
 	 * @param univ 3D Viewer universe
 	 * @param ferets array of results from {@link ParticleAnalysis#getFerets(List)}
 	 */
 	static void displayMaxFeret(final Image3DUniverse univ, double[][] ferets) {
 		final int nParticles = ferets.length;
+		final boolean batched = nParticles - 1 > MAX_SEPARATE_MESHES;
+		final Color3f cColour = new Color3f(0.0f, 1.0f, 0.5f);
+		final List<Point3f> batchPoints = new ArrayList<>();
 
 		for (int p = 1; p < nParticles; p++) {
 			IJ.showStatus("Rendering Ferets...");
@@ -346,35 +462,47 @@ public class ParticleDisplay {
 			final Point3f a = new Point3f((float) f[1], (float) f[2], (float) f[3]);
 			final Point3f b = new Point3f((float) f[4], (float) f[5], (float) f[6]);
 			
+			if (batched) {
+				batchPoints.add(a);
+				batchPoints.add(b);
+				continue;
+			}
+
 			final List<Point3f> points = Arrays.asList(a, b);
 			
 			final CustomPointMesh feretPointMesh = new CustomPointMesh(points);
 			
 			feretPointMesh.setPointSize(5.0f);
-			final float red = 0.0f;
-			final float green = 1.0f;
-			final float blue = 0.5f;
-			final Color3f cColour = new Color3f(red, green, blue);
 			feretPointMesh.setColor(cColour);
 			
-			try {
-				univ.addCustomMesh(feretPointMesh, "Feret " + p);
-				univ.addLineMesh(points, cColour, "Feret axis " + p, false);
-			} catch (final NullPointerException npe) {
-				IJ.log("3D Viewer was closed before rendering completed.");
+			if (!addCustomMesh(univ, feretPointMesh, "Feret " + p) ||
+					!addLineMesh(univ, points, cColour, "Feret axis " + p))
 				return;
-			}
 		}
+		if (batchPoints.isEmpty())
+			return;
+		final CustomPointMesh feretPointMesh = new CustomPointMesh(batchPoints);
+		feretPointMesh.setPointSize(5.0f);
+		feretPointMesh.setColor(cColour);
+		if (addCustomMesh(univ, feretPointMesh, "Ferets"))
+			addLineMesh(univ, batchPoints, cColour, "Feret axes");
 	}
 
 	/**
-	 * Display ellipsoids in the 3D Viewer as point clouds
+	 * Display ellipsoids in the 3D Viewer as point clouds. If there are more than
+	 * {@link #MAX_SEPARATE_MESHES} particles, all the point clouds are drawn as
+	 * one point mesh and all the axes as one line mesh.
 	 * 
 	 * @param ellipsoids list of ellipsoids
 	 * @param univ 3D Viewer universe
 	 */
 	static void displayEllipsoids(final Object[] ellipsoids, final Image3DUniverse univ) {
 		final int nEllipsoids = ellipsoids.length;
+		final boolean batched = nEllipsoids - 1 > MAX_SEPARATE_MESHES;
+		final Color3f cColour = new Color3f(0.0f, 0.5f, 1.0f);
+		final Color3f aColour = new Color3f(1.0f, 1.0f, 0.0f);
+		final List<Point3f> batchPoints = new ArrayList<>();
+		final List<Point3f> batchAxes = new ArrayList<>();
 		for (int el = 1; el < nEllipsoids; el++) {
 			IJ.showStatus("Rendering ellipsoids...");
 			IJ.showProgress(el, nEllipsoids);
@@ -415,49 +543,54 @@ public class ParticleDisplay {
 				e.z = (float) anEllipsoid[2];
 				points.add(e);
 			}
+			// Add some axes
+			final List<Point3f> axes = getAxes(centre, eV, radii);
+			if (batched) {
+				batchPoints.addAll(points);
+				batchAxes.addAll(axes);
+				continue;
+			}
 			final CustomPointMesh mesh = new CustomPointMesh(points);
 			mesh.setPointSize(1.0f);
-			final float red = 0.0f;
-			final float green = 0.5f;
-			final float blue = 1.0f;
-			final Color3f cColour = new Color3f(red, green, blue);
 			mesh.setColor(cColour);
-			try {
-				univ.addCustomMesh(mesh, "Ellipsoid " + el).setLocked(true);
-			} catch (final NullPointerException npe) {
-				IJ.log("3D Viewer was closed before rendering completed.");
+			if (!addCustomMesh(univ, mesh, "Ellipsoid " + el) ||
+					!addLineMesh(univ, axes, aColour, "Ellipsoid Axes " + el))
 				return;
-			}
-			// Add some axes
-			displayAxes(univ, centre, eV, radii, 1.0f, "Ellipsoid Axes " + el);
 		}
+		if (batchPoints.isEmpty())
+			return;
+		final CustomPointMesh mesh = new CustomPointMesh(batchPoints);
+		mesh.setPointSize(1.0f);
+		mesh.setColor(cColour);
+		if (addCustomMesh(univ, mesh, "Ellipsoids"))
+			addLineMesh(univ, batchAxes, aColour, "Ellipsoid Axes");
 	}
 
 	/**
 	 * Draw the particle surfaces in a 3D viewer
 	 *
 	 * @param univ          universe where the centroids are displayed.
-	 * @param surfacePoints points of each particle.
+	 * @param surfaceMeshes mesh of each particle.
 	 * @param colourMode  colour particles by SPLIT, GRADIENT, or ORIENTATION
 	 * @param volumes   list of particle volumes
 	 * @param splitValue volume at which to split the colours for SPLIT colour option
 	 * @param eigens list of eigendecompositions, needed for ORIENTATION colouring
 	 */
-	static void displayParticleSurfaces(final Image3DUniverse univ, final List<List<Point3f>> surfacePoints,
+	static void displayParticleSurfaces(final Image3DUniverse univ, final List<SurfaceMesh> surfaceMeshes,
 			final int colourMode, final double[] volumes, final double splitValue,
 			final EigenvalueDecomposition[] eigens) {
-		final int nSurfaces = surfacePoints.size();
+		final int nSurfaces = surfaceMeshes.size();
 		for (int p = 1; p < nSurfaces; p++) {
 			IJ.showStatus("Rendering surfaces...");
 			IJ.showProgress(p, nSurfaces);
-			final List<Point3f> surfacePoint = surfacePoints.get(p);
-			if (surfacePoint == null)
+			final SurfaceMesh surfaceMesh = surfaceMeshes.get(p);
+			if (surfaceMesh == null)
 				continue;
-			if (!surfacePoint.isEmpty()) {
+			if (surfaceMesh.getNTriangles() > 0) {
 				Color3f colour = getColour(p, nSurfaces, colourMode, volumes, eigens, splitValue);
 				// Add the mesh
 				try {
-					univ.addTriangleMesh(surfacePoint, colour, "Surface " + p).setLocked(true);
+					univ.addTriangleMesh(surfaceMesh.toPointList(), colour, "Surface " + p).setLocked(true);
 				} catch (final NullPointerException npe) {
 					IJ.log("3D Viewer was closed before rendering completed.");
 					return;
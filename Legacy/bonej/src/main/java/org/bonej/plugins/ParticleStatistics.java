@@ -0,0 +1,402 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bonej.util.Multithreader;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Gathers the voxel count, bounding box, first and second moments and
+ * intensity statistics of every particle in a single parallel scan of the
+ * label array.
+ * <p>
+ * Each thread accumulates whole slices into its own primitive arrays, and the
+ * threads' arrays are merged at the end. Rows are read as runs of equal labels,
+ * so a run adds to its particle's sums once, not once per voxel. Moments are
+ * summed as exact integers of pixel coordinates and are calibrated only when
+ * results are requested.
+ * </p>
+ * <p>
+ * This replaces the separate centroid, limit, inertia tensor and intensity
+ * scans of the label array that ParticleAnalysis used to make, and its results
+ * match theirs to within rounding error.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ParticleStatistics {
+
+	private final Accumulator totals;
+	private final int nParticles;
+
+	private ParticleStatistics(final Accumulator totals, final int nParticles) {
+		this.totals = totals;
+		this.nParticles = nParticles;
+	}
+
+	/**
+	 * Scan the label array once and gather the statistics of every particle.
+	 *
+	 * @param particleLabels particle label array
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particle labels, including 0
+	 * @param intensityImp image of the same size whose pixel values &gt; 0 are
+	 *          summarised per particle, e.g. a thickness map; or null to skip
+	 *          intensity statistics
+	 * @return the statistics of each particle
+	 */
+	static ParticleStatistics measure(final int[][] particleLabels, final int w,
+		final int h, final int nParticles, final ImagePlus intensityImp)
+	{
+		final int d = particleLabels.length;
+		final ImageStack intensityStack = intensityImp == null ? null
+			: intensityImp.getImageStack();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final Accumulator[] accumulators = new Accumulator[threads.length];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final Accumulator accumulator = new Accumulator(nParticles,
+				intensityStack != null);
+			accumulators[thread] = accumulator;
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					accumulator.addSlice(particleLabels[z], w, h, z);
+					if (intensityStack != null) {
+						accumulator.addIntensities(particleLabels[z], getFloatPixels(
+							intensityStack, z + 1));
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		final Accumulator totals = accumulators[0];
+		for (int a = 1; a < accumulators.length; a++) {
+			totals.merge(accumulators[a]);
+		}
+		return new ParticleStatistics(totals, nParticles);
+	}
+
+	/**
+	 * Scan a label file once, a slice at a time, and gather the statistics of
+	 * every particle. Intensity statistics are not gathered.
+	 *
+	 * @param labelFile particle labels, with their particles counted
+	 * @return the statistics of each particle
+	 * @throws IOException if the label file cannot be read
+	 */
+	static ParticleStatistics measure(final LabelFile labelFile)
+		throws IOException
+	{
+		final int w = labelFile.getWidth();
+		final int h = labelFile.getHeight();
+		final int d = labelFile.getDepth();
+		final int nParticles = labelFile.getNParticles();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread[] threads = Multithreader.newThreads();
+		final Accumulator[] accumulators = new Accumulator[threads.length];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final Accumulator accumulator = new Accumulator(nParticles, false);
+			accumulators[thread] = accumulator;
+			threads[thread] = new Thread(() -> {
+				try {
+					for (int z = ai.getAndIncrement(); z < d &&
+						failure.get() == null; z = ai.getAndIncrement())
+					{
+						accumulator.addSlice(labelFile.getSlice(z), w, h, z);
+					}
+				}
+				catch (final Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final Throwable t = failure.get();
+		if (t instanceof IOException) throw (IOException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+
+		final Accumulator totals = accumulators[0];
+		for (int a = 1; a < accumulators.length; a++) {
+			totals.merge(accumulators[a]);
+		}
+		return new ParticleStatistics(totals, nParticles);
+	}
+
+	private static float[] getFloatPixels(final ImageStack stack,
+		final int slice)
+	{
+		final Object pixels = stack.getPixels(slice);
+		if (pixels instanceof float[]) return (float[]) pixels;
+		final ImageProcessor ip = stack.getProcessor(slice);
+		final int n = ip.getPixelCount();
+		final float[] floats = new float[n];
+		for (int i = 0; i < n; i++) {
+			floats[i] = ip.getf(i);
+		}
+		return floats;
+	}
+
+	/**
+	 * @return number of voxels in each particle, indexed by label
+	 */
+	long[] getParticleSizes() {
+		return totals.counts.clone();
+	}
+
+	/**
+	 * Get the centroids of all the particles in real units
+	 *
+	 * @param cal calibration of the labelled image
+	 * @return double[][] containing all the particles' centroids
+	 */
+	double[][] getCentroids(final Calibration cal) {
+		final double[][] centroids = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			final long n = totals.counts[p];
+			centroids[p][0] = cal.pixelWidth * totals.sums[3 * p] / n;
+			centroids[p][1] = cal.pixelHeight * totals.sums[3 * p + 1] / n;
+			centroids[p][2] = cal.pixelDepth * totals.sums[3 * p + 2] / n;
+		}
+		return centroids;
+	}
+
+	/**
+	 * Get the minimum and maximum x, y and z coordinates of each particle
+	 *
+	 * @return int[][] containing x, y and z minima and maxima.
+	 */
+	int[][] getParticleLimits() {
+		final int[][] limits = new int[nParticles][];
+		for (int p = 0; p < nParticles; p++) {
+			limits[p] = Arrays.copyOfRange(totals.limits, 6 * p, 6 * p + 6);
+		}
+		return limits;
+	}
+
+	/**
+	 * Calculate Eigenvalue decompositions of all the particles' inertia tensors
+	 *
+	 * @param cal calibration of the labelled image
+	 * @return list of EigenvalueDecompositions, null for label 0
+	 */
+	EigenvalueDecomposition[] getEigens(final Calibration cal) {
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVhVd = (vH * vH + vD * vD) / 12;
+		final double voxVwVd = (vW * vW + vD * vD) / 12;
+		final double voxVhVw = (vH * vH + vW * vW) / 12;
+		final EigenvalueDecomposition[] eigens =
+			new EigenvalueDecomposition[nParticles];
+		for (int p = 1; p < nParticles; p++) {
+			final long n = totals.counts[p];
+			final double sx = totals.sums[3 * p];
+			final double sy = totals.sums[3 * p + 1];
+			final double sz = totals.sums[3 * p + 2];
+			final long[] m = totals.moments;
+			final int i = 6 * p;
+			// central second moments in real units
+			final double xx = n == 0 ? 0 : vW * vW * (m[i] - sx * sx / n);
+			final double yy = n == 0 ? 0 : vH * vH * (m[i + 1] - sy * sy / n);
+			final double zz = n == 0 ? 0 : vD * vD * (m[i + 2] - sz * sz / n);
+			final double xy = n == 0 ? 0 : vW * vH * (m[i + 3] - sx * sy / n);
+			final double xz = n == 0 ? 0 : vW * vD * (m[i + 4] - sx * sz / n);
+			final double yz = n == 0 ? 0 : vH * vD * (m[i + 5] - sy * sz / n);
+			final double[][] inertiaTensor = new double[3][3];
+			inertiaTensor[0][0] = yy + zz + n * voxVhVd;
+			inertiaTensor[1][1] = xx + zz + n * voxVwVd;
+			inertiaTensor[2][2] = yy + xx + n * voxVhVw;
+			inertiaTensor[0][1] = -xy;
+			inertiaTensor[0][2] = -xz;
+			inertiaTensor[1][0] = -xy;
+			inertiaTensor[1][2] = -yz;
+			inertiaTensor[2][0] = -xz;
+			inertiaTensor[2][1] = -yz;
+			eigens[p] = new EigenvalueDecomposition(new Matrix(inertiaTensor));
+		}
+		return eigens;
+	}
+
+	/**
+	 * Get the mean and standard deviation of intensity pixel values &gt;0 for
+	 * each particle, over all the particle's voxels
+	 *
+	 * @return array containing mean, std dev and max pixel values for each
+	 *         particle
+	 * @throws IllegalStateException if no intensity image was measured
+	 */
+	double[][] getMeanStdDev() {
+		if (totals.intensities == null) {
+			throw new IllegalStateException("No intensity image was measured");
+		}
+		final double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final long n = totals.counts[p];
+			final double sum = totals.intensities[3 * p];
+			final double sumSquares = totals.intensities[3 * p + 1];
+			final long nPositive = totals.positiveCounts[p];
+			final double mean = sum / n;
+			// sum of squared residuals of the positive values only
+			final double residuals = sumSquares - 2 * mean * sum + nPositive * mean *
+				mean;
+			meanStdDev[p][0] = mean;
+			meanStdDev[p][1] = Math.sqrt(Math.max(0, residuals) / n);
+			meanStdDev[p][2] = totals.intensities[3 * p + 2];
+		}
+		return meanStdDev;
+	}
+
+	/**
+	 * Per-thread sums for every label, in flat primitive arrays
+	 */
+	private static final class Accumulator {
+
+		private final long[] counts;
+		/** x, y and z sums of each label */
+		private final long[] sums;
+		/** xx, yy, zz, xy, xz and yz sums of each label */
+		private final long[] moments;
+		/** x, y and z minima and maxima of each label */
+		private final int[] limits;
+		/** sum, sum of squares and maximum of positive intensities */
+		private final double[] intensities;
+		private final long[] positiveCounts;
+
+		private Accumulator(final int nParticles, final boolean doIntensities) {
+			counts = new long[nParticles];
+			sums = new long[3 * nParticles];
+			moments = new long[6 * nParticles];
+			limits = new int[6 * nParticles];
+			for (int p = 0; p < nParticles; p++) {
+				limits[6 * p] = Integer.MAX_VALUE;
+				limits[6 * p + 2] = Integer.MAX_VALUE;
+				limits[6 * p + 4] = Integer.MAX_VALUE;
+			}
+			intensities = doIntensities ? new double[3 * nParticles] : null;
+			positiveCounts = doIntensities ? new long[nParticles] : null;
+		}
+
+		private void addSlice(final int[] slice, final int w, final int h,
+			final int z)
+		{
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				int start = 0;
+				while (start < w) {
+					final int label = slice[rowIndex + start];
+					int end = start + 1;
+					while (end < w && slice[rowIndex + end] == label)
+						end++;
+					addRun(label, start, end - 1, y, z);
+					start = end;
+				}
+			}
+		}
+
+		/** Add the voxels from x0 to x1 inclusive in row y of slice z */
+		private void addRun(final int p, final int x0, final int x1, final int y,
+			final int z)
+		{
+			final long n = x1 - x0 + 1L;
+			final long sx = (x0 + (long) x1) * n / 2;
+			final long sxx = sumOfSquares(x1) - sumOfSquares(x0 - 1L);
+			counts[p] += n;
+			final int s = 3 * p;
+			sums[s] += sx;
+			sums[s + 1] += n * y;
+			sums[s + 2] += n * z;
+			final int m = 6 * p;
+			moments[m] += sxx;
+			moments[m + 1] += n * y * y;
+			moments[m + 2] += n * z * z;
+			moments[m + 3] += sx * y;
+			moments[m + 4] += sx * z;
+			moments[m + 5] += n * y * z;
+			final int l = 6 * p;
+			limits[l] = Math.min(limits[l], x0);
+			limits[l + 1] = Math.max(limits[l + 1], x1);
+			limits[l + 2] = Math.min(limits[l + 2], y);
+			limits[l + 3] = Math.max(limits[l + 3], y);
+			limits[l + 4] = Math.min(limits[l + 4], z);
+			limits[l + 5] = Math.max(limits[l + 5], z);
+		}
+
+		private static long sumOfSquares(final long x) {
+			return x * (x + 1) * (2 * x + 1) / 6;
+		}
+
+		private void addIntensities(final int[] slice, final float[] pixels) {
+			final int n = slice.length;
+			for (int i = 0; i < n; i++) {
+				final double value = pixels[i];
+				if (value > 0) {
+					final int p = slice[i];
+					final int s = 3 * p;
+					intensities[s] += value;
+					intensities[s + 1] += value * value;
+					intensities[s + 2] = Math.max(intensities[s + 2], value);
+					positiveCounts[p]++;
+				}
+			}
+		}
+
+		private void merge(final Accumulator other) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += other.counts[i];
+			for (int i = 0; i < sums.length; i++)
+				sums[i] += other.sums[i];
+			for (int i = 0; i < moments.length; i++)
+				moments[i] += other.moments[i];
+			for (int i = 0; i < limits.length; i += 2) {
+				limits[i] = Math.min(limits[i], other.limits[i]);
+				limits[i + 1] = Math.max(limits[i + 1], other.limits[i + 1]);
+			}
+			if (intensities != null) {
+				for (int i = 0; i < intensities.length; i += 3) {
+					intensities[i] += other.intensities[i];
+					intensities[i + 1] += other.intensities[i + 1];
+					intensities[i + 2] = Math.max(intensities[i + 2],
+						other.intensities[i + 2]);
+				}
+				for (int i = 0; i < positiveCounts.length; i++)
+					positiveCounts[i] += other.positiveCounts[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * A 32-bit virtual stack that shows a value for each particle, worked out one
+ * slice at a time from the particle labels and a table of values.
+ * <p>
+ * Only the few most recently viewed slices are kept, so showing the stack
+ * costs little memory beyond the labels, which are shared with the caller and
+ * must not be changed while the stack is in use.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ParticleValueStack extends VirtualStack {
+
+	/** number of slices kept after they are worked out */
+	private static final int CACHE_SIZE = 4;
+
+	private final int[][] particleLabels;
+	private final float[] values;
+	private final String[] sliceLabels;
+	private final Map<Integer, float[]> cache = new LinkedHashMap<Integer, float[]>(
+		CACHE_SIZE + 1, 1f, true)
+	{
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, float[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Create a stack of particle values
+	 *
+	 * @param particleLabels particle label of each pixel, one array per slice
+	 * @param values value of each particle label, label 0 included
+	 * @param template stack with the same dimensions, whose slice labels are
+	 *          used
+	 */
+	ParticleValueStack(final int[][] particleLabels, final double[] values,
+		final ImageStack template)
+	{
+		super(template.getWidth(), template.getHeight(), null, null);
+		this.particleLabels = particleLabels;
+		this.values = new float[values.length];
+		for (int i = 0; i < values.length; i++) {
+			this.values[i] = (float) values[i];
+		}
+		sliceLabels = new String[particleLabels.length];
+		for (int z = 0; z < sliceLabels.length; z++) {
+			sliceLabels[z] = template.getSliceLabel(z + 1);
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		return new FloatProcessor(getWidth(), getHeight(), getSlice(n));
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		return getSlice(n);
+	}
+
+	@Override
+	public int getSize() {
+		return particleLabels.length;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return sliceLabels[n - 1];
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 32;
+	}
+
+	/**
+	 * Get a slice of values, working it out if it is not in the cache. The
+	 * caller may change the returned pixels, so they are a copy of the cached
+	 * ones.
+	 *
+	 * @param n slice number, 1-based
+	 * @return pixel values of the slice
+	 */
+	private synchronized float[] getSlice(final int n) {
+		float[] pixels = cache.get(n);
+		if (pixels == null) {
+			final int[] labels = particleLabels[n - 1];
+			pixels = new float[labels.length];
+			for (int i = 0; i < labels.length; i++) {
+				pixels[i] = values[labels[i]];
+			}
+			cache.put(n, pixels);
+		}
+		return pixels.clone();
+	}
+}
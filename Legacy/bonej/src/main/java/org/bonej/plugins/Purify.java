@@ -23,10 +23,7 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.plugins;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 import org.bonej.util.ImageCheck;
-import org.bonej.util.Multithreader;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -94,48 +91,6 @@ public class Purify implements PlugIn {
 		UsageReporter.reportEvent(this).send();
 	}
 
-	/**
-	 * Remove all but the largest phase particle from workArray
-	 *
-	 * @param workArray a work array
-	 * @param particleLabels particle labels.
-	 * @param particleSizes sizes of the particles.
-	 * @param phase foreground or background.
-	 */
-	private static void removeSmallParticles(final byte[][] workArray,
-		final int[][] particleLabels, final long[] particleSizes, final int phase)
-	{
-		final int d = workArray.length;
-		final int wh = workArray[0].length;
-
-		final int biggestParticleLabel = getBiggestParticleLabel(particleSizes);
-		
-		final int testPhase = phase;
-		final byte replacementPhase = (byte) (phase == ConnectedComponents.FORE ? ConnectedComponents.BACK : ConnectedComponents.FORE);
-		final String sPhase = phase == ConnectedComponents.FORE ? "foreground" : "background";
-		
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = Multithreader.newThreads();
-		for (int thread = 0; thread < threads.length; thread++) {
-			threads[thread] = new Thread(() -> {
-					// go through work array and turn all
-					// smaller foreground (255) particles into background (0) (or vice versa)
-					for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
-						for (int i = 0; i < wh; i++) {
-							if (workArray[z][i] == testPhase) {
-								if (particleLabels[z][i] != biggestParticleLabel) {
-									workArray[z][i] = replacementPhase;
-								}
-							}
-						}
-						IJ.showStatus("Removing "+sPhase+" particles");
-						IJ.showProgress(z, d);
-					}
-			});
-		}
-		Multithreader.startAndJoin(threads);
-	}
-
 	/**
 	 * Show a Results table containing some performance information
 	 *
@@ -155,67 +110,36 @@ public class Purify implements PlugIn {
 
 	/**
 	 * Find all foreground and particles in an image and remove all but the
-	 * largest. Foreground is 26-connected and background is 8-connected.
+	 * largest. Foreground is 26-connected and background is 6-connected.
+	 * <p>
+	 * Particles are found by flood filling a copy of the image, so no particle
+	 * label array is made. See {@link LargestParticle}.
+	 * </p>
 	 *
 	 * @param imp input image
 	 * @return purified image
 	 */
 	static ImagePlus purify(final ImagePlus imp)
 	{
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final byte[][] workArray = ConnectedComponents.makeWorkArray(imp, true);
 
-		final ConnectedComponents connector = new ConnectedComponents();
-		final ParticleAnalysis pa = new ParticleAnalysis();
+		IJ.showStatus("Removing foreground particles");
+		LargestParticle.keep(workArray, w, h, ConnectedComponents.FORE);
+		//workArray now has only one big foreground particle
+		IJ.showStatus("Removing background particles");
+		LargestParticle.keep(workArray, w, h, ConnectedComponents.BACK);
 
-		int[][] particleLabels = connector.run(imp, ConnectedComponents.FORE);
-		byte[][] workArray = connector.getWorkArray();
-		final int nFgParticles = connector.getNParticles();
-		
-		// index 0 is background particle's size...
-		long[] particleSizes = pa.getParticleSizes(particleLabels, nFgParticles);
-		removeSmallParticles(workArray, particleLabels, particleSizes, ConnectedComponents.FORE);
-
-		ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+		final ImageStack stack = new ImageStack(w, h);
 		final int nSlices = workArray.length;
 		for (int z = 0; z < nSlices; z++) {
 			stack.addSlice(imp.getStack().getSliceLabel(z + 1), workArray[z]);
 		}
-		//halfPurifiedImp has only one big foreground particle
-		ImagePlus halfPurifiedImp = new ImagePlus("Half Purified", stack);
-			
-		//particleLabels is now background particles of the half-purified image
-		particleLabels = connector.run(halfPurifiedImp, ConnectedComponents.BACK);
-		halfPurifiedImp = null;
-		final int nBgParticles = connector.getNParticles();
-		particleSizes = pa.getParticleSizes(particleLabels, nBgParticles);
-		workArray = connector.getWorkArray();
-		removeSmallParticles(workArray, particleLabels, particleSizes, ConnectedComponents.BACK);
-		
-		stack = new ImageStack(imp.getWidth(), imp.getHeight());
-		for (int z = 0; z < nSlices; z++) {
-			stack.addSlice(imp.getStack().getSliceLabel(z + 1), workArray[z]);
-		}
 		final ImagePlus purified = new ImagePlus("Purified", stack);
 		purified.setCalibration(imp.getCalibration());
 		IJ.showStatus("Image Purified");
 		IJ.showProgress(1.0);
 		return purified;
 	}
-	
-	/**
-	 * Find the label of the largest particle in the image, excluding 0 (which is the opposite phase label).
-	 * @param particleSizes
-	 * @return label of the largest particle
-	 */
-	private static int getBiggestParticleLabel(final long[] particleSizes) {
-		long max = 0;
-		int biggestParticleLabel = 0;
-		final int nPartSizes = particleSizes.length;
-		for (int i = 1; i < nPartSizes; i++) {
-			if (particleSizes[i] > max) {
-				max = particleSizes[i];
-				biggestParticleLabel = i;
-			}
-		}
-		return biggestParticleLabel;
-	}
 }
@@ -0,0 +1,106 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Receives the rows of per-particle measurements, one row at a time, with the
+ * same calls as a {@link ResultsTable}.
+ *
+ * @author Michael Doube
+ * @see CsvResultsSink
+ */
+interface ResultsSink extends Closeable {
+
+	/**
+	 * Start a new row
+	 *
+	 * @throws IOException if the previous row cannot be written
+	 */
+	void incrementCounter() throws IOException;
+
+	/**
+	 * Set the label of the current row
+	 *
+	 * @param label row label
+	 */
+	void addLabel(String label);
+
+	/**
+	 * Add a value to the current row
+	 *
+	 * @param heading column heading
+	 * @param value measured value
+	 */
+	void addValue(String heading, double value);
+
+	/**
+	 * Finish the results and show them to the user
+	 *
+	 * @throws IOException if the last rows cannot be written
+	 */
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Collects the rows in a {@link ResultsTable}, which is shown when the sink
+	 * is closed.
+	 */
+	final class Table implements ResultsSink {
+
+		private final ResultsTable rt = new ResultsTable();
+		private final String title;
+
+		/**
+		 * @param title title of the results window
+		 */
+		Table(final String title) {
+			this.title = title;
+		}
+
+		@Override
+		public void incrementCounter() {
+			rt.incrementCounter();
+		}
+
+		@Override
+		public void addLabel(final String label) {
+			rt.addLabel(label);
+		}
+
+		@Override
+		public void addValue(final String heading, final double value) {
+			rt.addValue(heading, value);
+		}
+
+		@Override
+		public void close() {
+			rt.show(title);
+		}
+	}
+}
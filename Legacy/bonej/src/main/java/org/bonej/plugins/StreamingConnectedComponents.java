@@ -0,0 +1,234 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Performs connected components labelling on stacks that are too large to
+ * label in memory.
+ * <p>
+ * The stack is read in slabs of consecutive slices, which works with virtual
+ * stacks. Each slab is labelled by {@link ConnectedComponents}, and only the
+ * last slice of labels is kept to stitch the slab to the next one. Provisional
+ * labels are spilled to a temporary {@link LabelFile}, which is rewritten
+ * in place with the final, consecutive labels once all the slabs have been
+ * stitched together.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+public class StreamingConnectedComponents {
+
+	/** number of slices per slab, or 0 to fit slabs to the free heap */
+	private final int slabSize;
+
+	/** directory for the label file, or null for the system temp directory */
+	private final Path directory;
+
+	/**
+	 * Constructor for a labeller that fits its slab size to the free heap and
+	 * writes labels to the system temporary directory
+	 */
+	public StreamingConnectedComponents() {
+		this(0, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param slabSize number of slices to label at a time, or 0 to fit the slabs
+	 *          to the free heap
+	 * @param directory directory for the temporary label file, or null to use
+	 *          the system temporary directory
+	 */
+	public StreamingConnectedComponents(final int slabSize, final Path directory) {
+		if (slabSize < 0) {
+			throw new IllegalArgumentException("Slab size cannot be negative");
+		}
+		this.slabSize = slabSize;
+		this.directory = directory;
+	}
+
+	/**
+	 * Run connected components filter on a binary image, one slab at a time
+	 *
+	 * @param imp Input ImagePlus, must be 2D or 3D and binary (0 or 255). May
+	 *          be backed by a virtual stack.
+	 * @param phase either foreground (ConnectedComponents.FORE) or background
+	 *          (ConnectedComponents.BACK)
+	 * @return label file containing individual connected components labelled
+	 *         with a unique, consecutive label. The caller must close it to
+	 *         delete the file.
+	 * @throws IOException if the label file cannot be written
+	 */
+	public LabelFile run(final ImagePlus imp, final int phase)
+		throws IOException
+	{
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int slices = slabSize > 0 ? slabSize : getDefaultSlabSize(w, h);
+
+		final LabelFile labelFile = LabelFile.create(directory, w, h, d);
+		try {
+			// slab labels are offset into one label space for the whole stack
+			final UnionFind forest = new UnionFind(new int[] { 0 },
+				Integer.MAX_VALUE, 1024);
+			final ConnectedComponents connector = new ConnectedComponents();
+			int labelOffset = 0;
+			int[] boundaryLabels = null;
+			for (int startSlice = 0; startSlice < d; startSlice += slices) {
+				final int endSlice = Math.min(d, startSlice + slices);
+				final ImagePlus slab = getSlab(imp, startSlice, endSlice);
+				final ConnectedComponents.Labelling labelling = connector.label(slab,
+					phase, false);
+				final int[][] slabLabels = labelling.getParticleLabels();
+				final byte[][] slabWorkArray = labelling.getWorkArray();
+				final int nSlabLabels = labelling.getNParticles();
+
+				for (int label = 1; label < nSlabLabels; label++) {
+					forest.makeSet(0, labelOffset + label);
+				}
+				offsetLabels(slabLabels, labelOffset);
+
+				if (boundaryLabels != null) {
+					stitch(forest, boundaryLabels, slabLabels[0], slabWorkArray[0], w, h,
+						phase);
+				}
+				labelFile.writeSlices(startSlice, slabLabels);
+
+				boundaryLabels = slabLabels[slabLabels.length - 1];
+				labelOffset += nSlabLabels - 1;
+			}
+
+			final int[][] lut = forest.makeLut();
+			labelFile.applyLut(lut[0], ConnectedComponents.countParticles(lut));
+			return labelFile;
+		}
+		catch (final IOException | RuntimeException e) {
+			labelFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Guess how many slices can be labelled at a time, using a quarter of the
+	 * free heap.
+	 *
+	 * @param w image width
+	 * @param h image height
+	 * @return number of slices per slab, at least 1
+	 */
+	static int getDefaultSlabSize(final int w, final int h) {
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeHeap = runtime.maxMemory() - runtime.totalMemory() + runtime
+			.freeMemory();
+		// work array byte + label int, plus the source pixels of virtual stacks
+		final long bytesPerSlice = 6L * w * h;
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, freeHeap / 4 /
+			bytesPerSlice));
+	}
+
+	/**
+	 * Make an image from a range of slices of the input image. Slices of
+	 * virtual stacks are read from disk.
+	 *
+	 * @param imp input image
+	 * @param startSlice first slice of the slab (0-based)
+	 * @param endSlice slice after the last slice of the slab
+	 * @return image containing the slab
+	 */
+	private static ImagePlus getSlab(final ImagePlus imp, final int startSlice,
+		final int endSlice)
+	{
+		final ImageStack stack = imp.getImageStack();
+		final ImageStack slab = new ImageStack(imp.getWidth(), imp.getHeight());
+		for (int z = startSlice; z < endSlice; z++) {
+			slab.addSlice(stack.getSliceLabel(z + 1), stack.getProcessor(z + 1));
+		}
+		return new ImagePlus(imp.getTitle(), slab);
+	}
+
+	/**
+	 * Add an offset to all the non-zero labels
+	 *
+	 * @param labels label array
+	 * @param offset label offset
+	 */
+	private static void offsetLabels(final int[][] labels, final int offset) {
+		if (offset == 0) return;
+		for (final int[] slice : labels) {
+			final int l = slice.length;
+			for (int i = 0; i < l; i++) {
+				if (slice[i] != 0) slice[i] += offset;
+			}
+		}
+	}
+
+	/**
+	 * Join the labels of a slab's first slice to their neighbours in the last
+	 * slice of the previous slab: the 9 pixels in the previous slice for
+	 * foreground, and the pixel directly above for background.
+	 *
+	 * @param forest label forest
+	 * @param boundaryLabels labels of the previous slab's last slice
+	 * @param labels labels of this slab's first slice
+	 * @param workArray binary pixels of this slab's first slice
+	 * @param w image width
+	 * @param h image height
+	 * @param phase FORE or BACK for foreground or background respectively
+	 */
+	private static void stitch(final UnionFind forest, final int[] boundaryLabels,
+		final int[] labels, final byte[] workArray, final int w, final int h,
+		final int phase)
+	{
+		for (int y = 0; y < h; y++) {
+			final int rowIndex = y * w;
+			for (int x = 0; x < w; x++) {
+				final int arrayIndex = rowIndex + x;
+				if (workArray[arrayIndex] != phase) continue;
+				final int label = labels[arrayIndex];
+				if (phase == ConnectedComponents.BACK) {
+					final int neighbour = boundaryLabels[arrayIndex];
+					if (neighbour != 0) forest.union(label, neighbour);
+					continue;
+				}
+				int lastNonZero = -1;
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+					for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++) {
+						final int neighbour = boundaryLabels[ny * w + nx];
+						if (neighbour == 0 || neighbour == lastNonZero) continue;
+						forest.union(label, neighbour);
+						lastNonZero = neighbour;
+					}
+				}
+			}
+		}
+	}
+}
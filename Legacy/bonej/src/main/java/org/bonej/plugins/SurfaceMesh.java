@@ -0,0 +1,257 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.vecmath.Point3f;
+
+/**
+ * A triangle mesh stored as an indexed face set: each distinct vertex is kept
+ * once in a packed float array, and triangles refer to their corners by
+ * vertex index.
+ * <p>
+ * Marching cubes produces a triangle soup in which each vertex is repeated by
+ * every triangle that shares it, about six times on a closed surface. The soup
+ * is welded when the mesh is made, by merging corners that have identical
+ * coordinates, so a mesh takes a small fraction of the soup's memory.
+ * Vertices are numbered in the order that they first appear in the soup.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class SurfaceMesh {
+
+	/** x, y, z coordinates of each vertex */
+	private final float[] vertices;
+	/** vertex indices of each triangle's corners, three per triangle */
+	private final int[] triangles;
+
+	/**
+	 * Weld a triangle soup into an indexed mesh
+	 *
+	 * @param points triangle corners, three consecutive points per triangle
+	 * @throws IllegalArgumentException if the number of points is not a multiple
+	 *           of 3
+	 */
+	SurfaceMesh(final List<Point3f> points) {
+		final int nPoints = points.size();
+		if (nPoints % 3 != 0) {
+			throw new IllegalArgumentException(
+				"Number of points must be a multiple of 3");
+		}
+		triangles = new int[nPoints];
+		float[] welded = new float[3 * Math.max(4, nPoints / 4)];
+		// open addressing hash table of vertex index + 1, 0 is empty
+		int[] table = new int[tableSize(welded.length / 3)];
+		int nVertices = 0;
+		for (int i = 0; i < nPoints; i++) {
+			final Point3f point = points.get(i);
+			final int mask = table.length - 1;
+			int slot = hash(point.x, point.y, point.z) & mask;
+			int index = -1;
+			while (table[slot] != 0) {
+				final int v = table[slot] - 1;
+				if (welded[3 * v] == point.x && welded[3 * v + 1] == point.y &&
+					welded[3 * v + 2] == point.z)
+				{
+					index = v;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (index < 0) {
+				index = nVertices++;
+				if (3 * nVertices > welded.length) {
+					welded = Arrays.copyOf(welded, 2 * welded.length);
+				}
+				welded[3 * index] = point.x;
+				welded[3 * index + 1] = point.y;
+				welded[3 * index + 2] = point.z;
+				table[slot] = index + 1;
+				if (2 * nVertices > table.length) {
+					table = rehash(welded, nVertices, tableSize(2 * nVertices));
+				}
+			}
+			triangles[i] = index;
+		}
+		vertices = Arrays.copyOf(welded, 3 * nVertices);
+	}
+
+	/**
+	 * @return number of distinct vertices
+	 */
+	int getNVertices() {
+		return vertices.length / 3;
+	}
+
+	/**
+	 * @return number of triangles
+	 */
+	int getNTriangles() {
+		return triangles.length / 3;
+	}
+
+	/**
+	 * @return vertex coordinates, packed as x0, y0, z0, x1, y1, z1... This is
+	 *         the mesh's own array, so it must not be modified.
+	 */
+	float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * @return vertex indices of the triangles' corners, three per triangle. This
+	 *         is the mesh's own array, so it must not be modified.
+	 */
+	int[] getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * Get the distance between two vertices, calculated in single precision like
+	 * {@link Point3f#distance(Point3f)}
+	 *
+	 * @param a index of the first vertex
+	 * @param b index of the second vertex
+	 * @return distance between the vertices
+	 */
+	float distance(final int a, final int b) {
+		final float dx = vertices[3 * a] - vertices[3 * b];
+		final float dy = vertices[3 * a + 1] - vertices[3 * b + 1];
+		final float dz = vertices[3 * a + 2] - vertices[3 * b + 2];
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Calculate the surface area of the mesh as the sum of its triangles' areas
+	 *
+	 * @return surface area
+	 */
+	double getArea() {
+		double sumArea = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			final int a = 3 * triangles[t];
+			final int b = 3 * triangles[t + 1];
+			final int c = 3 * triangles[t + 2];
+			final double x1 = vertices[b] - vertices[a];
+			final double y1 = vertices[b + 1] - vertices[a + 1];
+			final double z1 = vertices[b + 2] - vertices[a + 2];
+			final double x2 = vertices[c] - vertices[a];
+			final double y2 = vertices[c + 1] - vertices[a + 1];
+			final double z2 = vertices[c + 2] - vertices[a + 2];
+			final float cx = (float) (y1 * z2 - z1 * y2);
+			final float cy = (float) (z1 * x2 - x1 * z2);
+			final float cz = (float) (x1 * y2 - y1 * x2);
+			sumArea += 0.5 * (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+		}
+		return sumArea;
+	}
+
+	/**
+	 * Calculate the volume enclosed by the mesh, as the sum of the signed
+	 * volumes of the tetrahedra that join each triangle to the vertices'
+	 * centroid. The mesh should be closed.
+	 *
+	 * @return enclosed volume, which is positive whichever way the triangles are
+	 *         wound
+	 */
+	double getVolume() {
+		final int nVertices = getNVertices();
+		if (nVertices == 0) return 0;
+		double sx = 0;
+		double sy = 0;
+		double sz = 0;
+		for (int v = 0; v < vertices.length; v += 3) {
+			sx += vertices[v];
+			sy += vertices[v + 1];
+			sz += vertices[v + 2];
+		}
+		final double cx = sx / nVertices;
+		final double cy = sy / nVertices;
+		final double cz = sz / nVertices;
+		double sumVolume = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			final int a = 3 * triangles[t];
+			final int b = 3 * triangles[t + 1];
+			final int c = 3 * triangles[t + 2];
+			final double ax = vertices[a] - cx;
+			final double ay = vertices[a + 1] - cy;
+			final double az = vertices[a + 2] - cz;
+			final double bx = vertices[b] - cx;
+			final double by = vertices[b + 1] - cy;
+			final double bz = vertices[b + 2] - cz;
+			final double qx = vertices[c] - cx;
+			final double qy = vertices[c + 1] - cy;
+			final double qz = vertices[c + 2] - cz;
+			sumVolume += ax * (by * qz - bz * qy) + ay * (bz * qx - bx * qz) + az *
+				(bx * qy - by * qx);
+		}
+		return Math.abs(sumVolume) / 6;
+	}
+
+	/**
+	 * Expand the mesh back into a triangle soup, for the 3D Viewer
+	 *
+	 * @return three points per triangle
+	 */
+	List<Point3f> toPointList() {
+		final List<Point3f> points = new ArrayList<>(triangles.length);
+		for (final int v : triangles) {
+			points.add(new Point3f(vertices[3 * v], vertices[3 * v + 1], vertices[3 *
+				v + 2]));
+		}
+		return points;
+	}
+
+	private static int tableSize(final int nEntries) {
+		return Integer.highestOneBit(Math.max(8, 2 * nEntries - 1)) << 1;
+	}
+
+	private static int[] rehash(final float[] vertices, final int nVertices,
+		final int size)
+	{
+		final int[] table = new int[size];
+		final int mask = size - 1;
+		for (int v = 0; v < nVertices; v++) {
+			int slot = hash(vertices[3 * v], vertices[3 * v + 1], vertices[3 * v +
+				2]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = v + 1;
+		}
+		return table;
+	}
+
+	private static int hash(final float x, final float y, final float z) {
+		// +0.0f so that -0 and 0, which are equal, hash the same
+		int h = Float.floatToIntBits(x + 0.0f);
+		h = 31 * h + Float.floatToIntBits(y + 0.0f);
+		h = 31 * h + Float.floatToIntBits(z + 0.0f);
+		return h ^ (h >>> 16);
+	}
+}
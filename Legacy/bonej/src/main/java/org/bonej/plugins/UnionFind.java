@@ -0,0 +1,254 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Disjoint-set forest (union-find) of particle labels, stored in primitive
+ * arrays.
+ * <p>
+ * The label space is divided into chunks, each starting at its ID offset, in
+ * the same way as {@link ConnectedComponents} divides the image. Each chunk
+ * has its own parent and rank arrays, so a thread may add and merge the labels
+ * of its own chunk without locking. Merges between labels in different chunks
+ * must be made from a single thread, after the chunks have been labelled.
+ * </p>
+ * <p>
+ * Uses union-by-rank and path halving, so resolving n labels takes near-linear
+ * time.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class UnionFind {
+
+	/** first label of each chunk */
+	private final int[] chunkIDOffsets;
+
+	/** first label that is not allowed in each chunk */
+	private final int[] chunkIDLimits;
+
+	/** size of the label space of each chunk, or 0 if chunks differ in size */
+	private final int chunkLabelSpace;
+
+	/** parent label of each label, indexed by label - chunk ID offset */
+	private final int[][] parents;
+
+	/** upper bound of each root's tree height */
+	private final byte[][] ranks;
+
+	/** number of labels in each chunk */
+	private final int[] nLabels;
+
+	/**
+	 * Create an empty forest.
+	 *
+	 * If the first chunk's ID offset is 0 then label 0 is added to it, so that
+	 * background always maps to itself.
+	 *
+	 * @param chunkIDOffsets first label of each chunk, in ascending order
+	 * @param maxLabel first label that is not allowed in the last chunk
+	 * @param initialCapacity expected number of labels per chunk
+	 */
+	UnionFind(final int[] chunkIDOffsets, final int maxLabel,
+		final int initialCapacity)
+	{
+		final int nChunks = chunkIDOffsets.length;
+		this.chunkIDOffsets = chunkIDOffsets.clone();
+		chunkIDLimits = new int[nChunks];
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			chunkIDLimits[chunk] = chunk + 1 < nChunks ? chunkIDOffsets[chunk + 1]
+				: maxLabel;
+		}
+		chunkLabelSpace = uniformLabelSpace(chunkIDOffsets, maxLabel);
+		parents = new int[nChunks][];
+		ranks = new byte[nChunks][];
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			final int capacity = Math.max(1, Math.min(initialCapacity,
+				chunkIDLimits[chunk] - chunkIDOffsets[chunk]));
+			parents[chunk] = new int[capacity];
+			ranks[chunk] = new byte[capacity];
+		}
+		nLabels = new int[nChunks];
+		if (chunkIDOffsets[0] == 0) makeSet(0, 0);
+	}
+
+	/**
+	 * Add a new label as a singleton set. Labels of each chunk must be added in
+	 * ascending order.
+	 *
+	 * @param chunk chunk that owns the label
+	 * @param label new label
+	 * @throws IllegalArgumentException if the label is outside the chunk's
+	 *           label space
+	 */
+	void makeSet(final int chunk, final int label) {
+		if (label >= chunkIDLimits[chunk]) {
+			throw new IllegalArgumentException("ID " + label +
+				" is greater than the allowed range (max " + (chunkIDLimits[chunk] - 1) +
+				")");
+		}
+		final int index = label - chunkIDOffsets[chunk];
+		if (index >= parents[chunk].length) {
+			final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(
+				index + 1L, 2L * parents[chunk].length));
+			parents[chunk] = Arrays.copyOf(parents[chunk], capacity);
+			ranks[chunk] = Arrays.copyOf(ranks[chunk], capacity);
+		}
+		parents[chunk][index] = label;
+		ranks[chunk][index] = 0;
+		nLabels[chunk] = Math.max(nLabels[chunk], index + 1);
+	}
+
+	/**
+	 * Find the root label of the set containing a label, halving the path to
+	 * the root on the way.
+	 *
+	 * @param label a label that has been added to the forest
+	 * @return root label of the label's set
+	 */
+	int find(final int label) {
+		int x = label;
+		while (true) {
+			final int chunk = chunkOf(x);
+			final int[] chunkParents = parents[chunk];
+			final int index = x - chunkIDOffsets[chunk];
+			final int parent = chunkParents[index];
+			if (parent == x) return x;
+			final int parentChunk = chunkOf(parent);
+			final int grandParent = parents[parentChunk][parent -
+				chunkIDOffsets[parentChunk]];
+			chunkParents[index] = grandParent;
+			x = grandParent;
+		}
+	}
+
+	/**
+	 * Merge the sets containing two labels, hanging the shallower tree from the
+	 * root of the deeper one.
+	 *
+	 * @param a a label
+	 * @param b another label
+	 * @return root label of the merged set
+	 */
+	int union(final int a, final int b) {
+		final int rootA = find(a);
+		final int rootB = find(b);
+		if (rootA == rootB) return rootA;
+		final int chunkA = chunkOf(rootA);
+		final int chunkB = chunkOf(rootB);
+		final int indexA = rootA - chunkIDOffsets[chunkA];
+		final int indexB = rootB - chunkIDOffsets[chunkB];
+		final byte rankA = ranks[chunkA][indexA];
+		final byte rankB = ranks[chunkB][indexB];
+		if (rankA < rankB) {
+			parents[chunkA][indexA] = rootB;
+			return rootB;
+		}
+		parents[chunkB][indexB] = rootA;
+		if (rankA == rankB) ranks[chunkA][indexA]++;
+		return rootA;
+	}
+
+	/**
+	 * Resolve every label to its set, and number the sets consecutively from 1
+	 * in order of their smallest label. Label 0 maps to 0.
+	 *
+	 * @return LUT as a 2D int array, with an int[] array per chunk, indexed by
+	 *         label - chunk ID offset
+	 */
+	int[][] makeLut() {
+		final int nChunks = chunkIDOffsets.length;
+		final int[][] lut = new int[nChunks][];
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			lut[chunk] = new int[nLabels[chunk]];
+		}
+		int nextLabel = 1;
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			final int IDoffset = chunkIDOffsets[chunk];
+			final int[] chunkLut = lut[chunk];
+			final int n = nLabels[chunk];
+			for (int i = 0; i < n; i++) {
+				final int label = i + IDoffset;
+				if (label == 0) continue;
+				final int root = find(label);
+				final int rootChunk = chunkOf(root);
+				final int rootIndex = root - chunkIDOffsets[rootChunk];
+				// the root's own LUT entry holds the set's final label
+				int finalLabel = lut[rootChunk][rootIndex];
+				if (finalLabel == 0) {
+					finalLabel = nextLabel++;
+					lut[rootChunk][rootIndex] = finalLabel;
+				}
+				chunkLut[i] = finalLabel;
+			}
+		}
+		return lut;
+	}
+
+	/**
+	 * @param chunk chunk index
+	 * @return number of labels added to the chunk, including any unused gaps
+	 */
+	int getNLabels(final int chunk) {
+		return nLabels[chunk];
+	}
+
+	/**
+	 * Find the chunk whose label space contains a label
+	 *
+	 * @param label a label
+	 * @return index of the chunk
+	 */
+	private int chunkOf(final int label) {
+		if (chunkLabelSpace > 0) {
+			return Math.min(label / chunkLabelSpace, chunkIDOffsets.length - 1);
+		}
+		final int i = Arrays.binarySearch(chunkIDOffsets, label);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * Check whether the chunks' label spaces are all the same size, apart from
+	 * the last one, which may be bigger.
+	 *
+	 * @param chunkIDOffsets first label of each chunk
+	 * @param maxLabel first label that is not allowed in the last chunk
+	 * @return size of each chunk's label space, or 0 if they are not uniform
+	 */
+	private static int uniformLabelSpace(final int[] chunkIDOffsets,
+		final int maxLabel)
+	{
+		final int nChunks = chunkIDOffsets.length;
+		if (chunkIDOffsets[0] != 0) return 0;
+		if (nChunks == 1) return Math.max(1, maxLabel);
+		final int space = chunkIDOffsets[1];
+		if (space <= 0) return 0;
+		for (int chunk = 2; chunk < nChunks; chunk++) {
+			if (chunkIDOffsets[chunk] != chunk * space) return 0;
+		}
+		return space;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+/**
+ * Lists the voxels of every particle, slice by slice. The voxels of each slice
+ * are kept as pixel indices, y * w + x, in one int array per slice, grouped
+ * by label, with the labels present in the slice and the offsets of their
+ * groups alongside.
+ * <p>
+ * The index is built with a counting sort of each slice, in parallel over the
+ * slices, and within a slice a particle's voxels are in raster order.
+ * Per-particle routines can then visit exactly the voxels of one particle,
+ * instead of scanning its bounding box, which can be mostly other particles.
+ * An index costs 4 bytes per particle voxel, plus 8 bytes for each particle
+ * in each slice it crosses, and has no limit on the total number of voxels.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class VoxelIndex {
+
+	private final int w;
+	private final int h;
+	/** pixel index, y * w + x, of each particle voxel in each slice */
+	private final int[][] voxels;
+	/** labels present in each slice, in ascending order */
+	private final int[][] sliceLabels;
+	/** start of each present label's voxels in each slice, and the end */
+	private final int[][] sliceOffsets;
+	private final int[] firstSlices;
+	private final int[] lastSlices;
+
+	private VoxelIndex(final int w, final int h, final int[][] voxels,
+		final int[][] sliceLabels, final int[][] sliceOffsets,
+		final int[] firstSlices, final int[] lastSlices)
+	{
+		this.w = w;
+		this.h = h;
+		this.voxels = voxels;
+		this.sliceLabels = sliceLabels;
+		this.sliceOffsets = sliceOffsets;
+		this.firstSlices = firstSlices;
+		this.lastSlices = lastSlices;
+	}
+
+	/**
+	 * Index the voxels of all the particles in a label array. Background, label
+	 * 0, is not indexed.
+	 *
+	 * @param particleLabels particle label array
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particle labels, including 0
+	 * @return the index
+	 */
+	static VoxelIndex build(final int[][] particleLabels, final int w,
+		final int h, final int nParticles)
+	{
+		final int d = particleLabels.length;
+		final int wh = w * h;
+		final int[][] voxels = new int[d][];
+		final int[][] sliceLabels = new int[d][];
+		final int[][] sliceOffsets = new int[d][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				// voxel count, then next write position, of each label in a slice
+				final int[] counts = new int[nParticles];
+				final int[] present = new int[Math.min(nParticles, wh)];
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] labels = particleLabels[z];
+					int nPresent = 0;
+					int nVoxels = 0;
+					for (int i = 0; i < wh; i++) {
+						final int label = labels[i];
+						if (label == 0) continue;
+						if (counts[label]++ == 0) present[nPresent++] = label;
+						nVoxels++;
+					}
+					final int[] presentLabels = Arrays.copyOf(present, nPresent);
+					Arrays.sort(presentLabels);
+					final int[] offsets = new int[nPresent + 1];
+					for (int k = 0; k < nPresent; k++) {
+						final int label = presentLabels[k];
+						offsets[k + 1] = offsets[k] + counts[label];
+						counts[label] = offsets[k];
+					}
+					final int[] sliceVoxels = new int[nVoxels];
+					for (int i = 0; i < wh; i++) {
+						final int label = labels[i];
+						if (label != 0) sliceVoxels[counts[label]++] = i;
+					}
+					for (final int label : presentLabels) {
+						counts[label] = 0;
+					}
+					voxels[z] = sliceVoxels;
+					sliceLabels[z] = presentLabels;
+					sliceOffsets[z] = offsets;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// the slices each particle spans, last < first if it has no voxels
+		final int[] firstSlices = new int[nParticles];
+		final int[] lastSlices = new int[nParticles];
+		Arrays.fill(lastSlices, -1);
+		for (int z = d - 1; z >= 0; z--) {
+			for (final int label : sliceLabels[z]) {
+				firstSlices[label] = z;
+				if (lastSlices[label] < 0) lastSlices[label] = z;
+			}
+		}
+		return new VoxelIndex(w, h, voxels, sliceLabels, sliceOffsets,
+			firstSlices, lastSlices);
+	}
+
+	/**
+	 * @param p particle label
+	 * @return number of voxels in the particle
+	 */
+	long getNVoxels(final int p) {
+		long n = 0;
+		for (int z = getFirstSlice(p); z <= getLastSlice(p); z++) {
+			n += getEnd(p, z) - getStart(p, z);
+		}
+		return n;
+	}
+
+	/**
+	 * @param p particle label
+	 * @return first slice, 0-based, that contains voxels of the particle
+	 */
+	int getFirstSlice(final int p) {
+		return firstSlices[p];
+	}
+
+	/**
+	 * @param p particle label
+	 * @return last slice, 0-based, that contains voxels of the particle, or less
+	 *         than {@link #getFirstSlice(int)} if the particle has no voxels
+	 */
+	int getLastSlice(final int p) {
+		return lastSlices[p];
+	}
+
+	/**
+	 * @param p particle label
+	 * @param z slice, 0-based
+	 * @return position of the particle's first voxel in
+	 *         {@link #getSliceVoxels(int)}
+	 */
+	int getStart(final int p, final int z) {
+		final int k = Arrays.binarySearch(sliceLabels[z], p);
+		return k < 0 ? 0 : sliceOffsets[z][k];
+	}
+
+	/**
+	 * @param p particle label
+	 * @param z slice, 0-based
+	 * @return position after the particle's last voxel in
+	 *         {@link #getSliceVoxels(int)}
+	 */
+	int getEnd(final int p, final int z) {
+		final int k = Arrays.binarySearch(sliceLabels[z], p);
+		return k < 0 ? 0 : sliceOffsets[z][k + 1];
+	}
+
+	/**
+	 * @param z slice, 0-based
+	 * @return pixel index, y * width + x, of every indexed voxel in the slice,
+	 *         grouped by particle. This is the index's own array, so it must not
+	 *         be modified.
+	 */
+	int[] getSliceVoxels(final int z) {
+		return voxels[z];
+	}
+
+	int getWidth() {
+		return w;
+	}
+
+	int getHeight() {
+		return h;
+	}
+
+	int getDepth() {
+		return voxels.length;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class ChunkSchedulerTest {
+
+	@Test
+	public void testSplitGivesDenseSlicesThinnerSlabs() {
+		// 100 sparse slices followed by 100 dense slices
+		final long[] weights = new long[200];
+		for (int z = 0; z < 200; z++) {
+			weights[z] = z < 100 ? 1 : 100;
+		}
+		try (final ChunkScheduler scheduler = new ChunkScheduler(2)) {
+			final int[] startSlices = scheduler.split(weights);
+			assertEquals(0, startSlices[0]);
+			int sparseChunks = 0;
+			for (int i = 1; i < startSlices.length; i++) {
+				assertTrue(startSlices[i] > startSlices[i - 1]);
+				if (startSlices[i] < 100) sparseChunks++;
+			}
+			assertTrue(sparseChunks < startSlices.length - sparseChunks);
+		}
+	}
+
+	@Test
+	public void testSplitEmptyStackIsOneSlab() {
+		try (final ChunkScheduler scheduler = new ChunkScheduler(4)) {
+			assertArrayEquals(new int[] { 0 }, scheduler.split(new long[50]));
+		}
+	}
+
+	@Test
+	public void testInvokeAllRunsEachChunkOnce() {
+		final int nChunks = 37;
+		final AtomicIntegerArray runs = new AtomicIntegerArray(nChunks);
+		try (final ChunkScheduler scheduler = new ChunkScheduler(4)) {
+			final long[] times = scheduler.invokeAll(nChunks, runs::incrementAndGet);
+			assertEquals(nChunks, times.length);
+		}
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			assertEquals(1, runs.get(chunk));
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class ConnectedComponentsTest {
+
+	@Test
+	public void testLabelCountsSeparateBoxes() {
+		final ImageStack stack = new ImageStack(20, 20);
+		for (int z = 0; z < 20; z++) {
+			final byte[] pixels = new byte[400];
+			for (int y = 2; y < 8; y++) {
+				for (int x = 2; x < 8; x++) {
+					pixels[y * 20 + x] = (byte) 255;
+					pixels[(y + 10) * 20 + x + 10] = (byte) 255;
+				}
+			}
+			stack.addSlice("", pixels);
+		}
+		final ImagePlus imp = new ImagePlus("boxes", stack);
+		final ConnectedComponents connector = new ConnectedComponents();
+
+		// two boxes plus the 0 label
+		assertEquals(3, connector.label(imp, ConnectedComponents.FORE)
+			.getNParticles());
+		// the background is one particle, plus the 0 label
+		assertEquals(2, connector.label(imp, ConnectedComponents.BACK)
+			.getNParticles());
+	}
+
+	@Test
+	public void testWorkArrayIsSharedOnlyWhenNotCopied() {
+		final ImagePlus imp = TestImages.randomBinary(16, 12, 5, 0.5, new Random(
+			0xB0AE));
+		final ImageStack stack = imp.getImageStack();
+		final ConnectedComponents connector = new ConnectedComponents();
+		final byte[][] copied = connector.label(imp, ConnectedComponents.FORE)
+			.getWorkArray();
+		final byte[][] shared = connector.label(imp, ConnectedComponents.FORE,
+			false).getWorkArray();
+		for (int z = 0; z < copied.length; z++) {
+			final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+			assertNotSame(pixels, copied[z]);
+			assertArrayEquals(pixels, copied[z]);
+			assertSame(pixels, shared[z]);
+		}
+	}
+
+	@Test
+	public void testConcurrentLabellingMatchesSequential()
+		throws InterruptedException, ExecutionException
+	{
+		final int nImages = 24;
+		final List<ImagePlus> images = new ArrayList<>(nImages);
+		final Random random = new Random(0xB0AE);
+		for (int i = 0; i < nImages; i++) {
+			images.add(TestImages.randomBinary(24 + i, 20, 15 + 3 * i, 0.2 + 0.02 *
+				i, random));
+		}
+
+		final ConnectedComponents connector = new ConnectedComponents();
+		final List<ConnectedComponents.Labelling> expected = new ArrayList<>(
+			nImages);
+		for (final ImagePlus imp : images) {
+			expected.add(connector.label(imp, ConnectedComponents.FORE));
+		}
+
+		// label every image several times at once on one shared instance
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<ConnectedComponents.Labelling>> futures =
+				new ArrayList<>();
+			for (int repeat = 0; repeat < 4; repeat++) {
+				for (final ImagePlus imp : images) {
+					futures.add(executor.submit(() -> connector.label(imp,
+						ConnectedComponents.FORE)));
+				}
+			}
+			for (int f = 0; f < futures.size(); f++) {
+				final ConnectedComponents.Labelling actual = futures.get(f).get();
+				final ConnectedComponents.Labelling sequential = expected.get(f %
+					nImages);
+				assertEquals(sequential.getNParticles(), actual.getNParticles());
+				final int[][] labels = actual.getParticleLabels();
+				final byte[][] workArray = actual.getWorkArray();
+				for (int z = 0; z < labels.length; z++) {
+					assertArrayEquals(sequential.getParticleLabels()[z], labels[z]);
+					assertArrayEquals(sequential.getWorkArray()[z], workArray[z]);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
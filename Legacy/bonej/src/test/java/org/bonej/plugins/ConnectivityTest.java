@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.VirtualStack;
 import ij.measure.Calibration;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
@@ -71,6 +72,63 @@ public class ConnectivityTest {
 		}
 	}
 
+	@Test
+	public void testVirtualStackMatchesInMemory() {
+		final ImagePlus imp = boxFrame(16, 24, 32);
+		final ImagePlus virtual = virtualCopy(imp);
+		final double sumEuler = conn.getSumEuler(imp);
+		final double deltaChi = conn.getDeltaChi(imp, sumEuler);
+
+		assertEquals(-4, conn.getSumEuler(virtual), 1e-12);
+		assertEquals(deltaChi, conn.getDeltaChi(virtual, sumEuler), 1e-12);
+	}
+
+	@Test(expected = OutOfMemoryError.class, timeout = 10000)
+	public void testVirtualStackReadErrorIsRethrown() {
+		final ImagePlus imp = boxFrame(16, 24, 32);
+		final ImageStack stack = imp.getImageStack();
+		final VirtualStack failing = new VirtualStack(imp.getWidth(), imp
+			.getHeight(), null, null)
+		{
+
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+				if (n == 5) throw new OutOfMemoryError();
+				return stack.getProcessor(n);
+			}
+
+			@Override
+			public int getSize() {
+				return stack.getSize();
+			}
+		};
+
+		conn.getSumEuler(new ImagePlus("failing", failing));
+	}
+
+	/**
+	 * Wrap an image's slices in a virtual stack, as for an image read from disk
+	 * a slice at a time
+	 */
+	private static ImagePlus virtualCopy(final ImagePlus imp) {
+		final ImageStack stack = imp.getImageStack();
+		final VirtualStack virtualStack = new VirtualStack(imp.getWidth(), imp
+			.getHeight(), null, null)
+		{
+
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+				return stack.getProcessor(n);
+			}
+
+			@Override
+			public int getSize() {
+				return stack.getSize();
+			}
+		};
+		return new ImagePlus("virtual", virtualStack);
+	}
+
 	/**
 	 * Draw the edges of a brick with 32 pixels of padding on all faces
 	 *
@@ -0,0 +1,104 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.measure.ResultsTable;
+
+public class CsvResultsSinkTest {
+
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException {
+		path = Files.createTempFile("bonej-results", ".csv");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	@Test
+	public void testRowsAreWrittenWithHeadings() throws IOException {
+		final CsvResultsSink sink = new CsvResultsSink(path);
+		sink.incrementCounter();
+		sink.addLabel("a, \"b\"");
+		sink.addValue("ID", 1);
+		sink.addValue("Vol. (mm³)", 0.5);
+		sink.incrementCounter();
+		sink.addLabel("c");
+		sink.addValue("ID", 2);
+		sink.addValue("Vol. (mm³)", Double.NaN);
+		sink.finish();
+
+		final List<String> lines = Files.readAllLines(path,
+			StandardCharsets.UTF_8);
+
+		assertEquals(Arrays.asList("Label,ID,Vol. (mm³)",
+			"\"a, \"\"b\"\"\",1,0.5", "c,2,NaN"), lines);
+	}
+
+	@Test
+	public void testSummaryIgnoresNaN() throws IOException {
+		final CsvResultsSink sink = new CsvResultsSink(path);
+		final double[] values = { 1, Double.NaN, 2, 6 };
+		for (final double value : values) {
+			sink.incrementCounter();
+			sink.addValue("x", value);
+		}
+		sink.finish();
+
+		final ResultsTable summary = sink.getSummary();
+
+		assertEquals("x", summary.getLabel(0));
+		assertEquals(3, summary.getValue("N", 0), 0);
+		assertEquals(3, summary.getValue("Mean", 0), 1e-12);
+		assertEquals(Math.sqrt(7), summary.getValue("SD", 0), 1e-12);
+		assertEquals(1, summary.getValue("Min", 0), 0);
+		assertEquals(6, summary.getValue("Max", 0), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddValueOtherHeading() throws IOException {
+		try (final CsvResultsSink sink = new CsvResultsSink(path)) {
+			sink.incrementCounter();
+			sink.addValue("x", 1);
+			sink.incrementCounter();
+			sink.addValue("y", 1);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class LabelCacheTest {
+
+	@After
+	public void tearDown() {
+		LabelCache.clear();
+	}
+
+	@Test
+	public void testGetReturnsCachedArrays() {
+		final ImagePlus imp = image();
+		final byte[][] workArray = ConnectedComponents.makeWorkArray(imp, true);
+		final int[][] labels = { { 0, 1, 1, 0 }, { 0, 0, 0, 2 } };
+		LabelCache.put(imp, ConnectedComponents.FORE, labels, workArray,
+			new long[] { 5, 2, 1 });
+
+		final LabelCache cache = LabelCache.get(imp, ConnectedComponents.FORE);
+
+		assertNotNull(cache);
+		// the labelling is kept by reference, not copied
+		assertSame(labels, cache.getParticleLabels());
+		assertSame(workArray, cache.getWorkArray());
+		assertEquals(3, cache.getNParticles());
+		assertArrayEquals(new long[] { 5, 2, 1 }, cache.getParticleSizes());
+	}
+
+	@Test
+	public void testGetOtherPhase() {
+		final ImagePlus imp = image();
+		LabelCache.put(imp, ConnectedComponents.FORE, new int[2][4],
+			ConnectedComponents.makeWorkArray(imp, true), new long[1]);
+
+		assertNull(LabelCache.get(imp, ConnectedComponents.BACK));
+	}
+
+	@Test
+	public void testGetChangedImage() {
+		final ImagePlus imp = image();
+		LabelCache.put(imp, ConnectedComponents.FORE, new int[2][4],
+			ConnectedComponents.makeWorkArray(imp, true), new long[1]);
+
+		((byte[]) imp.getStack().getPixels(2))[0] = (byte) 0xFF;
+
+		assertNull(LabelCache.get(imp, ConnectedComponents.FORE));
+	}
+
+	@Test
+	public void testGetOtherImage() {
+		final ImagePlus imp = image();
+		LabelCache.put(imp, ConnectedComponents.FORE, new int[2][4],
+			ConnectedComponents.makeWorkArray(imp, true), new long[1]);
+
+		assertNull(LabelCache.get(image(), ConnectedComponents.FORE));
+	}
+
+	@Test
+	public void testClear() {
+		final ImagePlus imp = image();
+		LabelCache.put(imp, ConnectedComponents.FORE, new int[2][4],
+			ConnectedComponents.makeWorkArray(imp, true), new long[1]);
+
+		assertTrue(LabelCache.clear());
+		assertNull(LabelCache.get(imp, ConnectedComponents.FORE));
+		assertFalse(LabelCache.clear());
+	}
+
+	private static ImagePlus image() {
+		final ImageStack stack = new ImageStack(2, 2);
+		stack.addSlice("", new byte[] { 0, -1, -1, 0 });
+		stack.addSlice("", new byte[] { 0, 0, 0, -1 });
+		return new ImagePlus("particles", stack);
+	}
+}
@@ -0,0 +1,76 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class LargestParticleTest {
+
+	private static final byte F = (byte) ConnectedComponents.FORE;
+	private static final byte B = ConnectedComponents.BACK;
+
+	@Test
+	public void testKeepRemovesSmallerForeground() {
+		final byte[][] workArray = { { F, F, B, B, F }, { F, B, B, B, F } };
+
+		LargestParticle.keep(workArray, 5, 1, ConnectedComponents.FORE);
+
+		assertArrayEquals(new byte[] { F, F, B, B, B }, workArray[0]);
+		assertArrayEquals(new byte[] { F, B, B, B, B }, workArray[1]);
+	}
+
+	@Test
+	public void testKeepJoinsForegroundDiagonally() {
+		// 3 x 3 x 2, the two voxels touch only at a corner
+		final byte[][] workArray = { { F, B, B, B, B, B, B, B, B }, { B, B, B, B,
+			F, B, B, B, B } };
+
+		LargestParticle.keep(workArray, 3, 3, ConnectedComponents.FORE);
+
+		assertArrayEquals(new byte[] { F, B, B, B, B, B, B, B, B }, workArray[0]);
+		assertArrayEquals(new byte[] { B, B, B, B, F, B, B, B, B }, workArray[1]);
+	}
+
+	@Test
+	public void testKeepFillsBackgroundCavity() {
+		// the centre pixel is enclosed by foreground in x and y
+		final byte[][] workArray = { { B, F, B, F, B, F, B, F, B } };
+
+		LargestParticle.keep(workArray, 3, 3, ConnectedComponents.BACK);
+
+		// corner pixels touch only diagonally, so only the first of them is kept
+		assertArrayEquals(new byte[] { B, F, F, F, F, F, F, F, F }, workArray[0]);
+	}
+
+	@Test
+	public void testKeepPrefersFirstOfEqualParticles() {
+		final byte[][] workArray = { { F, B, F } };
+
+		LargestParticle.keep(workArray, 3, 1, ConnectedComponents.FORE);
+
+		assertArrayEquals(new byte[] { F, B, B }, workArray[0]);
+	}
+}
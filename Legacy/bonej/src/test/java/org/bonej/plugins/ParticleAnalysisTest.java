@@ -0,0 +1,197 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+public class ParticleAnalysisTest {
+
+	private static final int SIZE = 12;
+
+	@Test
+	public void testGetEulerCharacterShellWithParticleInside() {
+		final int[][] labels = new int[SIZE][SIZE * SIZE];
+		// a hollow cube with a wall 1 voxel thick
+		fill(labels, 1, 2, 9);
+		fill(labels, 0, 3, 7);
+		// a solid cube in its cavity, not touching the wall
+		fill(labels, 2, 5, 2);
+
+		final double[][] eulers = ParticleAnalysis.getEulerCharacter(image(),
+			labels, 3);
+
+		// euler, holes, cavities
+		assertArrayEquals(new double[] { 2, 0, 1 }, eulers[1], 0);
+		assertArrayEquals(new double[] { 1, 0, 0 }, eulers[2], 0);
+	}
+
+	@Test
+	public void testGetEulerCharacterRing() {
+		final int[][] labels = new int[SIZE][SIZE * SIZE];
+		fill(labels, 1, 2, 8);
+		// a tunnel through the cube in z
+		for (int z = 2; z < 10; z++) {
+			for (int y = 4; y < 6; y++) {
+				for (int x = 4; x < 6; x++) {
+					labels[z][y * SIZE + x] = 0;
+				}
+			}
+		}
+
+		final double[][] eulers = ParticleAnalysis.getEulerCharacter(image(),
+			labels, 2);
+
+		assertArrayEquals(new double[] { 0, 1, 0 }, eulers[1], 0);
+	}
+
+	@Test
+	public void testGetEulerCharacterTwoCavities() {
+		final int[][] labels = new int[SIZE][SIZE * SIZE];
+		fill(labels, 1, 1, 10);
+		fill(labels, 0, 3, 2);
+		fill(labels, 0, 7, 2);
+
+		final double[][] eulers = ParticleAnalysis.getEulerCharacter(image(),
+			labels, 2);
+
+		assertArrayEquals(new double[] { 3, 0, 2 }, eulers[1], 0);
+	}
+
+	@Test
+	public void testGetBranchLengthPackedAndSingle() {
+		final int w = 48;
+		final int h = 24;
+		final int d = 8;
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			stack.addSlice("", new byte[w * h]);
+		}
+		final ImagePlus imp = new ImagePlus("rods", stack);
+		// rods 2 to 11 voxels long are packed, the 40 voxel rod is not
+		final int[] lengths = { 0, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 40 };
+		final int nParticles = lengths.length;
+		final int[][] labels = new int[d][w * h];
+		for (int p = 1; p < nParticles; p++) {
+			final int y = 2 * p;
+			final int z = 1 + p % (d - 2);
+			for (int x = 1; x <= lengths[p]; x++) {
+				labels[z][y * w + x] = p;
+			}
+		}
+		final int[][] limits = ParticleStatistics.measure(labels, w, h, nParticles,
+			null).getParticleLimits();
+		final VoxelIndex voxelIndex = VoxelIndex.build(labels, w, h, nParticles);
+
+		final SkeletonResult[] results = ParticleAnalysis.getBranchLength(imp,
+			voxelIndex, limits, nParticles);
+
+		for (int p = 1; p < nParticles; p++) {
+			assertEquals(1, results[p].getNumOfTrees());
+			assertEquals(1, results[p].getBranches()[0]);
+			assertEquals(lengths[p] - 1, results[p].getAverageBranchLength()[0],
+				1e-12);
+		}
+	}
+
+	@Test
+	public void testGetFilteredParticlesLeavesInputUnchanged() {
+		final int[][] labels = new int[SIZE][SIZE * SIZE];
+		// touches the edge, is kept and is too big
+		fill(labels, 1, 0, 2);
+		fill(labels, 2, 3, 2);
+		fill(labels, 3, 6, 3);
+		final byte[][] workArray = new byte[SIZE][SIZE * SIZE];
+		for (int z = 0; z < SIZE; z++) {
+			for (int i = 0; i < SIZE * SIZE; i++) {
+				if (labels[z][i] > 0) workArray[z][i] = (byte) 255;
+			}
+		}
+		final long[] sizes = { SIZE * SIZE * SIZE - 43, 8, 8, 27 };
+		final int[][] labelsCopy = new int[SIZE][];
+		final byte[][] workArrayCopy = new byte[SIZE][];
+		for (int z = 0; z < SIZE; z++) {
+			labelsCopy[z] = labels[z].clone();
+			workArrayCopy[z] = workArray[z].clone();
+		}
+		final ParticleAnalysis inPlace = new ParticleAnalysis();
+		inPlace.filterParticles(image(), labelsCopy, workArrayCopy, 4,
+			ConnectedComponents.FORE, true, 0, 20, sizes);
+
+		final ParticleAnalysis pa = new ParticleAnalysis();
+		final Object[] filtered = pa.getFilteredParticles(image(), labels,
+			workArray, 4, ConnectedComponents.FORE, true, 0, 20, sizes);
+
+		assertEquals(8, pa.getParticleSizes()[1]);
+		assertArrayEquals(inPlace.getParticleSizes(), pa.getParticleSizes());
+		assertArrayEquals(workArrayCopy, (byte[][]) filtered[0]);
+		assertArrayEquals(labelsCopy, (int[][]) filtered[1]);
+		// the input still holds all three particles
+		assertEquals(3, labels[7][7 * SIZE + 7]);
+		assertEquals(1, labels[0][0]);
+		assertEquals((byte) 255, workArray[0][0]);
+	}
+
+	@Test
+	public void testGetFilteredParticlesNoneRemoved() {
+		final int[][] labels = new int[SIZE][SIZE * SIZE];
+		fill(labels, 1, 3, 2);
+		final byte[][] workArray = new byte[SIZE][SIZE * SIZE];
+
+		final Object[] filtered = new ParticleAnalysis().getFilteredParticles(
+			image(), labels, workArray, 2, ConnectedComponents.FORE, true, 0,
+			Double.POSITIVE_INFINITY, new long[] { SIZE * SIZE * SIZE - 8, 8 });
+
+		assertSame(workArray, filtered[0]);
+		assertSame(labels, filtered[1]);
+	}
+
+	/** Fill a cube of side voxels, with its lowest corner at (start, start, start) */
+	private static void fill(final int[][] labels, final int label,
+		final int start, final int side)
+	{
+		for (int z = start; z < start + side; z++) {
+			for (int y = start; y < start + side; y++) {
+				for (int x = start; x < start + side; x++) {
+					labels[z][y * SIZE + x] = label;
+				}
+			}
+		}
+	}
+
+	private static ImagePlus image() {
+		final ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int z = 0; z < SIZE; z++) {
+			stack.addSlice("", new byte[SIZE * SIZE]);
+		}
+		return new ImagePlus("particles", stack);
+	}
+}
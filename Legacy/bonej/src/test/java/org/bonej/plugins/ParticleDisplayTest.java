@@ -0,0 +1,120 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bonej.geometry.Ellipsoid;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+public class ParticleDisplayTest {
+
+	@Test
+	public void testDisplayParticleEllipsoidsMatchesContains() {
+		final int w = 41;
+		final int h = 37;
+		final int d = 29;
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			stack.addSlice("", new byte[w * h]);
+		}
+		final ImagePlus imp = new ImagePlus("particles", stack);
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.7;
+		cal.pixelHeight = 1.1;
+		cal.pixelDepth = 1.9;
+		final Random random = new Random(0xE11);
+		final int nEllipsoids = 40;
+		// label 0 and failed fits have no ellipsoid
+		final Object[] ellipsoids = new Object[nEllipsoids + 2];
+		for (int i = 1; i <= nEllipsoids; i++) {
+			// centres reach past the image's sides, so some ellipsoids are clipped
+			final double[] centre = { (random.nextDouble() * 1.4 - 0.2) * w *
+				cal.pixelWidth, (random.nextDouble() * 1.4 - 0.2) * h *
+					cal.pixelHeight, (random.nextDouble() * 1.4 - 0.2) * d *
+						cal.pixelDepth };
+			final double[] radii = { 1 + 9 * random.nextDouble(), 1 + 9 * random
+				.nextDouble(), 1 + 9 * random.nextDouble() };
+			ellipsoids[i] = new Object[] { centre, radii, randomRotation(random) };
+		}
+
+		final ImagePlus impOut = ParticleDisplay.displayParticleEllipsoids(imp,
+			ellipsoids);
+
+		assertEquals(d, impOut.getImageStackSize());
+		int nInside = 0;
+		for (int z = 0; z < d; z++) {
+			final byte[] expected = new byte[w * h];
+			for (int i = 1; i <= nEllipsoids; i++) {
+				final Ellipsoid ellipsoid = new Ellipsoid((Object[]) ellipsoids[i]);
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						if (ellipsoid.contains(x * cal.pixelWidth, y * cal.pixelHeight, z *
+							cal.pixelDepth)) expected[y * w + x] = (byte) 255;
+					}
+				}
+			}
+			for (final byte pixel : expected) {
+				if (pixel != 0) nInside++;
+			}
+			assertArrayEquals("Slice " + z, expected, (byte[]) impOut.getStack()
+				.getPixels(z + 1));
+		}
+		// the ellipsoids fill some of the image, but not all of it
+		assertTrue(nInside > 0 && nInside < w * h * d);
+	}
+
+	/** Make a random rotation matrix from a random unit quaternion */
+	private static double[][] randomRotation(final Random random) {
+		double a;
+		double b;
+		double c;
+		double e;
+		double norm;
+		do {
+			a = random.nextGaussian();
+			b = random.nextGaussian();
+			c = random.nextGaussian();
+			e = random.nextGaussian();
+			norm = Math.sqrt(a * a + b * b + c * c + e * e);
+		}
+		while (norm < 1e-6);
+		a /= norm;
+		b /= norm;
+		c /= norm;
+		e /= norm;
+		return new double[][] { { 1 - 2 * (c * c + e * e), 2 * (b * c - a * e), 2 *
+			(b * e + a * c) }, { 2 * (b * c + a * e), 1 - 2 * (b * b + e * e), 2 * (c *
+				e - a * b) }, { 2 * (b * e - a * c), 2 * (c * e + a * b), 1 - 2 * (b *
+					b + c * c) } };
+	}
+}
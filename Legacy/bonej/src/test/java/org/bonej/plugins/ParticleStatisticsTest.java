@@ -0,0 +1,285 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+public class ParticleStatisticsTest {
+
+	@Test
+	public void testBoxStatistics() {
+		// a 3 x 4 x 5 box labelled 1 from (2, 3, 1) in a 10 x 10 x 8 image, with
+		// intensity 2 in its first slice and 4 elsewhere
+		final int w = 10;
+		final int h = 10;
+		final int d = 8;
+		final int[][] labels = new int[d][w * h];
+		final ImageStack intensities = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final float[] pixels = new float[w * h];
+			for (int y = 3; y < 7; y++) {
+				for (int x = 2; x < 5; x++) {
+					if (z < 1 || z > 5) continue;
+					labels[z][y * w + x] = 1;
+					pixels[y * w + x] = z == 1 ? 2 : 4;
+				}
+			}
+			intensities.addSlice("", pixels);
+		}
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = 0.5;
+		cal.pixelHeight = 2;
+		cal.pixelDepth = 3;
+
+		final ParticleStatistics statistics = ParticleStatistics.measure(labels, w,
+			h, 2, new ImagePlus("intensities", intensities));
+
+		assertArrayEquals(new long[] { 800 - 60, 60 }, statistics
+			.getParticleSizes());
+		assertArrayEquals(new int[] { 2, 4, 3, 6, 1, 5 }, statistics
+			.getParticleLimits()[1]);
+		assertArrayEquals(new double[] { 1.5, 9, 9 }, statistics.getCentroids(
+			cal)[1], 1e-12);
+		final double[] meanStdDev = statistics.getMeanStdDev()[1];
+		final double mean = (12 * 2 + 48 * 4) / 60.0;
+		assertEquals(mean, meanStdDev[0], 1e-12);
+		assertEquals(Math.sqrt((12 * (2 - mean) * (2 - mean) + 48 * (4 - mean) *
+			(4 - mean)) / 60), meanStdDev[1], 1e-12);
+		assertEquals(4, meanStdDev[2], 0);
+	}
+
+	@Test
+	public void testMeasureLabelFileMatchesLabelArray() throws IOException {
+		final int w = 7;
+		final int h = 5;
+		final int d = 4;
+		final int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++) {
+			for (int i = 0; i < w * h; i++) {
+				labels[z][i] = (i * 7 + z * 3) % 5 == 0 ? 1 + (i + z) % 3 : 0;
+			}
+		}
+		final ParticleStatistics expected = ParticleStatistics.measure(labels, w, h,
+			4, null);
+
+		try (final LabelFile labelFile = LabelFile.create(null, w, h, d)) {
+			labelFile.writeSlices(0, labels);
+			labelFile.applyLut(new int[] { 0, 1, 2, 3 }, 4);
+			final ParticleStatistics statistics = ParticleStatistics.measure(
+				labelFile);
+
+			assertArrayEquals(expected.getParticleSizes(), statistics
+				.getParticleSizes());
+			for (int p = 1; p < 4; p++) {
+				assertArrayEquals(expected.getParticleLimits()[p], statistics
+					.getParticleLimits()[p]);
+				assertArrayEquals(expected.getCentroids(new Calibration())[p],
+					statistics.getCentroids(new Calibration())[p], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesSeparateScans() {
+		final int w = 23;
+		final int h = 17;
+		final int d = 9;
+		final int nParticles = 7;
+		final Random random = new Random(0xB0E);
+		final int[][] labels = new int[d][w * h];
+		final ImageStack intensities = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final float[] pixels = new float[w * h];
+			for (int i = 0; i < w * h; i++) {
+				labels[z][i] = random.nextInt(nParticles);
+				// include zero and negative values, which are left out of the means
+				pixels[i] = random.nextInt(5) - 1 + random.nextFloat();
+			}
+			intensities.addSlice("", pixels);
+		}
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = 0.7;
+		cal.pixelHeight = 1.3;
+		cal.pixelDepth = 2.9;
+		final long[] sizes = new long[nParticles];
+		for (final int[] slice : labels) {
+			for (final int label : slice) {
+				sizes[label]++;
+			}
+		}
+
+		final ParticleStatistics statistics = ParticleStatistics.measure(labels, w,
+			h, nParticles, new ImagePlus("intensities", intensities));
+
+		assertArrayEquals(sizes, statistics.getParticleSizes());
+		final int[][] limits = scanLimits(labels, w, h, nParticles);
+		final double[][] centroids = scanCentroids(labels, w, h, sizes, cal);
+		final double[][] meanStdDev = scanMeanStdDev(labels, intensities, sizes);
+		final double[][] actualCentroids = statistics.getCentroids(cal);
+		final double[][] actualMeanStdDev = statistics.getMeanStdDev();
+		final EigenvalueDecomposition[] eigens = statistics.getEigens(cal);
+		for (int p = 1; p < nParticles; p++) {
+			assertArrayEquals(limits[p], statistics.getParticleLimits()[p]);
+			assertArrayEquals(centroids[p], actualCentroids[p], 1e-12);
+			assertArrayEquals(meanStdDev[p], actualMeanStdDev[p], 1e-9);
+			final double[] expected = scanEigenvalues(labels, w, h, centroids[p], p,
+				cal);
+			final double[] actual = eigens[p].getRealEigenvalues();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(expected[i], actual[i], 1e-9 * expected[2]);
+			}
+		}
+	}
+
+	/** Bounding boxes found by checking every voxel */
+	private static int[][] scanLimits(final int[][] labels, final int w,
+		final int h, final int nParticles)
+	{
+		final int[][] limits = new int[nParticles][];
+		for (int p = 0; p < nParticles; p++) {
+			limits[p] = new int[] { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0,
+				Integer.MAX_VALUE, 0 };
+		}
+		for (int z = 0; z < labels.length; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final int[] limit = limits[labels[z][y * w + x]];
+					limit[0] = Math.min(limit[0], x);
+					limit[1] = Math.max(limit[1], x);
+					limit[2] = Math.min(limit[2], y);
+					limit[3] = Math.max(limit[3], y);
+					limit[4] = Math.min(limit[4], z);
+					limit[5] = Math.max(limit[5], z);
+				}
+			}
+		}
+		return limits;
+	}
+
+	/** Centroids summed voxel by voxel in floating point */
+	private static double[][] scanCentroids(final int[][] labels, final int w,
+		final int h, final long[] sizes, final Calibration cal)
+	{
+		final double[][] sums = new double[sizes.length][3];
+		for (int z = 0; z < labels.length; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final double[] sum = sums[labels[z][y * w + x]];
+					sum[0] += x;
+					sum[1] += y;
+					sum[2] += z;
+				}
+			}
+		}
+		final double[][] centroids = new double[sizes.length][];
+		for (int p = 0; p < sizes.length; p++) {
+			centroids[p] = new double[] { cal.pixelWidth * sums[p][0] / sizes[p],
+				cal.pixelHeight * sums[p][1] / sizes[p], cal.pixelDepth * sums[p][2] /
+					sizes[p] };
+		}
+		return centroids;
+	}
+
+	/**
+	 * Mean and standard deviation of positive intensities over all voxels, in
+	 * two passes
+	 */
+	private static double[][] scanMeanStdDev(final int[][] labels,
+		final ImageStack intensities, final long[] sizes)
+	{
+		final double[][] meanStdDev = new double[sizes.length][3];
+		final double[] sums = new double[sizes.length];
+		for (int z = 0; z < labels.length; z++) {
+			final float[] pixels = (float[]) intensities.getPixels(z + 1);
+			for (int i = 0; i < pixels.length; i++) {
+				if (pixels[i] > 0) sums[labels[z][i]] += pixels[i];
+			}
+		}
+		for (int p = 1; p < sizes.length; p++) {
+			meanStdDev[p][0] = sums[p] / sizes[p];
+		}
+		final double[] sumSquares = new double[sizes.length];
+		for (int z = 0; z < labels.length; z++) {
+			final float[] pixels = (float[]) intensities.getPixels(z + 1);
+			for (int i = 0; i < pixels.length; i++) {
+				if (pixels[i] > 0) {
+					final double[] stats = meanStdDev[labels[z][i]];
+					final double residual = pixels[i] - stats[0];
+					sumSquares[labels[z][i]] += residual * residual;
+					stats[2] = Math.max(stats[2], pixels[i]);
+				}
+			}
+		}
+		for (int p = 1; p < sizes.length; p++) {
+			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / sizes[p]);
+		}
+		return meanStdDev;
+	}
+
+	/**
+	 * Eigenvalues of a particle's inertia tensor, summed voxel by voxel about
+	 * its centroid
+	 */
+	private static double[] scanEigenvalues(final int[][] labels, final int w,
+		final int h, final double[] centroid, final int label,
+		final Calibration cal)
+	{
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double[] moments = new double[6];
+		for (int z = 0; z < labels.length; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if (labels[z][y * w + x] != label) continue;
+					final double dx = x * vW - centroid[0];
+					final double dy = y * vH - centroid[1];
+					final double dz = z * vD - centroid[2];
+					moments[0] += dy * dy + dz * dz + (vH * vH + vD * vD) / 12;
+					moments[1] += dx * dx + dz * dz + (vW * vW + vD * vD) / 12;
+					moments[2] += dy * dy + dx * dx + (vH * vH + vW * vW) / 12;
+					moments[3] += dx * dy;
+					moments[4] += dx * dz;
+					moments[5] += dy * dz;
+				}
+			}
+		}
+		final Matrix tensor = new Matrix(new double[][] { { moments[0],
+			-moments[3], -moments[4] }, { -moments[3], moments[1], -moments[5] }, {
+				-moments[4], -moments[5], moments[2] } });
+		return new EigenvalueDecomposition(tensor).getRealEigenvalues();
+	}
+}
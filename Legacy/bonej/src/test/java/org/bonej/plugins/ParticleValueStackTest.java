@@ -0,0 +1,82 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+
+public class ParticleValueStackTest {
+
+	private static final int[][] LABELS = { { 0, 1, 1, 2 }, { 2, 2, 0, 0 },
+		{ 1, 0, 0, 0 } };
+
+	@Test
+	public void testGetPixels() {
+		final ParticleValueStack stack = new ParticleValueStack(LABELS,
+			new double[] { 0, 0.5, 7 }, template());
+
+		assertEquals(3, stack.getSize());
+		assertEquals(32, stack.getBitDepth());
+		assertArrayEquals(new float[] { 0, 0.5f, 0.5f, 7 }, (float[]) stack
+			.getPixels(1), 0);
+		assertArrayEquals(new float[] { 7, 7, 0, 0 }, (float[]) stack
+			.getProcessor(2).getPixels(), 0);
+		assertEquals("third", stack.getSliceLabel(3));
+	}
+
+	@Test
+	public void testChangedPixelsDontReachTheCache() {
+		final ParticleValueStack stack = new ParticleValueStack(LABELS,
+			new double[] { 0, 1, 2 }, template());
+		final float[] pixels = (float[]) stack.getPixels(3);
+		pixels[0] = 100;
+
+		assertArrayEquals(new float[] { 1, 0, 0, 0 }, (float[]) stack.getPixels(
+			3), 0);
+	}
+
+	@Test
+	public void testRevisitSlicesAfterTheyLeaveTheCache() {
+		final ParticleValueStack stack = new ParticleValueStack(LABELS,
+			new double[] { 0, 1, 2 }, template());
+		// visit more slices than the cache holds, more than once
+		for (int i = 0; i < 10; i++) {
+			for (int n = 1; n <= 3; n++) {
+				assertEquals(LABELS[n - 1][0], ((float[]) stack.getPixels(n))[0], 0);
+			}
+		}
+	}
+
+	private static ImageStack template() {
+		final ImageStack stack = new ImageStack(2, 2);
+		stack.addSlice("first", new byte[4]);
+		stack.addSlice("second", new byte[4]);
+		stack.addSlice("third", new byte[4]);
+		return stack;
+	}
+}
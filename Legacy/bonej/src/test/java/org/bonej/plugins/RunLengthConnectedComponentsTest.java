@@ -0,0 +1,66 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+public class RunLengthConnectedComponentsTest {
+
+	@Test
+	public void testLabelsMatchConnectedComponents() {
+		final Random random = new Random(0xB0AE);
+		final ConnectedComponents connector = new ConnectedComponents();
+		final RunLengthConnectedComponents runConnector =
+			new RunLengthConnectedComponents();
+		for (final double fraction : new double[] { 0.05, 0.5, 0.95 }) {
+			final ImagePlus imp = TestImages.randomBinary(37, 23, 29, fraction,
+				random);
+			for (final int phase : new int[] { ConnectedComponents.FORE,
+				ConnectedComponents.BACK })
+			{
+				final ConnectedComponents.Labelling expected = connector.label(imp,
+					phase);
+				final RunLengthConnectedComponents.Runs runs = runConnector.label(imp,
+					phase);
+				assertEquals(expected.getNParticles(), runs.getNParticles());
+				final int[][] labels = runs.getParticleLabels();
+				final long[] sizes = new long[expected.getNParticles()];
+				for (int z = 0; z < labels.length; z++) {
+					assertArrayEquals(expected.getParticleLabels()[z], labels[z]);
+					for (final int label : labels[z]) {
+						sizes[label]++;
+					}
+				}
+				assertArrayEquals(sizes, runs.getParticleSizes());
+			}
+		}
+	}
+}
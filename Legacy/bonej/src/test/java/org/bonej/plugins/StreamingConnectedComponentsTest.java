@@ -0,0 +1,83 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+public class StreamingConnectedComponentsTest {
+
+	@Test
+	public void testRunMatchesInMemoryLabelling() throws IOException {
+		for (final int phase : new int[] { ConnectedComponents.FORE,
+			ConnectedComponents.BACK })
+		{
+			final ImagePlus imp = TestImages.randomBinary(40, 30, 50, 0.3,
+				new Random(0xB0AE));
+			final ConnectedComponents connector = new ConnectedComponents();
+			final int[][] expected = connector.run(imp, phase);
+			final int nParticles = connector.getNParticles();
+
+			// slabs of 4 slices leave a short slab at the end of the stack
+			try (final LabelFile labelFile = new StreamingConnectedComponents(4,
+				null).run(imp, phase))
+			{
+				assertEquals(nParticles, labelFile.getNParticles());
+				for (int z = 0; z < expected.length; z++) {
+					assertArrayEquals(expected[z], labelFile.getSlice(z));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCloseDeletesLabelFile() throws IOException {
+		final ImagePlus imp = TestImages.randomBinary(8, 8, 8, 0.5, new Random(
+			1L));
+		final LabelFile labelFile = new StreamingConnectedComponents(2, null).run(
+			imp, ConnectedComponents.FORE);
+		final Path path = labelFile.getPath();
+		labelFile.close();
+		assertFalse(Files.exists(path));
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void testApplyLutRethrowsWorkerFailure() throws IOException {
+		try (final LabelFile labelFile = LabelFile.create(null, 4, 4, 3)) {
+			labelFile.writeSlices(0, new int[3][16]);
+			// label 0 is missing from the LUT
+			labelFile.applyLut(new int[0], 1);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.scijava.vecmath.Point3f;
+
+public class SurfaceMeshTest {
+
+	@Test
+	public void testWeldCube() {
+		final SurfaceMesh mesh = new SurfaceMesh(cube(2));
+
+		assertEquals(8, mesh.getNVertices());
+		assertEquals(12, mesh.getNTriangles());
+	}
+
+	@Test
+	public void testVerticesAreInOrderOfFirstAppearance() {
+		final List<Point3f> points = Arrays.asList(new Point3f(1, 0, 0),
+			new Point3f(0, 1, 0), new Point3f(0, 0, 1), new Point3f(0, 0, 1),
+			new Point3f(0, 1, 0), new Point3f(1, 1, 1));
+
+		final SurfaceMesh mesh = new SurfaceMesh(points);
+
+		assertArrayEquals(new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 1 }, mesh
+			.getVertices(), 0f);
+		assertArrayEquals(new int[] { 0, 1, 2, 2, 1, 3 }, mesh.getTriangles());
+	}
+
+	@Test
+	public void testGetArea() {
+		assertEquals(6 * 3 * 3, new SurfaceMesh(cube(3)).getArea(), 1e-12);
+	}
+
+	@Test
+	public void testGetVolume() {
+		assertEquals(3 * 3 * 3, new SurfaceMesh(cube(3)).getVolume(), 1e-12);
+	}
+
+	@Test
+	public void testToPointListRoundTrip() {
+		final List<Point3f> points = cube(2);
+
+		final List<Point3f> expanded = new SurfaceMesh(points).toPointList();
+
+		assertEquals(points.size(), expanded.size());
+		for (int i = 0; i < points.size(); i++) {
+			assertEquals(points.get(i), expanded.get(i));
+		}
+	}
+
+	@Test
+	public void testWeldManyVertices() {
+		// a fan of triangles around the origin, more vertices than the initial
+		// table holds
+		final int n = 10_000;
+		final List<Point3f> points = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			points.add(new Point3f(0, 0, 0));
+			points.add(new Point3f(i, 1, 0));
+			points.add(new Point3f(i + 1, 1, 0));
+		}
+
+		final SurfaceMesh mesh = new SurfaceMesh(points);
+
+		assertEquals(n + 2, mesh.getNVertices());
+		assertEquals(n, mesh.getNTriangles());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIfNotTriangles() {
+		new SurfaceMesh(Arrays.asList(new Point3f(), new Point3f()));
+	}
+
+	/**
+	 * Make a triangle soup of an axis-aligned cube, with each triangle wound
+	 * anticlockwise when seen from outside.
+	 */
+	private static List<Point3f> cube(final float side) {
+		final int[][] quads = { { 0, 2, 3, 1 }, { 4, 5, 7, 6 }, { 0, 1, 5, 4 }, {
+			2, 6, 7, 3 }, { 0, 4, 6, 2 }, { 1, 3, 7, 5 } };
+		final List<Point3f> points = new ArrayList<>();
+		for (final int[] quad : quads) {
+			for (final int corner : new int[] { quad[0], quad[1], quad[2], quad[0],
+				quad[2], quad[3] })
+			{
+				points.add(new Point3f(side * (corner & 1), side * ((corner >> 1) & 1),
+					side * ((corner >> 2) & 1)));
+			}
+		}
+		return points;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Test images shared by the labelling tests
+ *
+ * @author Michael Doube
+ */
+final class TestImages {
+
+	private TestImages() {}
+
+	/**
+	 * Make an 8-bit binary stack of random foreground (255) and background (0)
+	 * pixels.
+	 *
+	 * @param w width
+	 * @param h height
+	 * @param d depth
+	 * @param fraction probability that a pixel is foreground
+	 * @param random source of random numbers
+	 * @return the image
+	 */
+	static ImagePlus randomBinary(final int w, final int h, final int d,
+		final double fraction, final Random random)
+	{
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++) {
+				if (random.nextDouble() < fraction) pixels[i] = (byte) 255;
+			}
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus("random", stack);
+	}
+}
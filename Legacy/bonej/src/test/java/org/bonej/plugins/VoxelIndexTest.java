@@ -0,0 +1,100 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VoxelIndexTest {
+
+	@Test
+	public void testBuildGroupsVoxelsByLabelInRasterOrder() {
+		final int w = 3;
+		final int h = 2;
+		final int[][] labels = { { 1, 0, 2, 2, 1, 0 }, { 0, 2, 1, 3, 0, 1 } };
+
+		final VoxelIndex index = VoxelIndex.build(labels, w, h, 4);
+
+		assertEquals(4, index.getNVoxels(1));
+		assertEquals(3, index.getNVoxels(2));
+		assertEquals(1, index.getNVoxels(3));
+		assertArrayEquals(new long[] { 0, 4, 8, 11 }, voxelsOf(index, 1));
+		assertArrayEquals(new long[] { 2, 3, 7 }, voxelsOf(index, 2));
+		assertArrayEquals(new long[] { 9 }, voxelsOf(index, 3));
+	}
+
+	@Test
+	public void testBuildSkipsBackground() {
+		final int[][] labels = { { 0, 0, 0, 0 }, { 0, 1, 0, 0 } };
+
+		final VoxelIndex index = VoxelIndex.build(labels, 2, 2, 2);
+
+		assertEquals(0, index.getNVoxels(0));
+		assertEquals(0, index.getSliceVoxels(0).length);
+		assertArrayEquals(new int[] { 1 }, index.getSliceVoxels(1));
+		assertArrayEquals(new long[] { 5 }, voxelsOf(index, 1));
+	}
+
+	@Test
+	public void testBuildEmptyParticle() {
+		final int[][] labels = { { 2, 2 } };
+
+		final VoxelIndex index = VoxelIndex.build(labels, 2, 1, 3);
+
+		assertEquals(0, index.getNVoxels(1));
+		assertTrue(index.getLastSlice(1) < index.getFirstSlice(1));
+		assertEquals(2, index.getNVoxels(2));
+	}
+
+	@Test
+	public void testBuildSlicesSpanned() {
+		final int[][] labels = { { 0, 1 }, { 0, 0 }, { 1, 2 }, { 0, 0 } };
+
+		final VoxelIndex index = VoxelIndex.build(labels, 2, 1, 3);
+
+		assertEquals(0, index.getFirstSlice(1));
+		assertEquals(2, index.getLastSlice(1));
+		assertEquals(2, index.getFirstSlice(2));
+		assertEquals(2, index.getLastSlice(2));
+		// a slice the particle skips has no voxels of it
+		assertEquals(index.getStart(1, 1), index.getEnd(1, 1));
+	}
+
+	/** Stack indices, (z * h + y) * w + x, of a particle's voxels */
+	private static long[] voxelsOf(final VoxelIndex index, final int p) {
+		final long wh = (long) index.getWidth() * index.getHeight();
+		final long[] voxels = new long[(int) index.getNVoxels(p)];
+		int n = 0;
+		for (int z = index.getFirstSlice(p); z <= index.getLastSlice(p); z++) {
+			final int[] sliceVoxels = index.getSliceVoxels(z);
+			for (int v = index.getStart(p, z); v < index.getEnd(p, z); v++) {
+				voxels[n++] = z * wh + sliceVoxels[v];
+			}
+		}
+		return voxels;
+	}
+}
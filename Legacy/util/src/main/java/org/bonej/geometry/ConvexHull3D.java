@@ -0,0 +1,377 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.geometry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the vertices of the convex hull of a 3D point set with the quickhull
+ * algorithm.
+ * <p>
+ * Points closer to a face's plane than a small tolerance, scaled to the
+ * coordinates' magnitude, are treated as lying on the face, so coplanar points,
+ * such as those from a surface mesh of a voxel image, are not hull vertices.
+ * </p>
+ *
+ * @author Michael Doube
+ * @see <a href="https://doi.org/10.1145/235815.235821">Barber CB, Dobkin DP,
+ *      Huhdanpaa H (1996) The quickhull algorithm for convex hulls. ACM Trans
+ *      Math Softw 22: 469-483.</a>
+ */
+public final class ConvexHull3D {
+
+	private ConvexHull3D() {}
+
+	/**
+	 * Find the vertices of the convex hull of a point set
+	 *
+	 * @param points point coordinates, packed as x0, y0, z0, x1, y1, z1...
+	 * @return indices of the points that are hull vertices, in ascending order,
+	 *         or null if the points are all (nearly) coplanar, so that they have
+	 *         no 3D hull.
+	 * @throws IllegalArgumentException if points.length is not a multiple of 3
+	 */
+	public static int[] getHullVertices(final double[] points) {
+		if (points.length % 3 != 0) {
+			throw new IllegalArgumentException(
+				"Points must be packed as x, y, z triplets");
+		}
+		final int n = points.length / 3;
+		if (n < 4) return null;
+		return new Builder(points, n).build();
+	}
+
+	/** A triangular face, with vertices in anticlockwise order seen from outside */
+	private static final class Face {
+
+		private final int[] vertices;
+		/** neighbour across the edge from vertex i to vertex i + 1 */
+		private final Face[] neighbours = new Face[3];
+		private final double nx;
+		private final double ny;
+		private final double nz;
+		private final double offset;
+		private int[] outside = new int[4];
+		private int nOutside;
+		private boolean deleted;
+		private int mark;
+
+		private Face(final double[] points, final int a, final int b, final int c) {
+			vertices = new int[] { a, b, c };
+			final double ux = points[3 * b] - points[3 * a];
+			final double uy = points[3 * b + 1] - points[3 * a + 1];
+			final double uz = points[3 * b + 2] - points[3 * a + 2];
+			final double vx = points[3 * c] - points[3 * a];
+			final double vy = points[3 * c + 1] - points[3 * a + 1];
+			final double vz = points[3 * c + 2] - points[3 * a + 2];
+			double x = uy * vz - uz * vy;
+			double y = uz * vx - ux * vz;
+			double z = ux * vy - uy * vx;
+			final double length = Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				x /= length;
+				y /= length;
+				z /= length;
+			}
+			nx = x;
+			ny = y;
+			nz = z;
+			offset = nx * points[3 * a] + ny * points[3 * a + 1] + nz * points[3 *
+				a + 2];
+		}
+
+		private double distance(final double[] points, final int p) {
+			return nx * points[3 * p] + ny * points[3 * p + 1] + nz * points[3 * p +
+				2] - offset;
+		}
+
+		private void addOutside(final int p) {
+			if (nOutside == outside.length) {
+				outside = Arrays.copyOf(outside, 2 * nOutside);
+			}
+			outside[nOutside++] = p;
+		}
+
+		private int edgeIndex(final int from, final int to) {
+			for (int i = 0; i < 3; i++) {
+				if (vertices[i] == from && vertices[(i + 1) % 3] == to) return i;
+			}
+			throw new IllegalStateException("Face has no edge " + from + "-" + to);
+		}
+	}
+
+	private static final class Builder {
+
+		private final double[] points;
+		private final int n;
+		private final double tolerance;
+		private final List<Face> faces = new ArrayList<>();
+		private int mark;
+
+		private Builder(final double[] points, final int n) {
+			this.points = points;
+			this.n = n;
+			double maxX = 0;
+			double maxY = 0;
+			double maxZ = 0;
+			for (int p = 0; p < n; p++) {
+				maxX = Math.max(maxX, Math.abs(points[3 * p]));
+				maxY = Math.max(maxY, Math.abs(points[3 * p + 1]));
+				maxZ = Math.max(maxZ, Math.abs(points[3 * p + 2]));
+			}
+			tolerance = 3 * Math.ulp(1.0) * (maxX + maxY + maxZ);
+		}
+
+		private int[] build() {
+			if (!makeSimplex()) return null;
+			final ArrayDeque<Face> pending = new ArrayDeque<>();
+			for (final Face face : faces) {
+				if (face.nOutside > 0) pending.push(face);
+			}
+			while (!pending.isEmpty()) {
+				final Face face = pending.pop();
+				if (face.deleted || face.nOutside == 0) continue;
+				for (final Face newFace : addPoint(face)) {
+					if (newFace.nOutside > 0) pending.push(newFace);
+				}
+			}
+			final boolean[] isVertex = new boolean[n];
+			int nVertices = 0;
+			for (final Face face : faces) {
+				if (face.deleted) continue;
+				for (final int v : face.vertices) {
+					if (!isVertex[v]) {
+						isVertex[v] = true;
+						nVertices++;
+					}
+				}
+			}
+			final int[] vertices = new int[nVertices];
+			for (int p = 0, i = 0; p < n; p++) {
+				if (isVertex[p]) vertices[i++] = p;
+			}
+			return vertices;
+		}
+
+		/**
+		 * Make the initial tetrahedron from extreme points, and share the other
+		 * points among its faces.
+		 *
+		 * @return false if the points are coplanar
+		 */
+		private boolean makeSimplex() {
+			// the most distant pair of axis extremes
+			final int[] extremes = new int[6];
+			for (int p = 1; p < n; p++) {
+				for (int axis = 0; axis < 3; axis++) {
+					if (points[3 * p + axis] < points[3 * extremes[2 * axis] + axis])
+						extremes[2 * axis] = p;
+					if (points[3 * p + axis] > points[3 * extremes[2 * axis + 1] + axis])
+						extremes[2 * axis + 1] = p;
+				}
+			}
+			int v0 = 0;
+			int v1 = 0;
+			double maxDistance = -1;
+			for (int i = 0; i < 6; i++) {
+				for (int j = i + 1; j < 6; j++) {
+					final double distance = distanceSquared(extremes[i], extremes[j]);
+					if (distance > maxDistance) {
+						maxDistance = distance;
+						v0 = extremes[i];
+						v1 = extremes[j];
+					}
+				}
+			}
+			if (Math.sqrt(maxDistance) <= tolerance) return false;
+
+			// the point furthest from the line v0-v1
+			int v2 = -1;
+			maxDistance = tolerance * tolerance;
+			final double ux = points[3 * v1] - points[3 * v0];
+			final double uy = points[3 * v1 + 1] - points[3 * v0 + 1];
+			final double uz = points[3 * v1 + 2] - points[3 * v0 + 2];
+			final double uLength = Math.sqrt(ux * ux + uy * uy + uz * uz);
+			for (int p = 0; p < n; p++) {
+				final double vx = points[3 * p] - points[3 * v0];
+				final double vy = points[3 * p + 1] - points[3 * v0 + 1];
+				final double vz = points[3 * p + 2] - points[3 * v0 + 2];
+				final double cx = (uy * vz - uz * vy) / uLength;
+				final double cy = (uz * vx - ux * vz) / uLength;
+				final double cz = (ux * vy - uy * vx) / uLength;
+				final double distance = cx * cx + cy * cy + cz * cz;
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					v2 = p;
+				}
+			}
+			if (v2 < 0) return false;
+
+			// the point furthest from the plane v0-v1-v2
+			final Face base = new Face(points, v0, v1, v2);
+			int v3 = -1;
+			maxDistance = tolerance;
+			for (int p = 0; p < n; p++) {
+				final double distance = Math.abs(base.distance(points, p));
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					v3 = p;
+				}
+			}
+			if (v3 < 0) return false;
+
+			// orient the faces outwards, away from v3
+			final Face[] simplex;
+			if (base.distance(points, v3) < 0) {
+				simplex = new Face[] { base, new Face(points, v0, v3, v1), new Face(
+					points, v1, v3, v2), new Face(points, v2, v3, v0) };
+			}
+			else {
+				simplex = new Face[] { new Face(points, v0, v2, v1), new Face(points,
+					v0, v1, v3), new Face(points, v1, v2, v3), new Face(points, v2, v0,
+						v3) };
+			}
+			final Map<Long, Face> edges = new HashMap<>();
+			for (final Face face : simplex) {
+				faces.add(face);
+				linkEdges(face, edges);
+			}
+			for (int p = 0; p < n; p++) {
+				if (p == v0 || p == v1 || p == v2 || p == v3) continue;
+				assignOutside(p, simplex);
+			}
+			return true;
+		}
+
+		/**
+		 * Add a face's furthest outside point to the hull. Faces that can see the
+		 * point are removed, and a cone of new faces joins the point to the edges
+		 * of the hole.
+		 *
+		 * @return the new faces
+		 */
+		private List<Face> addPoint(final Face face) {
+			int eye = face.outside[0];
+			double maxDistance = face.distance(points, eye);
+			for (int i = 1; i < face.nOutside; i++) {
+				final int p = face.outside[i];
+				final double distance = face.distance(points, p);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					eye = p;
+				}
+			}
+
+			// find the faces that can see the eye point
+			mark++;
+			final List<Face> visible = new ArrayList<>();
+			final ArrayDeque<Face> queue = new ArrayDeque<>();
+			face.mark = mark;
+			queue.add(face);
+			while (!queue.isEmpty()) {
+				final Face f = queue.poll();
+				visible.add(f);
+				for (final Face neighbour : f.neighbours) {
+					if (neighbour.mark == mark) continue;
+					if (neighbour.distance(points, eye) > tolerance) {
+						neighbour.mark = mark;
+						queue.add(neighbour);
+					}
+				}
+			}
+
+			// join the eye to each horizon edge
+			final List<Face> newFaces = new ArrayList<>();
+			final Map<Long, Face> edges = new HashMap<>();
+			for (final Face f : visible) {
+				f.deleted = true;
+				for (int i = 0; i < 3; i++) {
+					final Face neighbour = f.neighbours[i];
+					if (neighbour.mark == mark) continue;
+					final int from = f.vertices[i];
+					final int to = f.vertices[(i + 1) % 3];
+					final Face newFace = new Face(points, from, to, eye);
+					newFace.neighbours[0] = neighbour;
+					neighbour.neighbours[neighbour.edgeIndex(to, from)] = newFace;
+					linkEdges(newFace, edges);
+					newFaces.add(newFace);
+					faces.add(newFace);
+				}
+			}
+
+			// share out the visible faces' outside points
+			final Face[] candidates = newFaces.toArray(new Face[0]);
+			for (final Face f : visible) {
+				for (int i = 0; i < f.nOutside; i++) {
+					final int p = f.outside[i];
+					if (p != eye) assignOutside(p, candidates);
+				}
+				f.outside = null;
+				f.nOutside = 0;
+			}
+			return newFaces;
+		}
+
+		/** Link a face to the faces that share its edges, as they are made */
+		private void linkEdges(final Face face, final Map<Long, Face> edges) {
+			for (int i = 0; i < 3; i++) {
+				final int from = face.vertices[i];
+				final int to = face.vertices[(i + 1) % 3];
+				final Face twin = edges.remove(edgeKey(to, from));
+				if (twin != null) {
+					face.neighbours[i] = twin;
+					twin.neighbours[twin.edgeIndex(to, from)] = face;
+				}
+				else if (face.neighbours[i] == null) {
+					edges.put(edgeKey(from, to), face);
+				}
+			}
+		}
+
+		private long edgeKey(final int from, final int to) {
+			return (long) from * n + to;
+		}
+
+		private void assignOutside(final int p, final Face[] candidates) {
+			for (final Face face : candidates) {
+				if (face.distance(points, p) > tolerance) {
+					face.addOutside(p);
+					return;
+				}
+			}
+		}
+
+		private double distanceSquared(final int a, final int b) {
+			final double dx = points[3 * a] - points[3 * b];
+			final double dy = points[3 * a + 1] - points[3 * b + 1];
+			final double dz = points[3 * a + 2] - points[3 * b + 2];
+			return dx * dx + dy * dy + dz * dz;
+		}
+	}
+}
@@ -174,34 +174,40 @@ public final class FitEllipsoid {
 	 * one of the other quadrics).
 	 */
 	public static Object[] yuryPetrov(final double[][] points) {
+		final NormalEquations equations = new NormalEquations();
+		for (final double[] point : points) {
+			equations.add(point[0], point[1], point[2]);
+		}
+		return yuryPetrov(equations);
+	}
+
+	/**
+	 * Ellipsoid fitting method by Yury Petrov, from points that have already
+	 * been summed into the least squares normal equations.
+	 * <p>
+	 * Memory use does not depend on the number of points, and the result is the
+	 * same as {@link #yuryPetrov(double[][])} for the same points added in the
+	 * same order.
+	 * </p>
+	 *
+	 * @param equations normal equations of at least 9 points
+	 * @return Object[] array containing the centre, radii, eigenvectors of the
+	 *         axes, the 9 variables of the ellipsoid equation and the EVD
+	 * @throws IllegalArgumentException if number of coordinates is less than 9 or
+	 * if ellipsoid matrix is not positive definite (i.e. the fitted function is
+	 * one of the other quadrics).
+	 */
+	public static Object[] yuryPetrov(final NormalEquations equations) {
 
-		final int nPoints = points.length;
-		if (nPoints < 9) {
+		if (equations.getNPoints() < 9) {
 			throw new IllegalArgumentException(
 				"Too few points; need at least 9 to calculate a unique ellipsoid");
 		}
 
-		final double[][] d = new double[nPoints][9];
-		for (int i = 0; i < nPoints; i++) {
-			final double x = points[i][0];
-			final double y = points[i][1];
-			final double z = points[i][2];
-			d[i][0] = x * x;
-			d[i][1] = y * y;
-			d[i][2] = z * z;
-			d[i][3] = 2 * x * y;
-			d[i][4] = 2 * x * z;
-			d[i][5] = 2 * y * z;
-			d[i][6] = 2 * x;
-			d[i][7] = 2 * y;
-			d[i][8] = 2 * z;
-		}
-
 		// do the fitting
-		final Matrix D = new Matrix(d);
-		final Matrix ones = new Matrix(nPoints, 1, 1.0);
-		final Matrix V = ((D.transpose().times(D)).inverse()).times(D.transpose()
-			.times(ones));
+		final Matrix DtD = new Matrix(equations.getDtD());
+		final Matrix DtOnes = new Matrix(equations.getDtOnes(), 9);
+		final Matrix V = DtD.inverse().times(DtOnes);
 
 		// the fitted equation
 		final double[] v = V.getColumnPackedCopy();
@@ -291,4 +297,77 @@ public final class FitEllipsoid {
 		final double[][] eigenValues = E.getD().getArrayCopy();
 		return new Object[] { centre, eigenValues, eigenVectors, E };
 	}
+
+	/**
+	 * Running sums of the least squares normal equations,
+	 * <b>D</b><sup>T</sup><b>D</b><i>v</i> = <b>D</b><sup>T</sup><b>1</b>, of
+	 * an ellipsoid fit. Each row of the design matrix <b>D</b> holds one point's
+	 * terms <i>x</i><sup>2</sup>, <i>y</i><sup>2</sup>, <i>z</i><sup>2</sup>,
+	 * 2<i>xy</i>, 2<i>xz</i>, 2<i>yz</i>, 2<i>x</i>, 2<i>y</i> and 2<i>z</i>.
+	 * Points are added one at a time, so <b>D</b> itself is never stored.
+	 */
+	public static final class NormalEquations {
+
+		private final double[][] dtd = new double[9][9];
+		private final double[] dtOnes = new double[9];
+		private final double[] row = new double[9];
+		private long nPoints;
+
+		/**
+		 * Add a point to the sums. Callers should add each distinct point once,
+		 * because a repeated point has extra weight in the fit.
+		 *
+		 * @param x x coordinate
+		 * @param y y coordinate
+		 * @param z z coordinate
+		 */
+		public void add(final double x, final double y, final double z) {
+			row[0] = x * x;
+			row[1] = y * y;
+			row[2] = z * z;
+			row[3] = 2 * x * y;
+			row[4] = 2 * x * z;
+			row[5] = 2 * y * z;
+			row[6] = 2 * x;
+			row[7] = 2 * y;
+			row[8] = 2 * z;
+			for (int i = 0; i < 9; i++) {
+				final double ri = row[i];
+				final double[] dtdRow = dtd[i];
+				for (int j = i; j < 9; j++) {
+					dtdRow[j] += ri * row[j];
+				}
+				dtOnes[i] += ri;
+			}
+			nPoints++;
+		}
+
+		/**
+		 * @return number of points added
+		 */
+		public long getNPoints() {
+			return nPoints;
+		}
+
+		/**
+		 * @return a copy of <b>D</b><sup>T</sup><b>D</b>
+		 */
+		double[][] getDtD() {
+			final double[][] copy = new double[9][9];
+			for (int i = 0; i < 9; i++) {
+				for (int j = i; j < 9; j++) {
+					copy[i][j] = dtd[i][j];
+					copy[j][i] = dtd[i][j];
+				}
+			}
+			return copy;
+		}
+
+		/**
+		 * @return a copy of <b>D</b><sup>T</sup><b>1</b>
+		 */
+		double[] getDtOnes() {
+			return dtOnes.clone();
+		}
+	}
 }
@@ -0,0 +1,118 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2020, Michael Doube
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.geometry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConvexHull3DTest {
+
+	@Test
+	public void testGetHullVerticesCubeGrid() {
+		final double[] points = new double[3 * 5 * 5 * 5];
+		int i = 0;
+		for (int z = 0; z < 5; z++) {
+			for (int y = 0; y < 5; y++) {
+				for (int x = 0; x < 5; x++) {
+					points[i++] = x;
+					points[i++] = y;
+					points[i++] = z;
+				}
+			}
+		}
+
+		final int[] vertices = ConvexHull3D.getHullVertices(points);
+
+		// only the corners are vertices: points on faces and edges are not
+		final int[] corners = { 0, 4, 20, 24, 100, 104, 120, 124 };
+		assertArrayEquals(corners, vertices);
+	}
+
+	@Test
+	public void testGetHullVerticesIgnoresInteriorAndDuplicates() {
+		final double[] points = { 0, 0, 0, 0.4, 0.4, 0.4, 2, 0, 0, 0, 2, 0, 0, 0, 2, 0.5,
+			0.5, 0.5, 2, 0, 0 };
+
+		final int[] vertices = ConvexHull3D.getHullVertices(points);
+
+		// a duplicate vertex is reported once, at its first index
+		assertArrayEquals(new int[] { 0, 2, 3, 4 }, vertices);
+	}
+
+	@Test
+	public void testGetHullVerticesContainsFarthestPair() {
+		final Random random = new Random(0xC0FFEE);
+		for (int t = 0; t < 100; t++) {
+			final int n = 4 + random.nextInt(200);
+			final double[] points = new double[3 * n];
+			for (int i = 0; i < points.length; i++) {
+				points[i] = random.nextGaussian();
+			}
+
+			final int[] vertices = ConvexHull3D.getHullVertices(points);
+
+			assertEquals(maxDistance(points, null), maxDistance(points, vertices),
+				0.0);
+		}
+	}
+
+	@Test
+	public void testGetHullVerticesCoplanarReturnsNull() {
+		final double[] points = { 0, 0, 1, 1, 0, 1, 0, 1, 1, 1, 1, 1, 0.5, 0.5, 1 };
+
+		assertNull(ConvexHull3D.getHullVertices(points));
+	}
+
+	@Test
+	public void testGetHullVerticesTooFewPointsReturnsNull() {
+		assertNull(ConvexHull3D.getHullVertices(new double[] { 0, 0, 0, 1, 0, 0, 0,
+			1, 0 }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetHullVerticesThrowsIfNotTriplets() {
+		ConvexHull3D.getHullVertices(new double[4]);
+	}
+
+	private static double maxDistance(final double[] points, final int[] indices) {
+		final int n = indices == null ? points.length / 3 : indices.length;
+		double max = 0;
+		for (int i = 0; i < n; i++) {
+			final int a = indices == null ? i : indices[i];
+			for (int j = i + 1; j < n; j++) {
+				final int b = indices == null ? j : indices[j];
+				final double dx = points[3 * a] - points[3 * b];
+				final double dy = points[3 * a + 1] - points[3 * b + 1];
+				final double dz = points[3 * a + 2] - points[3 * b + 2];
+				max = Math.max(max, dx * dx + dy * dy + dz * dz);
+			}
+		}
+		return max;
+	}
+}
@@ -27,6 +27,8 @@ import static org.junit.Assert.assertEquals;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import Jama.Matrix;
+
 public class FitEllipsoidTest {
 
 	final static double a = 1.5;
@@ -51,6 +53,57 @@ public class FitEllipsoidTest {
 		assertArrayEquals(radii, (double[]) result[1], 1e-2);
 	}
 	
+	@Test
+	public void testYuryPetrovNormalEquationsMatchesDesignMatrix() {
+		final double[][] points = FitEllipsoid.testEllipsoid(a, b, c, r, x, y, z, 0.01, 1000, true);
+		final FitEllipsoid.NormalEquations equations = new FitEllipsoid.NormalEquations();
+		for (final double[] point : points) {
+			equations.add(point[0], point[1], point[2]);
+		}
+
+		// the normal equations as they were made from the whole design matrix
+		final int nPoints = points.length;
+		final double[][] d = new double[nPoints][9];
+		for (int i = 0; i < nPoints; i++) {
+			final double x = points[i][0];
+			final double y = points[i][1];
+			final double z = points[i][2];
+			d[i][0] = x * x;
+			d[i][1] = y * y;
+			d[i][2] = z * z;
+			d[i][3] = 2 * x * y;
+			d[i][4] = 2 * x * z;
+			d[i][5] = 2 * y * z;
+			d[i][6] = 2 * x;
+			d[i][7] = 2 * y;
+			d[i][8] = 2 * z;
+		}
+		final Matrix D = new Matrix(d);
+		final Matrix ones = new Matrix(nPoints, 1, 1.0);
+		final Matrix DtD = D.transpose().times(D);
+		final Matrix DtOnes = D.transpose().times(ones);
+		final Matrix V = DtD.inverse().times(DtOnes);
+
+		final Object[] result = FitEllipsoid.yuryPetrov(equations);
+
+		assertEquals(nPoints, equations.getNPoints());
+		final double[][] dtd = equations.getDtD();
+		for (int i = 0; i < 9; i++) {
+			assertArrayEquals(DtD.getArray()[i], dtd[i], 0.0);
+		}
+		assertArrayEquals(DtOnes.getColumnPackedCopy(), equations.getDtOnes(), 0.0);
+		assertArrayEquals(V.getColumnPackedCopy(), (double[]) result[3], 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testYuryPetrovNormalEquationsTooFewPoints() {
+		final FitEllipsoid.NormalEquations equations = new FitEllipsoid.NormalEquations();
+		for (int i = 0; i < 8; i++) {
+			equations.add(i, i * i, -i);
+		}
+		FitEllipsoid.yuryPetrov(equations);
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testYuryPetrovCylinder() {
 		//generate points on a cylinder with d = h, centred on 0, 0, 0.
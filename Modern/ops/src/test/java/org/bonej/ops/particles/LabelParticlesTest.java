@@ -0,0 +1,153 @@
+/*
+BSD 2-Clause License
+Copyright (c) 2018, Michael Doube, Richard Domander, Alessandro Felder
+All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.bonej.ops.particles;
+
+import static org.junit.Assert.assertEquals;
+
+import net.imagej.ImageJ;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LabelParticles}.
+ *
+ * @author Michael Doube
+ */
+public class LabelParticlesTest {
+
+	private static ImageJ IMAGE_J = new ImageJ();
+
+	@Test
+	public void testCornerNeighboursAreOneParticle() {
+		final Img<BitType> img = ArrayImgs.bits(4, 4, 4);
+		set(img, 1, 1, 1);
+		set(img, 2, 2, 2);
+
+		final Img<IntType> labels = label(img);
+
+		assertEquals(1, get(labels, 1, 1, 1));
+		assertEquals(1, get(labels, 2, 2, 2));
+		assertEquals(0, get(labels, 2, 1, 1));
+	}
+
+	@Test
+	public void testParticlesAreNumberedInRasterOrder() {
+		final Img<BitType> img = ArrayImgs.bits(10, 10, 10);
+		// a later slice, but the first x
+		fill(img, 1, 1, 7);
+		// an earlier slice, but a later x
+		fill(img, 6, 6, 1);
+
+		final Img<IntType> labels = label(img);
+
+		assertEquals(2, get(labels, 1, 1, 7));
+		assertEquals(2, get(labels, 2, 2, 8));
+		assertEquals(1, get(labels, 6, 6, 1));
+		assertEquals(1, get(labels, 7, 7, 2));
+		assertEquals(0, get(labels, 0, 0, 0));
+	}
+
+	@Test
+	public void test2DDiagonalPixelsAreOneParticle() {
+		final Img<BitType> img = ArrayImgs.bits(5, 5);
+		final RandomAccess<BitType> access = img.randomAccess();
+		access.setPosition(new long[] { 1, 1 });
+		access.get().setOne();
+		access.setPosition(new long[] { 2, 2 });
+		access.get().setOne();
+		access.setPosition(new long[] { 4, 0 });
+		access.get().setOne();
+
+		final Img<IntType> labels = label(img);
+
+		final RandomAccess<IntType> labelAccess = labels.randomAccess();
+		labelAccess.setPosition(new long[] { 4, 0 });
+		assertEquals(1, labelAccess.get().get());
+		labelAccess.setPosition(new long[] { 1, 1 });
+		assertEquals(2, labelAccess.get().get());
+		labelAccess.setPosition(new long[] { 2, 2 });
+		assertEquals(2, labelAccess.get().get());
+	}
+
+	@Test
+	public void testLabelsHyperstackSubspace() {
+		// x, y, z, t
+		final Img<BitType> img = ArrayImgs.bits(6, 6, 6, 3);
+		final RandomAccess<BitType> access = img.randomAccess();
+		access.setPosition(new long[] { 3, 4, 5, 2 });
+		access.get().setOne();
+		final RandomAccessibleInterval<BitType> subspace = Views.hyperSlice(img, 3,
+			2);
+
+		final Img<IntType> labels = label(subspace);
+
+		assertEquals(1, get(labels, 3, 4, 5));
+		assertEquals(0, get(labels, 3, 4, 4));
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() {
+		IMAGE_J.context().dispose();
+		IMAGE_J = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Img<IntType> label(
+		final RandomAccessibleInterval<BitType> interval)
+	{
+		return (Img<IntType>) IMAGE_J.op().run(LabelParticles.class, interval);
+	}
+
+	private static void fill(final Img<BitType> img, final long x, final long y,
+		final long z)
+	{
+		for (long k = z; k < z + 2; k++) {
+			for (long j = y; j < y + 2; j++) {
+				for (long i = x; i < x + 2; i++) {
+					set(img, i, j, k);
+				}
+			}
+		}
+	}
+
+	private static void set(final Img<BitType> img, final long... position) {
+		final RandomAccess<BitType> access = img.randomAccess();
+		access.setPosition(position);
+		access.get().setOne();
+	}
+
+	private static int get(final Img<IntType> img, final long... position) {
+		final RandomAccess<IntType> access = img.randomAccess();
+		access.setPosition(position);
+		return access.get().get();
+	}
+}